@@ -0,0 +1,113 @@
+package com.jimmydaddy.imagemarker;
+
+import android.graphics.Bitmap;
+import android.support.annotation.Nullable;
+
+/**
+ * Waits for the bitmaps of a job that are loaded concurrently: {@link #onComplete} runs once,
+ * on the thread of the last load, with the bitmaps in the order they were declared, or the job
+ * is rejected once with the first failure. Bitmaps loaded before or after a failure are released.
+ */
+
+public abstract class BitmapJoin {
+    private final Bitmap[] bitmaps;
+    private final MarkerCallback callback;
+    private int pending;
+    private boolean failed = false;
+
+    /**
+     * @param count number of bitmaps to wait for
+     * @param callback rejected with the first failure
+     */
+    public BitmapJoin(int count, MarkerCallback callback) {
+        this.bitmaps = new Bitmap[count];
+        this.pending = count;
+        this.callback = callback;
+    }
+
+    /**
+     * every bitmap is there, they now belong to this method
+     * @param bitmaps in the order they were declared
+     */
+    protected abstract void onComplete(Bitmap[] bitmaps) throws Exception;
+
+    /**
+     * give back a bitmap that won't be used
+     * @param bitmap
+     */
+    protected abstract void release(Bitmap bitmap);
+
+    /**
+     * @param index
+     * @param bitmap may be null for a slot without bitmap
+     */
+    public void complete(int index, @Nullable Bitmap bitmap) {
+        boolean done;
+        synchronized (this) {
+            if (failed) {
+                done = false;
+            } else {
+                bitmaps[index] = bitmap;
+                pending--;
+                done = pending == 0;
+                bitmap = null;
+            }
+        }
+        if (bitmap != null) {
+            release(bitmap);
+        }
+        if (done) {
+            try {
+                onComplete(bitmaps);
+            } catch (Exception | OutOfMemoryError e) {
+                e.printStackTrace();
+                callback.reject(e);
+            }
+        }
+    }
+
+    public void fail(String code, String message, @Nullable Throwable e) {
+        synchronized (this) {
+            if (failed || pending == 0) {
+                return;
+            }
+            failed = true;
+        }
+        releaseAll();
+        callback.reject(code, message, e);
+    }
+
+    private void releaseAll() {
+        for (int i = 0; i < bitmaps.length; i++) {
+            Bitmap bitmap;
+            synchronized (this) {
+                bitmap = bitmaps[i];
+                bitmaps[i] = null;
+            }
+            if (bitmap != null) {
+                release(bitmap);
+            }
+        }
+    }
+
+    /**
+     * a callback failing this join, for the loads of its bitmaps, part of the same job
+     */
+    public MarkerCallback failureCallback() {
+        return new MarkerCallback() {
+            @Override
+            public MarkerJob getJob() {
+                return callback.getJob();
+            }
+
+            @Override
+            public void resolve(Object result) {
+            }
+
+            @Override
+            public void reject(String code, String message, @Nullable Throwable e) {
+                fail(code, message, e);
+            }
+        };
+    }
+}
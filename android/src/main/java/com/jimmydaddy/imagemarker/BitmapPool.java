@@ -0,0 +1,191 @@
+package com.jimmydaddy.imagemarker;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.os.Build;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableMap;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Pool of mutable bitmaps bucketed by allocation size, shared by the decode, scale and
+ * compositing steps so consecutive jobs reuse memory instead of allocating and recycling.
+ *
+ * Reuse relies on Bitmap.reconfigure and BitmapFactory.Options.inBitmap of any smaller size,
+ * both available from KitKat. Below that the pool stays empty and every bitmap is recycled.
+ */
+
+public class BitmapPool {
+    // in KB like Utils.getMaxMemory
+    public static final int DEFAULT_MAX_SIZE = Utils.getMaxMemory() / 8;
+    // don't hand out a bitmap more than this many times bigger than requested
+    private static final int MAX_OVERSIZE = 4;
+
+    private static final BitmapPool sInstance = new BitmapPool(DEFAULT_MAX_SIZE);
+
+    private final TreeMap<Integer, LinkedList<Bitmap>> buckets = new TreeMap<>();
+    // oldest first, for eviction
+    private final LinkedList<Bitmap> order = new LinkedList<>();
+    private long maxSize;
+    private long size = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    public static BitmapPool getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * @param maxSize in KB
+     */
+    public BitmapPool(int maxSize) {
+        this.maxSize = maxSize * 1024L;
+    }
+
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+    }
+
+    private static int bytesOf(Bitmap bitmap) {
+        return isSupported() ? bitmap.getAllocationByteCount() : bitmap.getByteCount();
+    }
+
+    private static int bytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        } else if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        }
+        return 4;
+    }
+
+    /**
+     * a cleared bitmap of exactly width x height, taken from the pool
+     * @return null when the pool has nothing suitable
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = take(width * height * bytesPerPixel(config));
+        if (bitmap != null) {
+            bitmap.reconfigure(width, height, config);
+            bitmap.eraseColor(Color.TRANSPARENT);
+        }
+        return bitmap;
+    }
+
+    /**
+     * a bitmap to be used as BitmapFactory.Options.inBitmap for a decode of about width x height,
+     * the decoder reconfigures it. Give it back with {@link #put} if the decode doesn't use it.
+     * @return null when the pool has nothing suitable
+     */
+    public synchronized Bitmap getForDecode(int width, int height, Bitmap.Config config) {
+        return take(width * height * bytesPerPixel(config));
+    }
+
+    private Bitmap take(int bytes) {
+        if (!isSupported() || bytes <= 0) {
+            return null;
+        }
+        Map.Entry<Integer, LinkedList<Bitmap>> entry = buckets.ceilingEntry(bytes);
+        if (entry == null || entry.getKey() > (long) bytes * MAX_OVERSIZE) {
+            misses++;
+            return null;
+        }
+        LinkedList<Bitmap> bucket = entry.getValue();
+        Bitmap bitmap = bucket.removeLast();
+        if (bucket.isEmpty()) {
+            buckets.remove(entry.getKey());
+        }
+        order.remove(bitmap);
+        size -= entry.getKey();
+        hits++;
+        return bitmap;
+    }
+
+    /**
+     * give a bitmap that is no longer used back to the pool, it is recycled when it can't be reused
+     * @param bitmap
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        int bytes = bytesOf(bitmap);
+        if (!isSupported() || !bitmap.isMutable() || bytes > maxSize) {
+            bitmap.recycle();
+            return;
+        }
+        LinkedList<Bitmap> bucket = buckets.get(bytes);
+        if (bucket == null) {
+            bucket = new LinkedList<>();
+            buckets.put(bytes, bucket);
+        }
+        bucket.addLast(bitmap);
+        order.addLast(bitmap);
+        size += bytes;
+        trimToSize(maxSize);
+    }
+
+    private void trimToSize(long targetSize) {
+        Iterator<Bitmap> iterator = order.iterator();
+        while (size > targetSize && iterator.hasNext()) {
+            Bitmap bitmap = iterator.next();
+            iterator.remove();
+            int bytes = bytesOf(bitmap);
+            LinkedList<Bitmap> bucket = buckets.get(bytes);
+            if (bucket != null) {
+                bucket.remove(bitmap);
+                if (bucket.isEmpty()) {
+                    buckets.remove(bytes);
+                }
+            }
+            size -= bytes;
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * @param maxSize in KB
+     */
+    public synchronized void setMaxSize(int maxSize) {
+        this.maxSize = maxSize * 1024L;
+        trimToSize(this.maxSize);
+    }
+
+    public synchronized int getMaxSize() {
+        return (int) (maxSize / 1024);
+    }
+
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    /**
+     * shrink the pool according to a ComponentCallbacks2 trim level
+     * @param level
+     */
+    public synchronized void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            clear();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            trimToSize(size / 2);
+        }
+    }
+
+    public synchronized WritableMap getStats() {
+        WritableMap stats = Arguments.createMap();
+        stats.putDouble("hits", hits);
+        stats.putDouble("misses", misses);
+        stats.putInt("count", order.size());
+        stats.putInt("size", (int) (size / 1024));
+        stats.putInt("maxSize", getMaxSize());
+        return stats;
+    }
+}
@@ -0,0 +1,319 @@
+package com.jimmydaddy.imagemarker;
+
+import android.os.Process;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableMap;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Pattern;
+
+/**
+ * Deletes the results the module left in the cache dir, oldest first, to keep them within
+ * a size, a file count and an age. Only the age is limited by default.
+ *
+ * Only files with the random names the module gives to results are touched, results saved
+ * under a filename of the app are left alone, and so are the files kept by the {@link ResultCache}
+ * and the ones written since the oldest job in flight started, which may still be handed to js.
+ * The work is done a few files at a time on a background priority thread, so it never holds up
+ * a marking job. Temp files left by a killed process are deleted on the first pass.
+ */
+
+public class CacheJanitor {
+    // in KB like the other sizes, no limit by default
+    public static final int DEFAULT_MAX_SIZE = 0;
+    public static final int DEFAULT_MAX_FILES = 0;
+    // in seconds
+    public static final int DEFAULT_MAX_AGE = 7 * 24 * 60 * 60;
+
+    // results this young were just handed to js, they are never deleted
+    private static final long MIN_AGE_MS = 60 * 1000;
+    // a temp file this old doesn't belong to a running job anymore
+    private static final long STALE_TEMP_MS = 60 * 60 * 1000;
+    // files deleted per step, the thread goes back to the queue between steps
+    private static final int STEP_SIZE = 32;
+    private static final Pattern OUTPUT_NAME = Pattern.compile("[0-9a-f\\-]{36}imagemarker\\.(jpg|png|webp)");
+
+    private static class Output {
+        final File file;
+        final long size;
+        final long modified;
+
+        Output(File file, long size, long modified) {
+            this.file = file;
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+
+    private final File dir;
+    @Nullable
+    private final ResultCache resultCache;
+    @Nullable
+    private final MarkerJobs jobs;
+    // oldest first
+    private final LinkedList<Output> outputs = new LinkedList<>();
+    private final Set<String> paths = new HashSet<>();
+    private ExecutorService executor;
+    private boolean scanned = false;
+    private boolean scheduled = false;
+    private int maxSize = DEFAULT_MAX_SIZE;
+    private int maxFiles = DEFAULT_MAX_FILES;
+    private int maxAge = DEFAULT_MAX_AGE;
+    private long size = 0;
+    private long deleted = 0;
+
+    /**
+     * @param dir where the results are written
+     * @param resultCache its files are left alone, may be null
+     * @param jobs the results of its jobs in flight are left alone, may be null
+     */
+    public CacheJanitor(File dir, @Nullable ResultCache resultCache, @Nullable MarkerJobs jobs) {
+        this.dir = dir;
+        this.resultCache = resultCache;
+        this.jobs = jobs;
+    }
+
+    /**
+     * whether a file has the name of a result the module named itself
+     * @param name
+     * @return
+     */
+    public static boolean isOutputName(String name) {
+        return OUTPUT_NAME.matcher(name).matches();
+    }
+
+    /**
+     * @param maxSize in KB, 0 for no limit
+     * @param maxFiles 0 for no limit
+     * @param maxAge in seconds, 0 for no limit, applied on the next {@link #schedule}
+     */
+    public synchronized void configure(int maxSize, int maxFiles, int maxAge) {
+        if (maxSize < 0 || maxFiles < 0 || maxAge < 0) {
+            throw new IllegalArgumentException("cache dir limits should not be negative");
+        }
+        this.maxSize = maxSize;
+        this.maxFiles = maxFiles;
+        this.maxAge = maxAge;
+    }
+
+    public synchronized int getMaxSize() {
+        return maxSize;
+    }
+
+    public synchronized int getMaxFiles() {
+        return maxFiles;
+    }
+
+    public synchronized int getMaxAge() {
+        return maxAge;
+    }
+
+    /**
+     * record a result just written, a pass is scheduled when it goes over a limit
+     * @param file
+     */
+    public synchronized void track(File file) {
+        if (!isOutputName(file.getName()) || !paths.add(file.getPath())) {
+            return;
+        }
+        long length = file.length();
+        outputs.addLast(new Output(file, length, System.currentTimeMillis()));
+        size += length;
+        if (isOverLimit(System.currentTimeMillis())) {
+            schedule();
+        }
+    }
+
+    /**
+     * run a pass in the background, e.g. at startup
+     */
+    public synchronized void schedule() {
+        if (scheduled) {
+            return;
+        }
+        if (executor == null) {
+            executor = Executors.newSingleThreadExecutor(new JanitorThreadFactory());
+        }
+        scheduled = true;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    boolean more = step(System.currentTimeMillis());
+                    synchronized (CacheJanitor.this) {
+                        scheduled = false;
+                        if (more) {
+                            schedule();
+                        }
+                    }
+                } catch (Exception e) {
+                    Log.d(Utils.TAG, "cache janitor failed", e);
+                    synchronized (CacheJanitor.this) {
+                        scheduled = false;
+                    }
+                }
+            }
+        });
+    }
+
+    public synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        scheduled = false;
+    }
+
+    /**
+     * run every step of a pass on the calling thread
+     * @param now
+     */
+    void runPass(long now) {
+        while (step(now)) {
+            // next step
+        }
+    }
+
+    /**
+     * scan the dir on the first call, then delete up to STEP_SIZE files
+     * @param now
+     * @return whether there is more to delete
+     */
+    boolean step(long now) {
+        if (scan(now)) {
+            return true;
+        }
+        // a file written after this may belong to a job in flight, or was just handed to js
+        long keepAfter = Math.min(now, null != jobs ? jobs.getOldestStart() : Long.MAX_VALUE) - MIN_AGE_MS;
+        List<Output> victims = new ArrayList<>();
+        int removed = 0;
+        synchronized (this) {
+            Iterator<Output> iterator = outputs.iterator();
+            while (removed < STEP_SIZE && iterator.hasNext() && isOverLimit(now)) {
+                Output output = iterator.next();
+                if (output.modified > keepAfter) {
+                    break;
+                }
+                iterator.remove();
+                removed++;
+                paths.remove(output.file.getPath());
+                size -= output.size;
+                if (resultCache == null || !resultCache.contains(output.file.getPath())) {
+                    victims.add(output);
+                }
+            }
+        }
+        for (Output output : victims) {
+            if (!output.file.exists() || output.file.delete()) {
+                synchronized (this) {
+                    deleted++;
+                }
+            }
+        }
+        synchronized (this) {
+            return removed > 0 && isOverLimit(now);
+        }
+    }
+
+    /**
+     * pick up the results of earlier launches and delete their stale temp files
+     * @return whether the scan was done by this call
+     */
+    private boolean scan(long now) {
+        synchronized (this) {
+            if (scanned) {
+                return false;
+            }
+            scanned = true;
+        }
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return false;
+        }
+        List<Output> found = new ArrayList<>();
+        int staleTemps = 0;
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(OutputFile.TEMP_SUFFIX)) {
+                if (now - file.lastModified() > STALE_TEMP_MS && file.delete()) {
+                    staleTemps++;
+                }
+            } else if (isOutputName(name)) {
+                found.add(new Output(file, file.length(), file.lastModified()));
+            }
+        }
+        Collections.sort(found, new Comparator<Output>() {
+            @Override
+            public int compare(Output a, Output b) {
+                return a.modified < b.modified ? -1 : (a.modified == b.modified ? 0 : 1);
+            }
+        });
+        synchronized (this) {
+            deleted += staleTemps;
+            // the files tracked meanwhile are newer than the ones found
+            int index = 0;
+            for (Output output : found) {
+                if (paths.add(output.file.getPath())) {
+                    outputs.add(index++, output);
+                    size += output.size;
+                }
+            }
+        }
+        return true;
+    }
+
+    private boolean isOverLimit(long now) {
+        if (outputs.isEmpty()) {
+            return false;
+        }
+        return (maxSize > 0 && size > maxSize * 1024L)
+                || (maxFiles > 0 && outputs.size() > maxFiles)
+                || (maxAge > 0 && now - outputs.getFirst().modified > maxAge * 1000L);
+    }
+
+    public synchronized WritableMap getStats() {
+        WritableMap stats = Arguments.createMap();
+        stats.putInt("count", outputs.size());
+        stats.putInt("size", (int) (size / 1024));
+        stats.putDouble("deleted", deleted);
+        stats.putInt("maxSize", maxSize);
+        stats.putInt("maxFiles", maxFiles);
+        stats.putInt("maxAge", maxAge);
+        return stats;
+    }
+
+    // for tests
+    synchronized int getCount() {
+        return outputs.size();
+    }
+
+    private static class JanitorThreadFactory implements ThreadFactory {
+        @Override
+        public Thread newThread(final Runnable r) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "ImageMarker-janitor");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    }
+}
@@ -1,17 +1,17 @@
 package com.jimmydaddy.imagemarker;
 
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
-import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Typeface;
+import android.net.Uri;
 import android.support.annotation.Nullable;
-import android.text.Layout;
-import android.text.StaticLayout;
-import android.text.TextPaint;
 import android.text.TextUtils;
+import android.util.DisplayMetrics;
 import android.util.Log;
 
 import com.facebook.common.references.CloseableReference;
@@ -19,22 +19,28 @@ import com.facebook.datasource.DataSource;
 import com.facebook.drawee.backends.pipeline.Fresco;
 import com.facebook.imagepipeline.datasource.BaseBitmapDataSubscriber;
 import com.facebook.imagepipeline.image.CloseableImage;
-import com.facebook.imagepipeline.request.ImageRequest;
+import com.facebook.imagepipeline.common.Priority;
+import com.facebook.imagepipeline.common.ResizeOptions;
+import com.facebook.imagepipeline.request.ImageRequestBuilder;
+import com.facebook.react.bridge.Arguments;
 import com.facebook.react.bridge.Promise;
 import com.facebook.react.bridge.ReactApplicationContext;
 import com.facebook.react.bridge.ReactContextBaseJavaModule;
 import com.facebook.react.bridge.ReactMethod;
 import com.facebook.react.bridge.ReadableArray;
 import com.facebook.react.bridge.ReadableMap;
-import com.facebook.react.views.text.ReactFontManager;
+import com.facebook.react.bridge.WritableMap;
+import com.facebook.react.modules.core.DeviceEventManagerModule;
 
-import java.io.BufferedOutputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
 import java.util.UUID;
 import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
 
 
 /**
@@ -46,11 +52,44 @@ public class ImageMarkerManager extends ReactContextBaseJavaModule {
     private ReactApplicationContext context;
     private static final String PROP_ICON_URI = "uri";
     private static final String IMAGE_MARKER_TAG = "[ImageMarker]";
+    private static final String RESULT_CACHE_INDEX = "imagemarker-results.idx";
+    private final MarkerExecutor markerExecutor = new MarkerExecutor();
+    private final MarkerBitmapCache markerCache = new MarkerBitmapCache();
+    private final MarkerBitmapCache textCache = new MarkerBitmapCache(MarkerBitmapCache.DEFAULT_MAX_SIZE / 2);
+    private final TextRunCache textRuns = new TextRunCache();
+    private final MarkerJobs jobs = new MarkerJobs();
+    private final ResultCache resultCache;
+    private final CacheJanitor janitor;
+    private final ComponentCallbacks2 memoryCallbacks = new ComponentCallbacks2() {
+        @Override
+        public void onTrimMemory(int level) {
+            BitmapPool.getInstance().trimMemory(level);
+            if (level >= TRIM_MEMORY_RUNNING_LOW) {
+                MarkerOutput.trimBuffers();
+            }
+        }
+
+        @Override
+        public void onLowMemory() {
+            BitmapPool.getInstance().clear();
+            textRuns.clear();
+            MarkerOutput.trimBuffers();
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+        }
+    };
 
 
     public ImageMarkerManager(ReactApplicationContext reactContext) {
         super(reactContext);
         this.context = reactContext;
+        this.resultCache = new ResultCache(new File(reactContext.getCacheDir(), RESULT_CACHE_INDEX));
+        this.janitor = new CacheJanitor(reactContext.getCacheDir(), resultCache, jobs);
+        // clean up after earlier launches
+        janitor.schedule();
+        reactContext.getApplicationContext().registerComponentCallbacks(memoryCallbacks);
     }
 
     @Override
@@ -58,6 +97,116 @@ public class ImageMarkerManager extends ReactContextBaseJavaModule {
         return "ImageMarker";
     }
 
+    @Override
+    public void onCatalystInstanceDestroy() {
+        super.onCatalystInstanceDestroy();
+        jobs.shutdown();
+        markerExecutor.shutdown();
+        markerCache.clear();
+        textCache.clear();
+        textRuns.clear();
+        context.getApplicationContext().unregisterComponentCallbacks(memoryCallbacks);
+        BitmapPool.getInstance().clear();
+        MarkerOutput.trimBuffers();
+        resultCache.flush();
+        janitor.shutdown();
+    }
+
+    /**
+     * configure the shared worker pool
+     * @param options poolSize, queueSize, rejectPolicy ('abort' | 'overflow', the latter runs refused jobs on an overflow thread), markerCacheSize, textCacheSize and bitmapPoolSize (KB),
+     *                syncWrites (wait for results to reach the storage before resolving),
+     *                resultCacheSize (KB of earlier results reused for identical jobs, 0 to turn off),
+     *                cacheDirMaxSize (KB), cacheDirMaxFiles and cacheDirMaxAge (seconds) of the results kept in the cache dir, 0 for no limit
+     * @param promise resolves with the effective settings
+     */
+    @ReactMethod
+    public void configure(ReadableMap options, Promise promise) {
+        try {
+            markerExecutor.configure(
+                    Utils.optInt(options, "poolSize", markerExecutor.getPoolSize()),
+                    Utils.optInt(options, "queueSize", markerExecutor.getQueueSize()),
+                    Utils.optString(options, "rejectPolicy", markerExecutor.getRejectPolicy()));
+            markerCache.setMaxSize(Utils.optInt(options, "markerCacheSize", markerCache.getMaxSize()));
+            textCache.setMaxSize(Utils.optInt(options, "textCacheSize", textCache.getMaxSize()));
+            BitmapPool.getInstance().setMaxSize(Utils.optInt(options, "bitmapPoolSize", BitmapPool.getInstance().getMaxSize()));
+            OutputFile.setSync(Utils.optBoolean(options, "syncWrites", OutputFile.isSync()));
+            resultCache.setMaxSize(Utils.optInt(options, "resultCacheSize", resultCache.getMaxSize()));
+            janitor.configure(
+                    Utils.optInt(options, "cacheDirMaxSize", janitor.getMaxSize()),
+                    Utils.optInt(options, "cacheDirMaxFiles", janitor.getMaxFiles()),
+                    Utils.optInt(options, "cacheDirMaxAge", janitor.getMaxAge()));
+            janitor.schedule();
+
+            WritableMap result = Arguments.createMap();
+            result.putInt("poolSize", markerExecutor.getPoolSize());
+            result.putInt("queueSize", markerExecutor.getQueueSize());
+            result.putString("rejectPolicy", markerExecutor.getRejectPolicy());
+            result.putInt("markerCacheSize", markerCache.getMaxSize());
+            result.putInt("textCacheSize", textCache.getMaxSize());
+            result.putInt("bitmapPoolSize", BitmapPool.getInstance().getMaxSize());
+            result.putBoolean("syncWrites", OutputFile.isSync());
+            result.putInt("resultCacheSize", resultCache.getMaxSize());
+            result.putInt("cacheDirMaxSize", janitor.getMaxSize());
+            result.putInt("cacheDirMaxFiles", janitor.getMaxFiles());
+            result.putInt("cacheDirMaxAge", janitor.getMaxAge());
+            promise.resolve(result);
+        } catch (Exception e) {
+            Log.d(IMAGE_MARKER_TAG, "error：" + e.getMessage());
+            promise.reject("error", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * hit/miss counters of the in-process caches, the bitmap pool and the result cache, and what the janitor keeps
+     * @param promise
+     */
+    @ReactMethod
+    public void getCacheStats(Promise promise) {
+        WritableMap result = Arguments.createMap();
+        result.putMap("marker", markerCache.getStats());
+        result.putMap("text", textCache.getStats());
+        result.putMap("textRuns", textRuns.getStats());
+        result.putMap("pool", BitmapPool.getInstance().getStats());
+        result.putMap("result", resultCache.getStats());
+        result.putMap("cacheDir", janitor.getStats());
+        promise.resolve(result);
+    }
+
+    /**
+     * p50/p95/p99 of the jobs and of their fetch, decode, scale, composite, encode and write stages, with counts and failures
+     * @param reset start over once read
+     * @param promise
+     */
+    @ReactMethod
+    public void getMetrics(boolean reset, Promise promise) {
+        MarkerMetrics metrics = MarkerMetrics.getInstance();
+        WritableMap result = metrics.getStats();
+        if (reset) {
+            metrics.clear();
+        }
+        promise.resolve(result);
+    }
+
+    /**
+     * stop a job: it rejects with E_CANCELLED, its fetches are closed and its remaining stages skipped
+     * @param jobId
+     * @param promise resolves with whether a job with this id was in flight
+     */
+    @ReactMethod
+    public void cancel(String jobId, Promise promise) {
+        promise.resolve(jobs.cancel(jobId));
+    }
+
+    /**
+     * @param tag null for every job
+     * @param promise resolves with the number of jobs cancelled
+     */
+    @ReactMethod
+    public void cancelAll(@Nullable String tag, Promise promise) {
+        promise.resolve(jobs.cancelAll(tag));
+    }
+
     private Resources getResources() {
         return this.context.getResources();
     }
@@ -84,316 +233,1043 @@ public class ImageMarkerManager extends ReactContextBaseJavaModule {
         return uri.startsWith("http://") || uri.startsWith("https://") || uri.startsWith("file://") || (uri.startsWith("data:") && uri.contains("base64") && (uri.contains("img") || uri.contains("image")));
     }
 
+    /**
+     * receives a decoded (and scaled) bitmap on a worker thread of the marker pool
+     */
+    private interface BitmapHandler {
+        void onBitmap(Bitmap bitmap) throws Exception;
+    }
+
+    /**
+     * receives the background of a job, decoded, or as tiles when it is too big for memory
+     */
+    private static abstract class BackgroundHandler implements BitmapHandler {
+        /**
+         * the handler owns the image and has to close it
+         */
+        abstract void onTiles(TiledImage image) throws Exception;
+    }
+
+    /**
+     * a job whose result the result cache may hold
+     */
+    private interface CachedJob {
+        /**
+         * @return source identities and every parameter of the job the result depends on
+         */
+        Object[] describe();
+
+        void run(MarkerCallback callback) throws Exception;
+    }
+
+    /**
+     * run the job, or resolve with the result of an identical earlier one when the result cache has it.
+     * Only random file names are cached, a job given a filename or returning the result in memory always runs.
+     * The key stats the sources and the lookup may load the index, so both are done on a worker
+     * @param save
+     * @param callback
+     * @param job
+     */
+    private void withResultCache(SaveOptions save, final MarkerCallback callback, final CachedJob job) throws Exception {
+        if (!resultCache.isEnabled() || null != save.getFilename() || !SaveOptions.RETURN_FILE.equals(save.getReturnMode())) {
+            job.run(callback);
+            return;
+        }
+        final String saveKey = save.getCacheKey();
+        markerExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final String key = ResultCache.key(ResultCache.key(job.describe()), saveKey);
+                    String cached = resultCache.get(key);
+                    if (null != cached) {
+                        callback.resolve(cached);
+                        return;
+                    }
+                    job.run(new MarkerCallback() {
+                        @Override
+                        public MarkerJob getJob() {
+                            return callback.getJob();
+                        }
+
+                        @Override
+                        public void resolve(Object result) {
+                            if (result instanceof String) {
+                                resultCache.put(key, (String) result);
+                            }
+                            callback.resolve(result);
+                        }
+
+                        @Override
+                        public void reject(String code, String message, @Nullable Throwable e) {
+                            callback.reject(code, message, e);
+                        }
+                    });
+                } catch (Exception e) {
+                    Log.d(IMAGE_MARKER_TAG, "error：" + e.getMessage());
+                    callback.reject(e);
+                }
+            }
+        }, callback);
+    }
+
+    /**
+     * the callback of a new job, registered for cancel and cancelAll
+     * @param options jobId (a random one when missing), tag, timeout (ms), priority (high for a preview, else normal by default) and stats
+     * @param promise
+     * @return
+     */
+    private MarkerCallback startJob(@Nullable ReadableMap options, Promise promise) {
+        MarkerJob job = new MarkerJob(
+                Utils.optString(options, "jobId", UUID.randomUUID().toString()),
+                Utils.optString(options, "tag", null),
+                Utils.optInt(options, "timeout", 0),
+                Utils.optString(options, "priority", null != Utils.optMap(options, "preview") ? MarkerExecutor.PRIORITY_HIGH : MarkerExecutor.PRIORITY_NORMAL));
+        MarkerCallback callback = MarkerCallback.forJob(promise, job, Utils.optBoolean(options, "stats", false));
+        jobs.start(job);
+        return callback;
+    }
+
+    /**
+     * renders the full resolution result of a preview
+     */
+    private interface FullRender {
+        void run(MarkerCallback callback) throws Exception;
+    }
+
+    /**
+     * @param preview may be null
+     * @param callback of the preview
+     * @param render started once the preview resolved, when the preview asked for the full resolution result
+     * @return
+     */
+    private MarkerCallback withFullRender(@Nullable Preview preview, final MarkerCallback callback, final FullRender render) {
+        if (null == preview || !preview.isFull()) {
+            return callback;
+        }
+        return new MarkerCallback() {
+            @Override
+            public MarkerJob getJob() {
+                return callback.getJob();
+            }
+
+            @Override
+            public void resolve(Object result) {
+                callback.resolve(result);
+                if (null == callback.getJob().getCancellation()) {
+                    startFullRender(callback.getJob(), render);
+                }
+            }
+
+            @Override
+            public void reject(String code, String message, @Nullable Throwable e) {
+                callback.reject(code, message, e);
+            }
+        };
+    }
+
+    /**
+     * run the full resolution render of a preview as a low priority job with the id of the preview
+     * and {@link Preview#FULL_JOB_SUFFIX}, its result or error is sent as an event
+     * @param preview the job of the preview
+     * @param render
+     */
+    private void startFullRender(MarkerJob preview, FullRender render) {
+        final String jobId = preview.getId() + Preview.FULL_JOB_SUFFIX;
+        MarkerCallback callback = new MarkerCallback(new MarkerJob(jobId, preview.getTag(), 0, MarkerExecutor.PRIORITY_LOW)) {
+            @Override
+            public void resolve(Object result) {
+                if (!getJob().settle()) {
+                    return;
+                }
+                getJobMetrics().finish();
+                MarkerMetrics.getInstance().record(getJobMetrics(), false);
+                emitFullRender(jobId, result, null, null);
+            }
+
+            @Override
+            public void reject(String code, String message, @Nullable Throwable e) {
+                if (!getJob().settle()) {
+                    return;
+                }
+                getJobMetrics().finish();
+                if (MarkerCancelledException.CODE_CANCELLED.equals(code)) {
+                    MarkerMetrics.getInstance().recordCancelled();
+                } else {
+                    MarkerMetrics.getInstance().record(getJobMetrics(), true);
+                }
+                emitFullRender(jobId, null, code, message);
+            }
+        };
+        try {
+            jobs.start(callback.getJob());
+            render.run(callback);
+        } catch (Exception e) {
+            Log.d(IMAGE_MARKER_TAG, "error：" + e.getMessage());
+            callback.reject(e);
+        }
+    }
+
+    /**
+     * tell JS the full resolution render of a preview is done
+     * @param jobId
+     * @param result path, base64 or blob data, null on failure
+     * @param code error code, null on success
+     * @param message
+     */
+    private void emitFullRender(String jobId, @Nullable Object result, @Nullable String code, @Nullable String message) {
+        try {
+            WritableMap event = Arguments.createMap();
+            event.putString("jobId", jobId);
+            if (null != code) {
+                event.putString("code", code);
+                event.putString("error", message);
+            } else if (result instanceof WritableMap) {
+                event.putMap("result", (WritableMap) result);
+            } else {
+                event.putString("result", String.valueOf(result));
+            }
+            context.getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class).emit(Preview.EVENT_FULL_RESOLUTION, event);
+        } catch (Exception e) {
+            Log.d(IMAGE_MARKER_TAG, "can't emit full resolution result", e);
+        }
+    }
+
+    /**
+     * default size of previews, px of the longer side of the screen
+     */
+    private int getScreenSize() {
+        DisplayMetrics metrics = getResources().getDisplayMetrics();
+        return Math.max(metrics.widthPixels, metrics.heightPixels);
+    }
+
+    /**
+     * the method part of a result cache key, previews are kept apart from full resolution results
+     */
+    private static String cacheMethod(String method, @Nullable Preview preview) {
+        return null != preview ? method + ":" + preview.getCacheKey() : method;
+    }
+
+    /**
+     * @param priority one of the MarkerExecutor.PRIORITY_* values
+     * @return the priority of the Fresco requests of a job
+     */
+    static Priority toRequestPriority(String priority) {
+        if (MarkerExecutor.PRIORITY_HIGH.equals(priority)) {
+            return Priority.HIGH;
+        }
+        if (MarkerExecutor.PRIORITY_LOW.equals(priority)) {
+            return Priority.LOW;
+        }
+        return Priority.MEDIUM;
+    }
+
+    private static String describeMap(@Nullable ReadableMap map) {
+        return null == map ? null : new TreeMap<>(map.toHashMap()).toString();
+    }
+
+    /**
+     * decode and scale the image on the worker pool, both for Fresco images and drawable resources,
+     * so the bridge thread never does more than parsing arguments and enqueueing the job
+     * @param uri
+     * @param scale
+     * @param callback rejected on any failure, including a full queue
+     * @param handler called on a worker thread with the scaled bitmap
+     */
+    private void loadBitmap(final String uri, final Float scale, final MarkerCallback callback, final BitmapHandler handler) {
+        loadBitmap(uri, scale, null, callback, handler, null);
+    }
+
+    /**
+     * like {@link #loadBitmap} but local files that don't fit in memory even downsampled
+     * are handed over as tiles
+     * @param uri
+     * @param scale
+     * @param preview decode within the preview size instead, may be null
+     * @param callback
+     * @param handler
+     */
+    private void loadBackground(final String uri, final Float scale, @Nullable final Preview preview, final MarkerCallback callback, final BackgroundHandler handler) {
+        loadBitmap(uri, scale, preview, callback, handler, handler);
+    }
+
+    private void loadBitmap(final String uri, final Float scale, @Nullable final Preview preview, final MarkerCallback callback, final BitmapHandler handler, @Nullable final BackgroundHandler tileHandler) {
+        final MemoryBudget budget = new MemoryBudget();
+        if (isFrescoImg(uri)) {
+            if (uri.startsWith("file://")) {
+                // read the size first so Fresco can decode close to the target size, within the memory budget
+                markerExecutor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        long start = JobMetrics.now();
+                        // rotated like the bitmap Fresco hands back, or the residual scale would stretch it
+                        BitmapFactory.Options bounds = Utils.decodeOrientedBounds(Uri.parse(uri).getPath());
+                        callback.getJobMetrics().record(JobMetrics.STAGE_DECODE, start, 0);
+                        // a preview is decoded straight at its size
+                        Float target = null != preview ? preview.fit(scale, bounds.outWidth, bounds.outHeight) : scale;
+                        fetchBitmap(uri, target, bounds.outWidth, bounds.outHeight, null, budget, callback, handler, tileHandler);
+                    }
+                }, callback);
+            } else {
+                fetchBitmap(uri, scale, -1, -1, preview, budget, callback, handler, null);
+            }
+        } else {
+            markerExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        int resId = getDrawableResourceByName(uri);
+                        if (resId == 0) {
+                            Log.d(IMAGE_MARKER_TAG, "cannot find res");
+                            callback.reject( "error","Can't get resource by the path: " + uri);
+                            return;
+                        }
+                        Log.d(IMAGE_MARKER_TAG, "res：" + resId);
+
+                        long start = JobMetrics.now();
+                        Bitmap bitmap = Utils.decodeResource(getResources(), resId, scale, budget);
+                        if (bitmap == null) {
+                            callback.reject( "marker error","Can't decode the resource: " + uri);
+                            return;
+                        }
+                        if (null != preview) {
+                            Bitmap fitted = Utils.scaleBitmap(bitmap, preview.fit(1F, bitmap.getWidth(), bitmap.getHeight()), budget);
+                            if (fitted != bitmap) {
+                                BitmapPool.getInstance().put(bitmap);
+                                bitmap = fitted;
+                            }
+                        }
+                        callback.getJobMetrics().record(JobMetrics.STAGE_DECODE, start, bitmap.getByteCount());
+                        reportFallback(uri, budget);
+                        handler.onBitmap(bitmap);
+                    } catch (Exception | OutOfMemoryError e) {
+                        Log.d(IMAGE_MARKER_TAG, "error：" + e.getMessage());
+                        e.printStackTrace();
+                        callback.reject(e);
+                    }
+                }
+            }, callback);
+        }
+    }
+
+    /**
+     * fetch and decode an image with Fresco, then scale it to the exact target size
+     * @param uri
+     * @param scale
+     * @param sourceWidth size of the source when known, Fresco then decodes it at about the target size
+     * @param sourceHeight
+     * @param budget downsamples the decode when the target doesn't fit in memory
+     * @param callback
+     * @param handler
+     * @param tileHandler takes over when the image doesn't fit in memory, may be null
+     * @param preview fitted once decoded, for sources of unknown size, may be null
+     */
+    private void fetchBitmap(final String uri, final Float scale, final int sourceWidth, final int sourceHeight, @Nullable final Preview preview, final MemoryBudget budget, final MarkerCallback callback, final BitmapHandler handler, @Nullable final BackgroundHandler tileHandler) {
+        ImageRequestBuilder builder = ImageRequestBuilder.newBuilderWithSource(Uri.parse(uri));
+        final float targetScale = null != scale && scale > 0 ? scale : 1;
+        int width = -1;
+        if (sourceWidth > 0 && sourceHeight > 0) {
+            int height = Math.max(1, Math.round(sourceHeight * targetScale));
+            width = Math.max(1, Math.round(sourceWidth * targetScale));
+            try {
+                budget.plan(width, height);
+            } catch (MarkerOutOfMemoryException e) {
+                loadTiles(uri, scale, budget, e, callback, tileHandler);
+                return;
+            }
+            width = Math.max(1, width / budget.getSampleSize());
+            height = Math.max(1, height / budget.getSampleSize());
+            builder.setResizeOptions(new ResizeOptions(width, height));
+        }
+        final int targetWidth = width;
+        final long fetchStart = JobMetrics.now();
+        final MarkerJob job = callback.getJob();
+        builder.setRequestPriority(toRequestPriority(job.getPriority()));
+        final DataSource<CloseableReference<CloseableImage>> dataSource = Fresco.getImagePipeline().fetchDecodedImage(builder.build(), null);
+        // a cancelled job stops the fetch, the subscriber then gets onCancellation
+        final Runnable closeDataSource = new Runnable() {
+            @Override
+            public void run() {
+                dataSource.close();
+            }
+        };
+        Executor executor = markerExecutor.forCallback(callback);
+        dataSource.subscribe(new BaseBitmapDataSubscriber() {
+            @Override
+            public void onNewResultImpl(@Nullable Bitmap bitmap) {
+                job.removeOnCancel(closeDataSource);
+                if (bitmap != null) {
+                    try {
+                        job.throwIfCancelled();
+                        JobMetrics metrics = callback.getJobMetrics();
+                        metrics.record(JobMetrics.STAGE_FETCH, fetchStart, bitmap.getByteCount());
+                        long scaleStart = JobMetrics.now();
+                        Float residualScale = targetScale;
+                        if (targetWidth > 0) {
+                            // Fresco already downsampled, only the rest of the way is left
+                            residualScale = Math.abs(bitmap.getWidth() - targetWidth) <= 1 ? 1F : (float) targetWidth / bitmap.getWidth();
+                        } else if (null != preview) {
+                            residualScale = preview.fit(targetScale, bitmap.getWidth(), bitmap.getHeight());
+                        }
+                        Bitmap scaled = Utils.scaleBitmap(bitmap, residualScale, budget);
+                        if (scaled == bitmap) {
+                            // the bitmap belongs to Fresco and is released once this callback returns,
+                            // copy it as mutable so the job can draw straight onto it
+                            scaled = Utils.copyBitmap(bitmap, budget);
+                        }
+                        scaled = Utils.ensureMutable(scaled, budget);
+                        metrics.record(JobMetrics.STAGE_SCALE, scaleStart, scaled.getByteCount());
+                        reportFallback(uri, budget);
+                        handler.onBitmap(scaled);
+                    } catch (MarkerOutOfMemoryException e) {
+                        loadTiles(uri, scale, budget, e, callback, tileHandler);
+                    } catch (Exception | OutOfMemoryError e) {
+                        Log.d(IMAGE_MARKER_TAG, "error：" + e.getMessage());
+                        e.printStackTrace();
+                        callback.reject(e);
+                    }
+                } else {
+                    callback.reject( "marker error","Can't retrieve the file from the path: " + uri);
+                }
+            }
+
+            @Override
+            public void onFailureImpl(DataSource dataSource) {
+                job.removeOnCancel(closeDataSource);
+                callback.getJobMetrics().record(JobMetrics.STAGE_FETCH, fetchStart, 0);
+                if (job.isCancelled()) {
+                    callback.reject(job.getCancellation());
+                    return;
+                }
+                Throwable cause = dataSource.getFailureCause();
+                if (cause instanceof OutOfMemoryError && sourceWidth > 0 && budget.degrade(true)) {
+                    // try again with a smaller decode
+                    BitmapPool.getInstance().clear();
+                    fetchBitmap(uri, scale, sourceWidth, sourceHeight, preview, budget, callback, handler, tileHandler);
+                } else if (cause instanceof OutOfMemoryError) {
+                    loadTiles(uri, scale, budget, new MarkerOutOfMemoryException(sourceWidth, sourceHeight, budget.getFallback(), budget.getAttempts()), callback, tileHandler);
+                } else {
+                    callback.reject( "error","Can't request the image from the uri: " + uri, cause);
+                }
+            }
+
+            @Override
+            public void onCancellation(DataSource<CloseableReference<CloseableImage>> dataSource) {
+                job.removeOnCancel(closeDataSource);
+                MarkerCancelledException cancellation = job.getCancellation();
+                callback.reject(null != cancellation ? cancellation : new MarkerCancelledException(MarkerCancelledException.CODE_CANCELLED, "The fetch of " + uri + " was cancelled"));
+            }
+        }, executor);
+        job.addOnCancel(closeDataSource);
+    }
+
+    /**
+     * last resort for a local file that doesn't fit in memory: composite it tile by tile
+     * @param uri
+     * @param scale rounded to a power of two
+     * @param budget
+     * @param cause rejected with when tiles can't be used
+     * @param callback
+     * @param tileHandler
+     */
+    private void loadTiles(String uri, Float scale, MemoryBudget budget, MarkerOutOfMemoryException cause, MarkerCallback callback, @Nullable BackgroundHandler tileHandler) {
+        if (null == tileHandler || !uri.startsWith("file://")) {
+            callback.reject(cause);
+            return;
+        }
+        String path = Uri.parse(uri).getPath();
+        int degree = Utils.readDegree(path);
+        if (degree != 0) {
+            // bands are decoded as stored, a rotated photo would be marked and saved sideways
+            callback.reject(MarkerOutOfMemoryException.CODE, cause.getMessage() + ", and the tiled fallback doesn't support EXIF rotated images (" + degree + "°)", cause);
+            return;
+        }
+        TiledImage image = null;
+        try {
+            callback.getJob().throwIfCancelled();
+            long start = JobMetrics.now();
+            image = TiledImage.open(path, Utils.calculateInSampleSize(null != scale && scale > 0 ? scale : 1));
+            callback.getJobMetrics().record(JobMetrics.STAGE_DECODE, start, 0);
+            budget.useTiles();
+            reportFallback(uri, budget);
+            tileHandler.onTiles(image);
+        } catch (Exception | OutOfMemoryError e) {
+            Log.d(IMAGE_MARKER_TAG, "error：" + e.getMessage());
+            if (null != image) {
+                image.close();
+            }
+            callback.reject(e);
+        }
+    }
+
+    /**
+     * tell JS when an image was degraded to fit in memory
+     * @param uri
+     * @param budget
+     */
+    private void reportFallback(String uri, MemoryBudget budget) {
+        if (!budget.isDegraded()) {
+            return;
+        }
+        Log.w(IMAGE_MARKER_TAG, "memory fallback for " + uri + ": " + budget.getFallback());
+        try {
+            WritableMap event = budget.toMap();
+            event.putString("uri", uri);
+            context.getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class).emit(MemoryBudget.EVENT_FALLBACK, event);
+        } catch (Exception e) {
+            Log.d(IMAGE_MARKER_TAG, "can't emit memory fallback", e);
+        }
+    }
+
+    /**
+     * like {@link #loadBitmap} but served from the marker cache when possible,
+     * the bitmap passed to the handler has to be given back with markerCache.release
+     * @param uri
+     * @param markerScale
+     * @param callback
+     * @param handler
+     */
+    private void loadMarker(final String uri, final Float markerScale, final MarkerCallback callback, final BitmapHandler handler) throws Exception {
+        final String key = MarkerBitmapCache.key(uri, markerScale, Bitmap.Config.ARGB_8888);
+        Bitmap cached = markerCache.acquire(key);
+        if (cached != null) {
+            try {
+                handler.onBitmap(cached);
+            } catch (Exception e) {
+                markerCache.release(cached);
+                throw e;
+            }
+            return;
+        }
+        loadBitmap(uri, markerScale, callback, new BitmapHandler() {
+            @Override
+            public void onBitmap(Bitmap bitmap) throws Exception {
+                Bitmap marker = markerCache.put(key, bitmap);
+                try {
+                    handler.onBitmap(marker);
+                } catch (Exception e) {
+                    markerCache.release(marker);
+                    throw e;
+                }
+            }
+        });
+    }
+
+    /**
+     * load the background, then the marker and draw it
+     * @param preview render at display size with the marker remapped, may be null
+     */
+    private void markImage(
+            final String uri,
+            final ReadableMap marker,
+            final String position,
+            final Integer X,
+            final Integer Y,
+            final Float scale,
+            final Float markerScale,
+            @Nullable final Preview preview,
+            final SaveOptions save,
+            final MarkerCallback callback)
+    {
+        loadBackground(uri, scale, preview, callback, new BackgroundHandler() {
+            @Override
+            public void onBitmap(Bitmap bg) {
+                float ratio = null != preview ? preview.getRatio() : 1F;
+                markImage(bg, null, marker, position, Preview.remap(X, ratio), Preview.remap(Y, ratio), Preview.remap(markerScale, ratio), save, callback);
+            }
+
+            @Override
+            void onTiles(TiledImage image) {
+                float ratio = null != preview ? preview.getRatio() : 1F;
+                markImage(null, image, marker, position, Preview.remap(X, ratio), Preview.remap(Y, ratio), Preview.remap(markerScale, ratio), save, callback);
+            }
+        });
+    }
+
+    /**
+     * load the marker and draw it on the background
+     * @param bg decoded background, or null when it comes as tiles
+     * @param tiles background too big for memory, closed when done
+     */
     private void markImage(
             final Bitmap bg,
+            @Nullable final TiledImage tiles,
             ReadableMap source,
             final String position,
             final Integer X,
             final Integer Y,
             final Float markerScale,
-            final int quality,
-            final String dest,
-            final Promise promise)
+            final SaveOptions save,
+            final MarkerCallback callback)
     {
         try {
-
-//            String resultFile = generateCacheFilePathForMarker(imgSavePath, filename);
-
             final String uri = source.getString(PROP_ICON_URI);
 
             Log.d(IMAGE_MARKER_TAG, uri);
             Log.d(IMAGE_MARKER_TAG, source.toString());
 
-            if (isFrescoImg(uri)) {
-                ImageRequest imageRequest = ImageRequest.fromUri(uri);
-                DataSource<CloseableReference<CloseableImage>> dataSource = Fresco.getImagePipeline().fetchDecodedImage(imageRequest, null);
-                Executor executor = Executors.newSingleThreadExecutor();
-                dataSource.subscribe(new BaseBitmapDataSubscriber() {
-                    @Override
-                    public void onNewResultImpl(@Nullable Bitmap bitmap) {
-                        if (bitmap != null) {
-                            Bitmap mark = Utils.scaleBitmap(bitmap, markerScale);
+            loadMarker(uri, markerScale, new MarkerCallback() {
+                @Override
+                public MarkerJob getJob() {
+                    return callback.getJob();
+                }
 
-                            markImageByBitmap(bg, mark, position, X, Y, quality, dest, promise);
-                        } else {
-                            promise.reject( "marker error","Can't retrieve the file from the markerpath: " + uri);
-                        }
-                    }
+                @Override
+                public void resolve(Object result) {
+                    callback.resolve(result);
+                }
 
-                    @Override
-                    public void onFailureImpl(DataSource dataSource) {
-                        promise.reject( "error","Can't request the image from the uri: " + uri, dataSource.getFailureCause());
-                    }
-                }, executor);
-            } else {
-                int resId = getDrawableResourceByName(uri);
-                if (resId == 0) {
-                    Log.d(IMAGE_MARKER_TAG, "cannot find res");
-                    promise.reject( "error","Can't get resource by the path: " + uri);
-                } else {
-                    Log.d(IMAGE_MARKER_TAG, "res：" + resId);
-
-                    Resources r = this.getResources();
-//                    InputStream is = r.openRawResource(resId);
-                    Bitmap bitmap = BitmapFactory.decodeResource(r, resId);
-//                    Bitmap bitmap = BitmapFactory.decodeStream(is);
-                    Log.d(IMAGE_MARKER_TAG, bitmap.getHeight() + "");
-                    Bitmap mark = Utils.scaleBitmap(bitmap, markerScale);
-                    Log.d(IMAGE_MARKER_TAG, mark.getHeight() + "");
-
-                    if (bitmap != null && !bitmap.isRecycled() && markerScale != 1) {
-                        bitmap.recycle();
-                        System.gc();
+                @Override
+                public void reject(String code, String message, @Nullable Throwable e) {
+                    // the marker couldn't be loaded, the background won't be used
+                    releaseBackground(bg, tiles);
+                    callback.reject(code, message, e);
+                }
+            }, new BitmapHandler() {
+                @Override
+                public void onBitmap(Bitmap mark) {
+                    if (tiles != null) {
+                        markTilesByBitmap(tiles, mark, position, X, Y, save, true, callback);
+                    } else {
+                        markImageByBitmap(bg, mark, position, X, Y, save, true, callback);
                     }
-                    markImageByBitmap(bg, mark, position, X, Y, quality, dest, promise);
                 }
-            }
+            });
         } catch (Exception e) {
             Log.d(IMAGE_MARKER_TAG, "error：" + e.getMessage());
             e.printStackTrace();
-            promise.reject("error", e.getMessage(), e);
+            releaseBackground(bg, tiles);
+            callback.reject(e);
+        }
+    }
+
+    /**
+     * give back the background of a job that won't draw on it
+     * @param bg back to the bitmap pool, may be null
+     * @param tiles closed, may be null
+     */
+    private static void releaseBackground(@Nullable Bitmap bg, @Nullable TiledImage tiles) {
+        if (bg != null) {
+            BitmapPool.getInstance().put(bg);
+        }
+        if (tiles != null) {
+            tiles.close();
         }
     }
 
 
+    /**
+     *
+     * @param bg
+     * @param marker
+     * @param position
+     * @param X
+     * @param Y
+     * @param save
+     * @param releaseMarker give the marker back to the marker cache once drawn, false when the caller releases it, e.g. in a batch
+     * @param callback
+     */
     private void markImageByBitmap (
             Bitmap bg,
             Bitmap marker,
             String position,
             Integer X,
             Integer Y,
-            int quality,
-            String dest,
-            final Promise promise
+            SaveOptions save,
+            boolean releaseMarker,
+            final MarkerCallback callback
     ) {
-        BufferedOutputStream bos = null;
-        Bitmap icon = null;
+        MarkerOutput output = null;
+        // given back to the pool in finally: the background, until its mutable copy replaces it
+        Bitmap icon = bg;
         try {
 
-            // 原图生成 - start
-
-
-
             int height = bg.getHeight();
             int width =  bg.getWidth();
+            String format = save.resolveFormat(bg.hasAlpha());
+            JobMetrics metrics = callback.getJobMetrics();
+            long start = JobMetrics.now();
 
+            callback.getJob().throwIfCancelled();
+            // 直接在原图上绘制, 只有不可变的原图才需要复制
+            icon = Utils.ensureMutable(bg);
 
-            icon = Utils.getBlankBitmap(width, height);
-
-            //初始化画布 绘制的图像到icon上
             //建立画笔
             Paint photoPaint = new Paint();
             //获取跟清晰的图像采样
             photoPaint.setDither(true);
-            //过滤一些
 
-//            if (percent > 1) {
-//                prePhoto = Bitmap.createScaledBitmap(prePhoto, width, height, true);
-//            }
             Canvas canvas = new Canvas(icon);
 
-
-            canvas.drawBitmap(bg, 0, 0, photoPaint);
-
-            // 原图生成 - end
-
-
             if (position != null) {
                 Position pos = getRectFromPosition(position, marker.getWidth(), marker.getHeight(), width, height);
                 canvas.drawBitmap(marker, pos.getX(), pos.getY(), photoPaint);
             } else {
-                canvas.drawBitmap(marker, X, Y, photoPaint);
+                canvas.drawBitmap(marker, null != X ? X : 0, null != Y ? Y : 0, photoPaint);
             }
 
-            if (bg != null && !bg.isRecycled()) {
-                bg.recycle();
-                System.gc();
-            }
+            metrics.record(JobMetrics.STAGE_COMPOSITE, start, icon != bg ? icon.getByteCount() : 0);
+            callback.getJob().throwIfCancelled();
+            output = openOutput(save, format);
 
-            if (marker != null && !marker.isRecycled()) {
-                marker.recycle();
-                System.gc();
+            start = JobMetrics.now();
+            save.write(icon, format, output.getStream());
+            metrics.record(JobMetrics.STAGE_ENCODE, start, 0);
+            //保存成功的
+            callback.resolve(commit(output, callback));
+        } catch (Exception | OutOfMemoryError e) {
+            e.printStackTrace();
+            callback.reject(e);
+        } finally {
+            if (output != null) {
+                output.close();
+            }
+            if (releaseMarker) {
+                markerCache.release(marker);
             }
+            BitmapPool.getInstance().put(icon);
+        }
+    }
+
+    /**
+     *
+     * @param bg
+     * @param mark
+     * @param position
+     * @param textStyle
+     * @param X
+     * @param Y
+     * @param save
+     * @param callback
+     */
+    private void markImageByText(
+            Bitmap bg,
+            String mark,
+            String position,
+            TextStyle textStyle,
+            Integer X,
+            Integer Y,
+            SaveOptions save,
+            final MarkerCallback callback
+    ) {
+        MarkerOutput output = null;
+        Bitmap icon = null;
+        Bitmap textTile = null;
+        try {
 
+            int height = bg.getHeight();
+            int width =  bg.getWidth();
+            String format = save.resolveFormat(bg.hasAlpha());
+            JobMetrics metrics = callback.getJobMetrics();
+            long start = JobMetrics.now();
+
+            // 直接在原图上绘制, 只有不可变的原图才需要复制
+            icon = bg;
+            callback.getJob().throwIfCancelled();
+            icon = Utils.ensureMutable(bg);
+            Canvas canvas = new Canvas(icon);
+            //建立画笔
+            Paint photoPaint = new Paint();
+            //获取跟清晰的图像采样
+            photoPaint.setDither(true);
 
-            // 保存
-            // canvas.save(Canvas.ALL_SAVE_FLAG);
-            canvas.save();
-            // 存储
-            canvas.restore();
-            bos = new BufferedOutputStream(new FileOutputStream(dest));
+            textTile = acquireTextTile(textStyle, mark, width);
+            Position pos = getTextPosition(position, X, Y, textStyle.getTextWidth(textTile), textStyle.getTextHeight(textTile), width, height);
 
-//            int quaility = (int) (100 / percent > 80 ? 80 : 100 / percent);
-            icon.compress(Bitmap.CompressFormat.PNG, quality, bos);
-            bos.flush();
+            canvas.drawBitmap(textTile, pos.getX() - textStyle.getPaddingLeft(), pos.getY() - textStyle.getPaddingTop(), photoPaint);
+
+            metrics.record(JobMetrics.STAGE_COMPOSITE, start, icon != bg ? icon.getByteCount() : 0);
+            callback.getJob().throwIfCancelled();
+            output = openOutput(save, format);
+
+            start = JobMetrics.now();
+            save.write(icon, format, output.getStream());
+            metrics.record(JobMetrics.STAGE_ENCODE, start, 0);
             //保存成功的
-            promise.resolve(dest);
-        } catch (Exception e) {
+            callback.resolve(commit(output, callback));
+        } catch (Exception | OutOfMemoryError e) {
             e.printStackTrace();
-            promise.reject("error", e.getMessage(), e);
+            callback.reject(e);
+        } finally {
+            if (output != null) {
+                output.close();
+            }
+            if (textTile != null) {
+                textCache.release(textTile);
+            }
+            BitmapPool.getInstance().put(icon);
+        }
+    }
+
+    /**
+     * the laid out text is rasterized once per style, text and width, repeated stamps are a single drawBitmap.
+     * Give the tile back with textCache.release
+     * @param textStyle
+     * @param mark
+     * @param width
+     * @return
+     */
+    private Bitmap acquireTextTile(TextStyle textStyle, String mark, int width) {
+        String tileKey = textStyle.tileKey(mark, width);
+        Bitmap textTile = textCache.acquire(tileKey);
+        if (textTile == null) {
+            textTile = textCache.put(tileKey, textStyle.renderTile(mark, width, getReactApplicationContext().getAssets()));
+        }
+        return textTile;
+    }
+
+    /**
+     * top left corner of the text, padding excluded
+     */
+    private static Position getTextPosition(String position, Integer X, Integer Y, int textWidth, int textHeight, int width, int height) {
+        float x = 20;
+        float y = 20;
+
+        if (position != null) {
+            if("topCenter".equals(position)) {
+                x = (width - textWidth)/2;
+            } else if("topRight".equals(position)) {
+                x = (width - textWidth);
+            } else if("center".equals(position)) {
+                x = (width - textWidth) / 2;
+                y = (height - textHeight) / 2;
+            } else if("bottomLeft".equals(position)) {
+                y = (height - textHeight);
+            } else if("bottomCenter".equals(position)) {
+                x = (width - textWidth) / 2;
+                y = (height - textHeight);
+            } else if("bottomRight".equals(position)) {
+                x = (width - textWidth);
+                y = (height - textHeight);
+            }
+        } else {
+            if (null != X) {
+                x = X;
+            }
+            if ( null != Y) {
+                y = Y;
+            }
+        }
+        return new Position(x, y);
+    }
+
+    /**
+     * {@link #markImageByText} for a background that only fits in memory tile by tile, WebP is written as JPEG or PNG
+     * @param image closed when done
+     */
+    private void markTilesByText(
+            TiledImage image,
+            String mark,
+            String position,
+            TextStyle textStyle,
+            Integer X,
+            Integer Y,
+            SaveOptions save,
+            final MarkerCallback callback
+    ) {
+        MarkerOutput output = null;
+        Bitmap textTile = null;
+        try {
+            int width = image.getWidth();
+            textTile = acquireTextTile(textStyle, mark, width);
+            Position pos = getTextPosition(position, X, Y, textStyle.getTextWidth(textTile), textStyle.getTextHeight(textTile), width, image.getHeight());
+
+            Paint photoPaint = new Paint();
+            photoPaint.setDither(true);
+
+            String format = SaveOptions.getStripFormat(save.resolveFormat(image.hasAlpha()));
+            callback.getJob().throwIfCancelled();
+            output = openOutput(save, format);
+            long start = JobMetrics.now();
+            image.composite(textTile, pos.getX() - textStyle.getPaddingLeft(), pos.getY() - textStyle.getPaddingTop(), photoPaint,
+                    save.createStripEncoder(format, output.getStream(), image.hasAlpha()), new MemoryBudget());
+            callback.getJobMetrics().record(JobMetrics.STAGE_ENCODE, start, 0);
+            callback.resolve(commit(output, callback));
+        } catch (Exception | OutOfMemoryError e) {
+            e.printStackTrace();
+            callback.reject(e);
         } finally {
-            if (bos != null) {
+            if (output != null) {
+                output.close();
+            }
+            if (textTile != null) {
+                textCache.release(textTile);
+            }
+            image.close();
+        }
+    }
+
+    /**
+     * mark a local JPEG without decoding it, see {@link JpegTranscoder}: only the blocks under the text are
+     * encoded again, with the tables of the source. Taken at scale 1 when the requested quality is at least
+     * the one of the source, anything a re-encode at that quality would throw away is gone already.
+     * @param path
+     * @return false when the image can't take the fast path, nothing was resolved then
+     */
+    private boolean markJpegByText(
+            String path,
+            String mark,
+            String position,
+            TextStyle textStyle,
+            Integer X,
+            Integer Y,
+            SaveOptions save,
+            final MarkerCallback callback
+    ) {
+        if (Utils.readDegree(path) != 0) {
+            // the regular path writes the image upright
+            return false;
+        }
+        BufferedInputStream bis = null;
+        MarkerOutput output = null;
+        Bitmap textTile = null;
+        try {
+            JobMetrics metrics = callback.getJobMetrics();
+            long start = JobMetrics.now();
+            bis = new BufferedInputStream(new FileInputStream(path), 64 * 1024);
+            JpegTranscoder transcoder = new JpegTranscoder(bis);
+            metrics.record(JobMetrics.STAGE_DECODE, start, 0);
+            if (!transcoder.isSupported()) {
+                Log.d(IMAGE_MARKER_TAG, "no jpeg fast path: " + transcoder.getUnsupportedReason());
+                return false;
+            }
+            if (!SaveOptions.FORMAT_JPEG.equals(save.resolveFormat(false)) || transcoder.estimateQuality() > save.getQuality()) {
+                return false;
+            }
+            int width = transcoder.getWidth();
+            textTile = acquireTextTile(textStyle, mark, width);
+            Position pos = getTextPosition(position, X, Y, textStyle.getTextWidth(textTile), textStyle.getTextHeight(textTile), width, transcoder.getHeight());
+
+            int[] pixels = new int[textTile.getWidth() * textTile.getHeight()];
+            textTile.getPixels(pixels, 0, textTile.getWidth(), 0, 0, textTile.getWidth(), textTile.getHeight());
+            JpegTranscoder.Overlay overlay = new JpegTranscoder.Overlay(pixels, textTile.getWidth(), textTile.getHeight(),
+                    Math.round(pos.getX() - textStyle.getPaddingLeft()), Math.round(pos.getY() - textStyle.getPaddingTop()));
+
+            callback.getJob().throwIfCancelled();
+            output = openOutput(save, SaveOptions.FORMAT_JPEG);
+            start = JobMetrics.now();
+            transcoder.transcode(output.getStream(), overlay);
+            metrics.record(JobMetrics.STAGE_ENCODE, start, 0);
+            Log.d(IMAGE_MARKER_TAG, "jpeg fast path, blocks: " + transcoder.getTouchedBlocks() + "/" + transcoder.getTotalBlocks());
+            callback.resolve(commit(output, callback));
+            return true;
+        } catch (MarkerCancelledException e) {
+            callback.reject(e);
+            return true;
+        } catch (Exception e) {
+            // corrupt or truncated data, the decoder of the regular path is more forgiving
+            Log.d(IMAGE_MARKER_TAG, "error：" + e.getMessage());
+            return false;
+        } finally {
+            if (bis != null) {
                 try {
-                    bos.close();
+                    bis.close();
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
             }
-            if (icon != null && !icon.isRecycled()) {
-                icon.recycle();
-                icon = null;
-                System.gc();
+            if (output != null) {
+                output.close();
+            }
+            if (textTile != null) {
+                textCache.release(textTile);
+            }
+        }
+    }
+
+    /**
+     * load the background and mark it with text, local JPEGs kept at their size go through {@link #markJpegByText}
+     * @param preview render at display size with the text remapped, may be null
+     */
+    private void markText(
+            final String uri,
+            final Float scale,
+            final String mark,
+            final String position,
+            final TextStyle textStyle,
+            final Integer X,
+            final Integer Y,
+            @Nullable final Preview preview,
+            final SaveOptions save,
+            final MarkerCallback callback
+    ) {
+        final BackgroundHandler handler = new BackgroundHandler() {
+            @Override
+            public void onBitmap(Bitmap bg) {
+                float ratio = null != preview ? preview.getRatio() : 1F;
+                markImageByText(bg, mark, position, textStyle.scale(ratio), Preview.remap(X, ratio), Preview.remap(Y, ratio), save, callback);
+            }
+
+            @Override
+            void onTiles(TiledImage image) {
+                float ratio = null != preview ? preview.getRatio() : 1F;
+                markTilesByText(image, mark, position, textStyle.scale(ratio), Preview.remap(X, ratio), Preview.remap(Y, ratio), save, callback);
             }
+        };
+        if (!uri.startsWith("file://") || null == scale || scale != 1 || null != preview) {
+            loadBackground(uri, scale, preview, callback, handler);
+            return;
         }
+        markerExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (!markJpegByText(Uri.parse(uri).getPath(), mark, position, textStyle, X, Y, save, callback)) {
+                    loadBackground(uri, scale, null, callback, handler);
+                }
+            }
+        }, callback);
     }
 
     /**
-     *
-     * @param bg
-     * @param mark
-     * @param position
-     * @param color
-     * @param fontName
-     * @param fontSize
-     * @param X
-     * @param Y
-     * @param quality
-     * @param dest
-     * @param promise
+     * {@link #markImageByBitmap} for a background that only fits in memory tile by tile, WebP is written as JPEG or PNG
+     * @param image closed when done
      */
-    private void markImageByText(
-            Bitmap bg,
-            String mark,
+    private void markTilesByBitmap(
+            TiledImage image,
+            Bitmap marker,
             String position,
-            String color,
-            String fontName,
-            Integer fontSize,
-            ShadowLayerStyle shadowLayerStyle,
             Integer X,
             Integer Y,
-            int quality,
-            String dest,
-            final Promise promise
+            SaveOptions save,
+            boolean releaseMarker,
+            final MarkerCallback callback
     ) {
-        BufferedOutputStream bos = null;
-        boolean isFinished;
-        Bitmap icon = null;
+        MarkerOutput output = null;
         try {
-
-            int height = bg.getHeight();
-            int width =  bg.getWidth();
-
-            icon = Utils.getBlankBitmap(width, height);
-            //初始化画布 绘制的图像到icon上
-            Canvas canvas = new Canvas(icon);
-            //建立画笔
             Paint photoPaint = new Paint();
-            //获取跟清晰的图像采样
             photoPaint.setDither(true);
-            //过滤一些
-//            if (percent > 1) {
-//                prePhoto = Bitmap.createScaledBitmap(prePhoto, width, height, true);
-//            }
-
-            canvas.drawBitmap(bg, 0, 0, photoPaint);
-
-            if (bg != null && !bg.isRecycled()) {
-                bg.recycle();
-                System.gc();
-            }
-
-            //设置画笔
-            //建立画笔
-            TextPaint textPaint = new TextPaint(Paint.ANTI_ALIAS_FLAG | Paint.DEV_KERN_TEXT_FLAG);
-            textPaint.setAntiAlias(true);
-            if (null != shadowLayerStyle) {
-                textPaint.setShadowLayer(shadowLayerStyle.radius, shadowLayerStyle.dx,shadowLayerStyle.dy, shadowLayerStyle.color);
-            }
-            try {
-                //设置字体失败时使用默认字体
-                textPaint.setTypeface(ReactFontManager.getInstance().getTypeface(fontName, Typeface.NORMAL, this.getReactApplicationContext().getAssets()) );
-            } catch (Exception e) {
-                textPaint.setTypeface(Typeface.DEFAULT);
-            }
-
-            Integer fSize = 14;
-            if (fontSize != null){
-                fSize = fontSize;
-            }
-
-            textPaint.setTextSize(fSize);
-            textPaint.setColor(Color.parseColor(color));
-
-            // ALIGN_CENTER, ALIGN_NORMAL, ALIGN_OPPOSITE
-            StaticLayout textLayout = new StaticLayout(mark, textPaint, canvas.getWidth(), Layout.Alignment.ALIGN_NORMAL, 1.0f, 0.0f, false);
-
-            int textHeight = textLayout.getHeight();
-            int textWidth = 0;
-            int count = textLayout.getLineCount();
-            for (int a = 0; a < count; a++) {
-                textWidth = (int) Math.ceil(Math.max(textWidth, textLayout.getLineWidth(a) + textLayout.getLineLeft(a)));
-            }
-
-            float x = 20;
-            float y = 20;
 
+            float left = null != X ? X : 0;
+            float top = null != Y ? Y : 0;
             if (position != null) {
-                if("topCenter".equals(position)) {
-                    x = (width - textWidth)/2;
-                } else if("topRight".equals(position)) {
-                    x = (width - textWidth);
-                } else if("center".equals(position)) {
-                    x = (width - textWidth) / 2;
-                    y = (height - textHeight) / 2;
-                } else if("bottomLeft".equals(position)) {
-                    y = (height - textHeight);
-                } else if("bottomCenter".equals(position)) {
-                    x = (width - textWidth) / 2;
-                    y = (height - textHeight);
-                } else if("bottomRight".equals(position)) {
-                    x = (width - textWidth);
-                    y = (height - textHeight);
-                }
-            } else {
-                if (null != X) {
-                    x = X;
-                }
-                if ( null != Y) {
-                    y = Y;
-                }
+                Position pos = getRectFromPosition(position, marker.getWidth(), marker.getHeight(), image.getWidth(), image.getHeight());
+                left = pos.getX();
+                top = pos.getY();
             }
 
-            canvas.save();
-            canvas.translate(x, y);
-            textLayout.draw(canvas);
-            canvas.restore();
-
-            bos = new BufferedOutputStream(new FileOutputStream(dest));
-
-            icon.compress(Bitmap.CompressFormat.JPEG, quality, bos);
-            bos.flush();
-            //保存成功的
-            promise.resolve(dest);
-        } catch (Exception e) {
+            String format = SaveOptions.getStripFormat(save.resolveFormat(image.hasAlpha()));
+            callback.getJob().throwIfCancelled();
+            output = openOutput(save, format);
+            long start = JobMetrics.now();
+            image.composite(marker, left, top, photoPaint, save.createStripEncoder(format, output.getStream(), image.hasAlpha()), new MemoryBudget());
+            callback.getJobMetrics().record(JobMetrics.STAGE_ENCODE, start, 0);
+            callback.resolve(commit(output, callback));
+        } catch (Exception | OutOfMemoryError e) {
             e.printStackTrace();
-            promise.reject("error", e.getMessage(), e);
+            callback.reject(e);
         } finally {
-            isFinished = true;
-            if (bos != null) {
-                try {
-                    bos.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+            if (output != null) {
+                output.close();
             }
-            if (icon != null && !icon.isRecycled()) {
-                icon.recycle();
-                System.gc();
+            if (releaseMarker) {
+                markerCache.release(marker);
             }
+            image.close();
         }
     }
 
 
+
     /**
      *
      * @param src
@@ -418,66 +1294,46 @@ public class ImageMarkerManager extends ReactContextBaseJavaModule {
             final float scale,
             final int quality,
             String filename,
+            @Nullable ReadableMap options,
             final Promise promise
     ) {
         if (TextUtils.isEmpty(mark)){
             promise.reject("error", "mark should not be empty");
+            return;
         }
 
         try {
 
             final String uri = src.getString(PROP_ICON_URI);
 
-            final String dest = generateCacheFilePathForMarker(uri, filename);
+            final Preview preview = Preview.fromOptions(options, getScreenSize());
+            // a preview doesn't take the file name of the full resolution result
+            final SaveOptions save = SaveOptions.fromOptions(options, quality, null != preview ? null : filename);
+            final SaveOptions fullSave = SaveOptions.fromOptions(options, quality, filename);
 
             final ShadowLayerStyle myShadowStyle  = null != shadowStyle? new ShadowLayerStyle(shadowStyle) : null;
 
             Log.d(IMAGE_MARKER_TAG, uri);
             Log.d(IMAGE_MARKER_TAG, src.toString());
 
-            if (isFrescoImg(uri)) {
-                ImageRequest imageRequest = ImageRequest.fromUri(uri);
-                DataSource<CloseableReference<CloseableImage>> dataSource = Fresco.getImagePipeline().fetchDecodedImage(imageRequest, null);
-                Executor executor = Executors.newSingleThreadExecutor();
-                dataSource.subscribe(new BaseBitmapDataSubscriber() {
-                    @Override
-                    public void onNewResultImpl(@Nullable Bitmap bitmap) {
-                        if (bitmap != null) {
-                            Bitmap bg = Utils.scaleBitmap(bitmap, scale);
-                            markImageByText(bg, mark, null, color, fontName, fontSize, myShadowStyle, X, Y, quality, dest, promise);
-                        } else {
-                            promise.reject( "marker error","Can't retrieve the file from the src: " + uri);
-                        }
-                    }
+            final TextStyle textStyle = new TextStyle(color, fontName, fontSize, myShadowStyle);
+            final String shadow = describeMap(shadowStyle);
+            withResultCache(save, withFullRender(preview, startJob(options, promise), new FullRender() {
+                @Override
+                public void run(MarkerCallback full) {
+                    markText(uri, scale, mark, null, textStyle, X, Y, null, fullSave, full);
+                }
+            }), new CachedJob() {
+                @Override
+                public Object[] describe() {
+                    return new Object[] {cacheMethod("addText", preview), ResultCache.sourceIdentity(uri), mark, X, Y, color, fontName, fontSize, shadow, scale};
+                }
 
-                    @Override
-                    public void onFailureImpl(DataSource dataSource) {
-                        promise.reject( "error","Can't request the image from the uri: " + uri, dataSource.getFailureCause());
-                    }
-                }, executor);
-            } else {
-                int resId = getDrawableResourceByName(uri);
-                if (resId == 0) {
-                    Log.d(IMAGE_MARKER_TAG, "cannot find res");
-                    promise.reject( "error","Can't get resource by the path: " + uri);
-                } else {
-                    Log.d(IMAGE_MARKER_TAG, "res：" + resId);
-
-                    Resources r = this.getResources();
-//                    InputStream is = r.openRawResource(resId);
-                    Bitmap bitmap = BitmapFactory.decodeResource(r, resId);
-//                    Bitmap bitmap = BitmapFactory.decodeStream(is);
-                    Log.d(IMAGE_MARKER_TAG, bitmap.getHeight() + "");
-                    Bitmap bg = Utils.scaleBitmap(bitmap, scale);
-                    Log.d(IMAGE_MARKER_TAG, bg.getHeight() + "");
-
-                    if (bitmap != null && !bitmap.isRecycled() && scale != 1) {
-                        bitmap.recycle();
-                        System.gc();
-                    }
-                    markImageByText(bg, mark, null, color, fontName, fontSize, myShadowStyle, X, Y, quality, dest, promise);
+                @Override
+                public void run(MarkerCallback callback) {
+                    markText(uri, scale, mark, null, textStyle, X, Y, preview, save, callback);
                 }
-            }
+            });
         } catch (Exception e) {
             Log.d(IMAGE_MARKER_TAG, "error：" + e.getMessage());
             e.printStackTrace();
@@ -507,16 +1363,20 @@ public class ImageMarkerManager extends ReactContextBaseJavaModule {
             final float scale,
             final Integer quality,
             String filename,
+            @Nullable ReadableMap options,
             final Promise promise
     ) {
         if (TextUtils.isEmpty(mark)){
             promise.reject("error", "mark should not be empty");
+            return;
         }
         try {
 
             final String uri = src.getString(PROP_ICON_URI);
 
-            final String dest = generateCacheFilePathForMarker(uri, filename);
+            final Preview preview = Preview.fromOptions(options, getScreenSize());
+            final SaveOptions save = SaveOptions.fromOptions(options, quality, null != preview ? null : filename);
+            final SaveOptions fullSave = SaveOptions.fromOptions(options, quality, filename);
 
             final ShadowLayerStyle myShadowStyle  = null != shadowStyle? new ShadowLayerStyle(shadowStyle) : null;
 
@@ -524,49 +1384,24 @@ public class ImageMarkerManager extends ReactContextBaseJavaModule {
             Log.d(IMAGE_MARKER_TAG, uri);
             Log.d(IMAGE_MARKER_TAG, src.toString());
 
-            if (isFrescoImg(uri)) {
-                ImageRequest imageRequest = ImageRequest.fromUri(uri);
-                DataSource<CloseableReference<CloseableImage>> dataSource = Fresco.getImagePipeline().fetchDecodedImage(imageRequest, null);
-                Executor executor = Executors.newSingleThreadExecutor();
-                dataSource.subscribe(new BaseBitmapDataSubscriber() {
-                    @Override
-                    public void onNewResultImpl(@Nullable Bitmap bitmap) {
-                        if (bitmap != null) {
-                            Bitmap bg = Utils.scaleBitmap(bitmap, scale);
-                            markImageByText(bg, mark, position, color, fontName, fontSize, myShadowStyle,null, null, quality, dest, promise);
-                        } else {
-                            promise.reject( "marker error","Can't retrieve the file from the src: " + uri);
-                        }
-                    }
+            final TextStyle textStyle = new TextStyle(color, fontName, fontSize, myShadowStyle);
+            final String shadow = describeMap(shadowStyle);
+            withResultCache(save, withFullRender(preview, startJob(options, promise), new FullRender() {
+                @Override
+                public void run(MarkerCallback full) {
+                    markText(uri, scale, mark, position, textStyle, null, null, null, fullSave, full);
+                }
+            }), new CachedJob() {
+                @Override
+                public Object[] describe() {
+                    return new Object[] {cacheMethod("addTextByPostion", preview), ResultCache.sourceIdentity(uri), mark, position, color, fontName, fontSize, shadow, scale};
+                }
 
-                    @Override
-                    public void onFailureImpl(DataSource dataSource) {
-                        promise.reject( "error","Can't request the image from the uri: " + uri, dataSource.getFailureCause());
-                    }
-                }, executor);
-            } else {
-                int resId = getDrawableResourceByName(uri);
-                if (resId == 0) {
-                    Log.d(IMAGE_MARKER_TAG, "cannot find res");
-                    promise.reject( "error","Can't get resource by the path: " + uri);
-                } else {
-                    Log.d(IMAGE_MARKER_TAG, "res：" + resId);
-
-                    Resources r = this.getResources();
-//                    InputStream is = r.openRawResource(resId);
-                    Bitmap bitmap = BitmapFactory.decodeResource(r, resId);
-//                    Bitmap bitmap = BitmapFactory.decodeStream(is);
-                    Log.d(IMAGE_MARKER_TAG, bitmap.getHeight() + "");
-                    Bitmap bg = Utils.scaleBitmap(bitmap, scale);
-                    Log.d(IMAGE_MARKER_TAG, bg.getHeight() + "");
-
-                    if (bitmap != null && !bitmap.isRecycled() && scale != 1) {
-                        bitmap.recycle();
-                        System.gc();
-                    }
-                    markImageByText(bg, mark, position, color, fontName, fontSize, myShadowStyle, null, null, quality, dest, promise);
+                @Override
+                public void run(MarkerCallback callback) {
+                    markText(uri, scale, mark, position, textStyle, null, null, preview, save, callback);
                 }
-            }
+            });
         } catch (Exception e) {
             Log.d(IMAGE_MARKER_TAG, "error：" + e.getMessage());
             e.printStackTrace();
@@ -574,149 +1409,331 @@ public class ImageMarkerManager extends ReactContextBaseJavaModule {
         }
     }
 
-    boolean isOver=false;
-
-
+    /**
+     * draw image (type 1, url) and text markers (text, color, fontName, fontSize, fontWeight 'bold' | 'normal', bold by default with a fontName only) at X/Y, in the order given.
+     * The background and every image marker are loaded concurrently, then composited on one thread and encoded once
+     * @param src
+     * @param markers
+     * @param quality
+     * @param filename
+     * @param options
+     * @param promise
+     */
     @ReactMethod
-    public void markWithObjects(ReadableMap src, final ReadableArray markers, final int quality, String filename, final Promise promise ) {
-    try{
-        Log.e("SRC", "markWithObjects: "+src.toString() );
-        Log.e("SRC", "markers: "+markers.toString() );
-
-        isOver=false;
-        final String uri = src.getString(PROP_ICON_URI);
-
-        final String dest =generateCacheFilePathForMarker(uri, filename);
+    public void markWithObjects(ReadableMap src, final ReadableArray markers, final int quality, String filename, @Nullable ReadableMap options, final Promise promise) {
+        try {
+            final String uri = src.getString(PROP_ICON_URI);
+            final SaveOptions save = SaveOptions.fromOptions(options, quality, filename);
 
-        Log.d(IMAGE_MARKER_TAG, uri);
-        Log.d(IMAGE_MARKER_TAG, src.toString());
+            Log.d(IMAGE_MARKER_TAG, uri);
+            Log.d(IMAGE_MARKER_TAG, src.toString());
 
+            withResultCache(save, startJob(options, promise), new CachedJob() {
+                @Override
+                public Object[] describe() {
+                    StringBuilder description = new StringBuilder();
+                    for (int i = 0; i < markers.size(); i++) {
+                        ReadableMap marker = markers.getMap(i);
+                        description.append(describeMap(marker));
+                        if (isImageObject(marker)) {
+                            description.append(ResultCache.sourceIdentity(marker.getString("url")));
+                        }
+                    }
+                    return new Object[] {"markWithObjects", ResultCache.sourceIdentity(uri), description};
+                }
 
+                @Override
+                public void run(MarkerCallback callback) throws Exception {
+                    loadObjects(uri, markers, save, callback);
+                }
+            });
+        } catch (Exception e) {
+            Log.d(IMAGE_MARKER_TAG, "error：" + e.getMessage());
+            e.printStackTrace();
+            promise.reject("error", e.getMessage(), e);
+        }
+    }
 
-        final Paint photoPaint = new Paint();
-        photoPaint.setDither(true);
+    /**
+     * load the background and the image markers of markWithObjects concurrently, then composite them
+     * @param uri
+     * @param markers
+     * @param save
+     * @param callback
+     */
+    private void loadObjects(String uri, final ReadableArray markers, final SaveOptions save, final MarkerCallback callback) throws Exception {
+        final int count = markers.size();
+        // slot 0 is the background, slot i + 1 the marker i, null for text
+        final BitmapJoin join = new BitmapJoin(count + 1, callback) {
+            @Override
+            protected void onComplete(Bitmap[] bitmaps) {
+                markImageByObjects(bitmaps, markers, save, callback);
+            }
 
+            @Override
+            protected void release(Bitmap bitmap) {
+                markerCache.release(bitmap);
+            }
+        };
+        for (int i = 0; i < count; i++) {
+            final int slot = i + 1;
+            ReadableMap marker = markers.getMap(i);
+            if (!isImageObject(marker)) {
+                join.complete(slot, null);
+                continue;
+            }
+            loadMarker(marker.getString("url"), 1F, join.failureCallback(), new BitmapHandler() {
+                @Override
+                public void onBitmap(Bitmap bitmap) {
+                    join.complete(slot, bitmap);
+                }
+            });
+        }
+        // last, so the join completes on a worker thread even when every marker was cached
+        loadBitmap(uri, 1F, join.failureCallback(), new BitmapHandler() {
+            @Override
+            public void onBitmap(Bitmap bitmap) {
+                join.complete(0, bitmap);
+            }
+        });
+    }
 
+    private static boolean isImageObject(ReadableMap marker) {
+        return Utils.optInt(marker, "type", 0) == 1;
+    }
 
+    /**
+     * composite the markers of markWithObjects in order and save the result
+     * @param bitmaps background then one bitmap per marker, null for text markers
+     * @param markers
+     * @param save
+     * @param callback
+     */
+    private void markImageByObjects(Bitmap[] bitmaps, ReadableArray markers, SaveOptions save, MarkerCallback callback) {
+        MarkerOutput output = null;
+        Bitmap icon = null;
+        try {
+            icon = bitmaps[0];
+            bitmaps[0] = null;
+            Bitmap bg = icon;
+            callback.getJob().throwIfCancelled();
+            JobMetrics metrics = callback.getJobMetrics();
+            long start = JobMetrics.now();
+            icon = Utils.ensureMutable(icon);
+            Canvas canvas = new Canvas(icon);
+            Paint photoPaint = new Paint();
+            photoPaint.setDither(true);
 
+            for (int i = 0; i < markers.size(); i++) {
+                ReadableMap marker = markers.getMap(i);
+                int x = Utils.optInt(marker, "X", 0);
+                int y = Utils.optInt(marker, "Y", 0);
+                if (bitmaps[i + 1] != null) {
+                    canvas.drawBitmap(bitmaps[i + 1], x, y, photoPaint);
+                    continue;
+                }
+                String text = Utils.optString(marker, "text", null);
+                if (TextUtils.isEmpty(text)) {
+                    continue;
+                }
+                int fontSize = Utils.optInt(marker, "fontSize", 0);
+                fontSize = fontSize <= 0 ? 36 : fontSize;
+                String color = Utils.optString(marker, "color", "#000000");
+                String fontName = Utils.optString(marker, "fontName", null);
+                String fontWeight = Utils.optString(marker, "fontWeight", null);
+                // without a fontWeight: bold for a fontName and the default typeface otherwise, as before it existed
+                int style = null != fontWeight
+                        ? ("normal".equals(fontWeight) ? Typeface.NORMAL : Typeface.BOLD)
+                        : (null != fontName ? Typeface.BOLD : Typeface.NORMAL);
+                Paint textPaint = textRuns.getPaint(fontName, fontSize, color, style, getReactApplicationContext().getAssets());
+                textRuns.drawText(canvas, text, x, y, textPaint, TextRunCache.paintKey(fontName, fontSize, color, style));
+            }
 
-        ImageRequest imageRequest = ImageRequest.fromUri(uri);
-        DataSource<CloseableReference<CloseableImage>> dataSource = Fresco.getImagePipeline().fetchDecodedImage(imageRequest, null);
-        Executor executor = Executors.newSingleThreadExecutor();
-        dataSource.subscribe(new BaseBitmapDataSubscriber() {
-            @Override
-            public void onNewResultImpl(@Nullable final Bitmap bg) {
-                if (bg != null) {
-                    int width = bg.getWidth();
-                    int height = bg.getHeight();
-                    //创建一个bitmap
-                    Bitmap newb = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);// 创建一个新的和SRC长度宽度一样的位图
-                    //将该图片作为画布
-                    final Canvas canvas = new Canvas(newb);
-                    //在画布 0，0坐标上开始绘制原始图片
-                    canvas.drawBitmap(bg, 0, 0, null);
-
-                    for (int i=0;i<markers.size();i++){
-                        final ReadableMap map= markers.getMap(i);
-                        if(map.getInt("type")==1){//icon http网络头像
-                            final String photoUri=map.getString("url");
-                            ImageRequest imageRequest = ImageRequest.fromUri(photoUri);
-                            DataSource<CloseableReference<CloseableImage>> dataSource = Fresco.getImagePipeline().fetchDecodedImage(imageRequest, null);
-                            Executor executor = Executors.newSingleThreadExecutor();
-                            dataSource.subscribe(new BaseBitmapDataSubscriber() {
-                                @Override
-                                public void onNewResultImpl(@Nullable Bitmap bitmap) {
-                                    Log.e("SRC", "头像: "+bitmap );
-                                    if (bitmap != null) {
-                                        canvas.drawBitmap(bitmap,map.getInt("X"),map.getInt("Y"),photoPaint);
-                                        if (bitmap.isRecycled()) {
-                                            bitmap.recycle();
-                                        }
-                                    } else {
-                                        Log.e("SRC", "rrrrrrrrr5555555");
-                                        promise.reject( "marker error","Can't retrieve the file from the markerpath: " + photoUri);
-                                    }
-                                    isOver=true;
-                                }
-
-                                @Override
-                                public void onFailureImpl(DataSource dataSource) {
-                                    Log.e("SRC", "rrrrrrrrr444444444444 ");
-                                    promise.reject( "error","Can't request the image from the uri: " + photoUri, dataSource.getFailureCause());
-                                }
-                            }, executor);
-
-                        }else {
-                            Log.e("SRC", "文字: "+map.getString("text") );
-
-                            Paint textPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
-                            Log.e("", map.getInt("X") + "  xxxxxx " + map.getInt("Y"));
-                            Log.e("", "test:   oooo" + width + " " + height);
-                            textPaint.setTextSize(map.getInt("fontSize")<=0?36:map.getInt("fontSize"));
-                                try {
-                                    textPaint.setColor(Color.parseColor(map.getString("color")));
-                                    if(map.getString("fontName")!=null) {
-                                        //设置字体失败时使用默认字体
-                                        textPaint.setTypeface(ReactFontManager.getInstance().getTypeface(map.getString("fontName"), Typeface.BOLD, getReactApplicationContext().getAssets()));
-                                    }
-                                    } catch (Exception e) {
-                                    textPaint.setTypeface(Typeface.DEFAULT);
-                                }
-                            //textPaint.getTextBounds(paintBean.getText(), 0, paintBean.getText().length(), textBounds);
-                            canvas.drawText(map.getString("text"), map.getInt("X"), map.getInt("Y"), textPaint);
+            metrics.record(JobMetrics.STAGE_COMPOSITE, start, icon != bg ? icon.getByteCount() : 0);
+            callback.getJob().throwIfCancelled();
+            String format = save.resolveFormat(icon.hasAlpha());
+            output = openOutput(save, format);
+            start = JobMetrics.now();
+            save.write(icon, format, output.getStream());
+            metrics.record(JobMetrics.STAGE_ENCODE, start, 0);
+            //保存成功的
+            callback.resolve(commit(output, callback));
+        } catch (Exception | OutOfMemoryError e) {
+            e.printStackTrace();
+            callback.reject(e);
+        } finally {
+            if (output != null) {
+                output.close();
+            }
+            for (int i = 1; i < bitmaps.length; i++) {
+                if (bitmaps[i] != null) {
+                    markerCache.release(bitmaps[i]);
+                }
+            }
+            BitmapPool.getInstance().put(icon);
+        }
+    }
 
-                        }
-                        Log.e("SRC", "onNewResultImpl: iiiiiiiiiiiiiiiiiiiiiiiiiiiiiiiiiiii"+i);
 
+    /**
+     * draw any number of text and image layers onto an image, with a single decode and a single encode
+     * @param src
+     * @param layers drawn in this order, see {@link MarkerLayer#fromMap}
+     * @param options scale, quality, filename, saveFormat, pngCompressionLevel, returnMode
+     * @param promise
+     */
+    @ReactMethod
+    public void mark(ReadableMap src, ReadableArray layers, @Nullable ReadableMap options, final Promise promise) {
+        try {
+            final String uri = src.getString(PROP_ICON_URI);
+            final Float scale = Utils.optFloat(options, "scale", 1F);
+            final SaveOptions save = SaveOptions.fromOptions(options, Utils.optInt(options, "quality", 100), Utils.optString(options, "filename", null));
+            final List<MarkerLayer> markerLayers = new ArrayList<>();
+            for (int i = 0; i < layers.size(); i++) {
+                markerLayers.add(MarkerLayer.fromMap(layers.getMap(i)));
+            }
 
-                    }
-                    canvas.save();
+            Log.d(IMAGE_MARKER_TAG, uri);
 
-                    canvas.restore();
-                    try {
-                        BufferedOutputStream bos = null;
-                        bos = new BufferedOutputStream(new FileOutputStream(dest));
-                        newb.compress(Bitmap.CompressFormat.PNG, quality, bos);
-                        bos.flush();
-                        //保存成功的
-                        Log.e("SRC", "rrrrrrrrr33333333333");
-                        promise.resolve(dest);
-                    } catch (FileNotFoundException e) {
-                        e.printStackTrace();
-                    } catch (IOException e) {
-                        e.printStackTrace();
+            withResultCache(save, startJob(options, promise), new CachedJob() {
+                @Override
+                public Object[] describe() {
+                    StringBuilder description = new StringBuilder();
+                    for (MarkerLayer layer : markerLayers) {
+                        description.append(layer.getCacheKey()).append(';');
                     }
+                    return new Object[] {"mark", ResultCache.sourceIdentity(uri), scale, description};
+                }
 
-                } else {
-                    Log.e("SRC", "rrrrrrrrr111111111111 ");
-                    promise.reject( "marker error","Can't retrieve the file from the src: " + uri);
+                @Override
+                public void run(MarkerCallback callback) throws Exception {
+                    loadLayers(uri, scale, markerLayers, save, callback);
                 }
-            }
+            });
+        } catch (Exception e) {
+            Log.d(IMAGE_MARKER_TAG, "error：" + e.getMessage());
+            e.printStackTrace();
+            promise.reject("error", e.getMessage(), e);
+        }
+    }
 
+    /**
+     * load the background and the image layers of mark concurrently, then composite them
+     * @param uri
+     * @param scale
+     * @param markerLayers
+     * @param save
+     * @param callback
+     */
+    private void loadLayers(String uri, Float scale, final List<MarkerLayer> markerLayers, final SaveOptions save, final MarkerCallback callback) throws Exception {
+        // slot 0 is the background, slot i + 1 the layer i, null for text
+        final BitmapJoin join = new BitmapJoin(markerLayers.size() + 1, callback) {
             @Override
-            public void onFailureImpl(DataSource dataSource) {
-                Log.e("SRC", "rrrrrrrrr222222222222222 ");
-                promise.reject( "error","Can't request the image from the uri: " + uri, dataSource.getFailureCause());
+            protected void onComplete(Bitmap[] bitmaps) {
+                markImageByLayers(bitmaps, markerLayers, save, callback);
             }
-        }, executor);
-
-
-
 
+            @Override
+            protected void release(Bitmap bitmap) {
+                markerCache.release(bitmap);
+            }
+        };
+        for (int i = 0; i < markerLayers.size(); i++) {
+            final int slot = i + 1;
+            MarkerLayer layer = markerLayers.get(i);
+            if (!layer.isImage()) {
+                join.complete(slot, null);
+                continue;
+            }
+            loadMarker(layer.getMarkerUri(), layer.getMarkerScale(), join.failureCallback(), new BitmapHandler() {
+                @Override
+                public void onBitmap(Bitmap bitmap) {
+                    join.complete(slot, bitmap);
+                }
+            });
+        }
+        // last, so the join completes on a worker thread even when every marker was cached
+        loadBitmap(uri, scale, join.failureCallback(), new BitmapHandler() {
+            @Override
+            public void onBitmap(Bitmap bitmap) {
+                join.complete(0, bitmap);
+            }
+        });
+    }
 
+    /**
+     * composite the layers of mark in order and save the result
+     * @param bitmaps background then one bitmap per layer, null for text layers
+     * @param layers
+     * @param save
+     * @param callback
+     */
+    private void markImageByLayers(Bitmap[] bitmaps, List<MarkerLayer> layers, SaveOptions save, MarkerCallback callback) {
+        MarkerOutput output = null;
+        Bitmap icon = null;
+        try {
+            icon = bitmaps[0];
+            bitmaps[0] = null;
+            Bitmap bg = icon;
+            callback.getJob().throwIfCancelled();
+            JobMetrics metrics = callback.getJobMetrics();
+            long start = JobMetrics.now();
+            icon = Utils.ensureMutable(icon);
+            int width = icon.getWidth();
+            int height = icon.getHeight();
+            Canvas canvas = new Canvas(icon);
+            Paint photoPaint = new Paint();
+            photoPaint.setDither(true);
 
+            for (int i = 0; i < layers.size(); i++) {
+                MarkerLayer layer = layers.get(i);
+                Bitmap marker = bitmaps[i + 1];
+                if (marker != null) {
+                    if (layer.getPosition() != null) {
+                        Position pos = getRectFromPosition(layer.getPosition(), marker.getWidth(), marker.getHeight(), width, height);
+                        canvas.drawBitmap(marker, pos.getX(), pos.getY(), photoPaint);
+                    } else {
+                        canvas.drawBitmap(marker, null != layer.getX() ? layer.getX() : 0, null != layer.getY() ? layer.getY() : 0, photoPaint);
+                    }
+                    continue;
+                }
+                TextStyle textStyle = layer.getTextStyle();
+                Bitmap textTile = acquireTextTile(textStyle, layer.getText(), width);
+                try {
+                    Position pos = getTextPosition(layer.getPosition(), layer.getX(), layer.getY(), textStyle.getTextWidth(textTile), textStyle.getTextHeight(textTile), width, height);
+                    canvas.drawBitmap(textTile, pos.getX() - textStyle.getPaddingLeft(), pos.getY() - textStyle.getPaddingTop(), photoPaint);
+                } finally {
+                    textCache.release(textTile);
+                }
+            }
 
-    } catch (Exception e) {
-        Log.d(IMAGE_MARKER_TAG, "error：" + e.getMessage());
-        e.printStackTrace();
-        promise.reject("error", e.getMessage(), e);
+            metrics.record(JobMetrics.STAGE_COMPOSITE, start, icon != bg ? icon.getByteCount() : 0);
+            callback.getJob().throwIfCancelled();
+            String format = save.resolveFormat(icon.hasAlpha());
+            output = openOutput(save, format);
+            start = JobMetrics.now();
+            save.write(icon, format, output.getStream());
+            metrics.record(JobMetrics.STAGE_ENCODE, start, 0);
+            //保存成功的
+            callback.resolve(commit(output, callback));
+        } catch (Exception | OutOfMemoryError e) {
+            e.printStackTrace();
+            callback.reject(e);
+        } finally {
+            if (output != null) {
+                output.close();
+            }
+            for (int i = 1; i < bitmaps.length; i++) {
+                if (bitmaps[i] != null) {
+                    markerCache.release(bitmaps[i]);
+                }
+            }
+            BitmapPool.getInstance().put(icon);
+        }
     }
 
-}
-
-
     @ReactMethod
-    public void markWithImage(ReadableMap src, final ReadableMap marker, final Integer X, final Integer Y, final Float scale, final Float markerScale, final int quality, String filename, final Promise promise ) {
+    public void markWithImage(ReadableMap src, final ReadableMap marker, final Integer X, final Integer Y, final Float scale, final Float markerScale, final int quality, String filename, @Nullable ReadableMap options, final Promise promise ) {
 
 
         try {
@@ -726,54 +1743,29 @@ public class ImageMarkerManager extends ReactContextBaseJavaModule {
 
             final String uri = src.getString(PROP_ICON_URI);
 
-            final String dest = generateCacheFilePathForMarker(uri, filename);
+            final Preview preview = Preview.fromOptions(options, getScreenSize());
+            final SaveOptions save = SaveOptions.fromOptions(options, quality, null != preview ? null : filename);
+            final SaveOptions fullSave = SaveOptions.fromOptions(options, quality, filename);
 
             Log.d(IMAGE_MARKER_TAG, uri);
             Log.d(IMAGE_MARKER_TAG, src.toString());
 
-            if (isFrescoImg(uri)) {
-                ImageRequest imageRequest = ImageRequest.fromUri(uri);
-                DataSource<CloseableReference<CloseableImage>> dataSource = Fresco.getImagePipeline().fetchDecodedImage(imageRequest, null);
-                Executor executor = Executors.newSingleThreadExecutor();
-                dataSource.subscribe(new BaseBitmapDataSubscriber() {
-                    @Override
-                    public void onNewResultImpl(@Nullable Bitmap bitmap) {
-                        if (bitmap != null) {
-                            Bitmap bg = Utils.scaleBitmap(bitmap, scale);
-                            markImage(bg, marker, null, X, Y, markerScale, quality, dest, promise);
-                        } else {
-                            promise.reject( "marker error","Can't retrieve the file from the src: " + uri);
-                        }
-                    }
+            withResultCache(save, withFullRender(preview, startJob(options, promise), new FullRender() {
+                @Override
+                public void run(MarkerCallback full) {
+                    markImage(uri, marker, null, X, Y, scale, markerScale, null, fullSave, full);
+                }
+            }), new CachedJob() {
+                @Override
+                public Object[] describe() {
+                    return new Object[] {cacheMethod("markWithImage", preview), ResultCache.sourceIdentity(uri), ResultCache.sourceIdentity(marker.getString(PROP_ICON_URI)), X, Y, scale, markerScale};
+                }
 
-                    @Override
-                    public void onFailureImpl(DataSource dataSource) {
-                        promise.reject( "error","Can't request the image from the uri: " + uri, dataSource.getFailureCause());
-                    }
-                }, executor);
-            } else {
-                int resId = getDrawableResourceByName(uri);
-                if (resId == 0) {
-                    Log.d(IMAGE_MARKER_TAG, "cannot find res");
-                    promise.reject( "error","Can't get resource by the path: " + uri);
-                } else {
-                    Log.d(IMAGE_MARKER_TAG, "res：" + resId);
-
-                    Resources r = this.getResources();
-//                    InputStream is = r.openRawResource(resId);
-                    Bitmap bitmap = BitmapFactory.decodeResource(r, resId);
-//                    Bitmap bitmap = BitmapFactory.decodeStream(is);
-                    Log.d(IMAGE_MARKER_TAG, bitmap.getHeight() + "");
-                    Bitmap bg = Utils.scaleBitmap(bitmap, scale);
-                    Log.d(IMAGE_MARKER_TAG, bg.getHeight() + "");
-
-                    if (bitmap != null && !bitmap.isRecycled() && scale != 1) {
-                        bitmap.recycle();
-                        System.gc();
-                    }
-                    markImage(bg, marker, null, X, Y, markerScale, quality, dest, promise);
+                @Override
+                public void run(MarkerCallback callback) {
+                    markImage(uri, marker, null, X, Y, scale, markerScale, preview, save, callback);
                 }
-            }
+            });
         } catch (Exception e) {
             Log.d(IMAGE_MARKER_TAG, "error：" + e.getMessage());
             e.printStackTrace();
@@ -783,64 +1775,178 @@ public class ImageMarkerManager extends ReactContextBaseJavaModule {
     }
 
     @ReactMethod
-    public void markWithImageByPosition(ReadableMap src, final ReadableMap marker, final String position, final Float scale, final Float markerScale, final int quality, final String filename, final Promise promise ) {
+    public void markWithImageByPosition(ReadableMap src, final ReadableMap marker, final String position, final Float scale, final Float markerScale, final int quality, final String filename, @Nullable ReadableMap options, final Promise promise ) {
 
         try {
 
             final String uri = src.getString(PROP_ICON_URI);
 
-            final String dest = generateCacheFilePathForMarker(uri, filename);
+            final Preview preview = Preview.fromOptions(options, getScreenSize());
+            final SaveOptions save = SaveOptions.fromOptions(options, quality, null != preview ? null : filename);
+            final SaveOptions fullSave = SaveOptions.fromOptions(options, quality, filename);
 
             Log.d(IMAGE_MARKER_TAG, uri);
             Log.d(IMAGE_MARKER_TAG, src.toString());
 
-            if (isFrescoImg(uri)) {
-                ImageRequest imageRequest = ImageRequest.fromUri(uri);
-                DataSource<CloseableReference<CloseableImage>> dataSource = Fresco.getImagePipeline().fetchDecodedImage(imageRequest, null);
-                Executor executor = Executors.newSingleThreadExecutor();
-                dataSource.subscribe(new BaseBitmapDataSubscriber() {
+            withResultCache(save, withFullRender(preview, startJob(options, promise), new FullRender() {
+                @Override
+                public void run(MarkerCallback full) {
+                    markImage(uri, marker, position, 0, 0, scale, markerScale, null, fullSave, full);
+                }
+            }), new CachedJob() {
+                @Override
+                public Object[] describe() {
+                    return new Object[] {cacheMethod("markWithImageByPosition", preview), ResultCache.sourceIdentity(uri), ResultCache.sourceIdentity(marker.getString(PROP_ICON_URI)), position, scale, markerScale};
+                }
+
+                @Override
+                public void run(MarkerCallback callback) {
+                    markImage(uri, marker, position, 0, 0, scale, markerScale, preview, save, callback);
+                }
+            });
+        } catch (Exception e) {
+            Log.d(IMAGE_MARKER_TAG, "error：" + e.getMessage());
+            e.printStackTrace();
+            promise.reject("error", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * mark many images with the same text or image marker, the marker (paint or decoded bitmap)
+     * is prepared once and shared by all items
+     * @param sources image sources, the same shape as src of the other methods
+     * @param markerSpec type ('text' | 'image'), position or X/Y, text, color, fontName, fontSize, shadowStyle for text
+     *                   and src, markerScale for image
+     * @param options scale, quality, saveFormat, pngCompressionLevel, concurrency, batchId, jobId, tag, timeout (ms)
+     *                and priority (low by default) of the whole batch
+     * @param promise resolves with { batchId, total, failed, results: [{ index, uri, path | error }] }
+     */
+    @ReactMethod
+    public void markBatch(ReadableArray sources, final ReadableMap markerSpec, ReadableMap options, Promise promise) {
+        final MarkerCallback callback;
+        try {
+            MarkerJob job = new MarkerJob(
+                    Utils.optString(options, "jobId", UUID.randomUUID().toString()),
+                    Utils.optString(options, "tag", null),
+                    Utils.optInt(options, "timeout", 0),
+                    Utils.optString(options, "priority", MarkerExecutor.PRIORITY_LOW));
+            callback = MarkerCallback.fromPromise(promise, job);
+            jobs.start(job);
+        } catch (Exception e) {
+            promise.reject("error", e.getMessage(), e);
+            return;
+        }
+        try {
+            final String[] uris = new String[sources.size()];
+            for (int i = 0; i < uris.length; i++) {
+                uris[i] = sources.getMap(i).getString(PROP_ICON_URI);
+            }
+            final Float scale = Utils.optFloat(options, "scale", 1F);
+            final SaveOptions save = SaveOptions.fromOptions(options, Utils.optInt(options, "quality", 100), null);
+            if (!SaveOptions.RETURN_FILE.equals(save.getReturnMode())) {
+                // a batch may produce more than fits in memory at once
+                callback.reject("error", "markBatch only writes files");
+                return;
+            }
+            final int concurrency = Utils.optInt(options, "concurrency", markerExecutor.getPoolSize());
+            final String batchId = Utils.optString(options, "batchId", UUID.randomUUID().toString());
+
+            final String type = Utils.optString(markerSpec, "type", "text");
+            final String position = Utils.optString(markerSpec, "position", null);
+            final Integer X = Utils.optInteger(markerSpec, "X", null);
+            final Integer Y = Utils.optInteger(markerSpec, "Y", null);
+
+            if ("text".equals(type)) {
+                final String text = Utils.optString(markerSpec, "text", null);
+                if (TextUtils.isEmpty(text)) {
+                    callback.reject("error", "mark should not be empty");
+                    return;
+                }
+                final ReadableMap shadowStyle = Utils.optMap(markerSpec, "shadowStyle");
+                markerExecutor.submit(new Runnable() {
                     @Override
-                    public void onNewResultImpl(@Nullable Bitmap bitmap) {
-                        if (bitmap != null) {
-                            Bitmap bg = Utils.scaleBitmap(bitmap, scale);
-                            markImage(bg, marker, position, 0, 0, markerScale, quality, dest, promise);
-                        } else {
-                            promise.reject( "marker error","Can't retrieve the file from the src: " + uri);
-                        }
+                    public void run() {
+                        final TextStyle textStyle = new TextStyle(
+                                Utils.optString(markerSpec, "color", "#000000"),
+                                Utils.optString(markerSpec, "fontName", null),
+                                Utils.optInteger(markerSpec, "fontSize", null),
+                                null != shadowStyle ? new ShadowLayerStyle(shadowStyle) : null);
+                        // resolve the typeface and parse the color once for the whole batch
+                        textStyle.getPaint(getReactApplicationContext().getAssets());
+
+                        new MarkerBatch(context, batchId, uris, concurrency, new MarkerBatch.ItemRunner() {
+                            @Override
+                            public void run(int index, final String uri, final MarkerCallback itemCallback) {
+                                markText(uri, scale, text, position, textStyle, X, Y, null, save, itemCallback);
+                            }
+                        }, callback).start();
                     }
-
+                }, callback);
+            } else if ("image".equals(type)) {
+                ReadableMap markerSrc = Utils.optMap(markerSpec, "src");
+                if (null == markerSrc) {
+                    callback.reject("error", "marker src should not be empty");
+                    return;
+                }
+                Float markerScale = Utils.optFloat(markerSpec, "markerScale", 1F);
+                loadMarker(markerSrc.getString(PROP_ICON_URI), markerScale, callback, new BitmapHandler() {
                     @Override
-                    public void onFailureImpl(DataSource dataSource) {
-                        promise.reject( "error","Can't request the image from the uri: " + uri, dataSource.getFailureCause());
+                    public void onBitmap(final Bitmap marker) {
+                        final MarkerBatch batch = new MarkerBatch(context, batchId, uris, concurrency, new MarkerBatch.ItemRunner() {
+                            @Override
+                            public void run(int index, final String uri, final MarkerCallback itemCallback) {
+                                loadBackground(uri, scale, null, itemCallback, new BackgroundHandler() {
+                                    @Override
+                                    public void onBitmap(Bitmap bg) {
+                                        markImageByBitmap(bg, marker, position, X, Y, save, false, itemCallback);
+                                    }
+
+                                    @Override
+                                    void onTiles(TiledImage image) {
+                                        markTilesByBitmap(image, marker, position, X, Y, save, false, itemCallback);
+                                    }
+                                });
+                            }
+                        }, callback);
+                        batch.setOnFinished(new Runnable() {
+                            @Override
+                            public void run() {
+                                markerCache.release(marker);
+                            }
+                        });
+                        // a cached marker is handed over on the bridge thread, start the batch on a worker
+                        markerExecutor.submit(new Runnable() {
+                            @Override
+                            public void run() {
+                                batch.start();
+                            }
+                        }, new MarkerCallback() {
+                            @Override
+                            public MarkerJob getJob() {
+                                return callback.getJob();
+                            }
+
+                            @Override
+                            public void resolve(Object result) {
+                                callback.resolve(result);
+                            }
+
+                            @Override
+                            public void reject(String code, String message, @Nullable Throwable e) {
+                                // refused or cancelled before it started, the batch won't release the marker
+                                markerCache.release(marker);
+                                callback.reject(code, message, e);
+                            }
+                        });
                     }
-                }, executor);
+                });
             } else {
-                int resId = getDrawableResourceByName(uri);
-                if (resId == 0) {
-                    Log.d(IMAGE_MARKER_TAG, "cannot find res");
-                    promise.reject( "error","Can't get resource by the path: " + uri);
-                } else {
-                    Log.d(IMAGE_MARKER_TAG, "res：" + resId);
-
-                    Resources r = this.getResources();
-//                    InputStream is = r.openRawResource(resId);
-                    Bitmap bitmap = BitmapFactory.decodeResource(r, resId);
-//                    Bitmap bitmap = BitmapFactory.decodeStream(is);
-                    Log.d(IMAGE_MARKER_TAG, bitmap.getHeight() + "");
-                    Bitmap bg = Utils.scaleBitmap(bitmap, scale);
-                    Log.d(IMAGE_MARKER_TAG, bg.getHeight() + "");
-
-                    if (bitmap != null && !bitmap.isRecycled() && scale != 1) {
-                        bitmap.recycle();
-                        System.gc();
-                    }
-                    markImage(bg, marker, position, 0, 0, markerScale, quality, dest, promise);
-                }
+                callback.reject("error", "Unknown marker type: " + type);
             }
         } catch (Exception e) {
             Log.d(IMAGE_MARKER_TAG, "error：" + e.getMessage());
             e.printStackTrace();
-            promise.reject("error", e.getMessage(), e);
+            callback.reject(e);
         }
     }
 
@@ -888,17 +1994,49 @@ public class ImageMarkerManager extends ReactContextBaseJavaModule {
         return pos;
     }
 
-    private String generateCacheFilePathForMarker(String imgSavePath, String filename){
-        String cacheDir = this.getReactApplicationContext().getCacheDir().getAbsolutePath();
+    /**
+     * publish the result, timed as the write stage. Nothing is published for a cancelled job
+     * @param output
+     * @param callback
+     * @return what the job resolves with
+     */
+    private static Object commit(MarkerOutput output, MarkerCallback callback) throws IOException {
+        callback.getJob().throwIfCancelled();
+        long start = JobMetrics.now();
+        Object result = output.commit();
+        callback.getJobMetrics().record(JobMetrics.STAGE_WRITE, start, 0);
+        return result;
+    }
 
-        if (null != filename) {
-            if (filename.endsWith(".jpg") || filename.endsWith(".png"))
-                return cacheDir + "/" + filename;
-            else
-                return cacheDir + "/" + filename + ".jpg";
-        } else {
-            String name = UUID.randomUUID().toString()+"imagemarker";
-            return cacheDir+"/"+name+".jpg";
+    /**
+     * where a result is written, according to the returnMode
+     * @param save
+     * @param format one of the SaveOptions.FORMAT_* values
+     * @return
+     */
+    private MarkerOutput openOutput(SaveOptions save, String format) throws IOException {
+        switch (save.getReturnMode()) {
+            case SaveOptions.RETURN_BASE64:
+                return new OutputBuffer();
+            case SaveOptions.RETURN_BLOB:
+                Object blobModule = OutputBuffer.getBlobModule(getReactApplicationContext());
+                if (null == blobModule) {
+                    throw new IOException("returnMode 'blob' needs the BlobModule of React Native 0.54+");
+                }
+                return new OutputBuffer(SaveOptions.getMimeType(format), blobModule);
+            default:
+                return OutputFile.open(generateCacheFilePathForMarker(save, format), janitor);
         }
     }
+
+    /**
+     * the file in the cache dir a result is written to, with the extension of its format
+     * @param save
+     * @param format one of the SaveOptions.FORMAT_* values
+     * @return
+     */
+    private String generateCacheFilePathForMarker(SaveOptions save, String format){
+        String cacheDir = this.getReactApplicationContext().getCacheDir().getAbsolutePath();
+        return save.getPath(cacheDir, format);
+    }
 }
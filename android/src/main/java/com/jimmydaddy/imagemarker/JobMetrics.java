@@ -0,0 +1,108 @@
+package com.jimmydaddy.imagemarker;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableMap;
+
+/**
+ * Time spent and bitmap bytes allocated by one job, per stage, from the monotonic clock.
+ *
+ * Stages loading bitmaps concurrently (a background and its markers) add up, so the sum of
+ * the stages can be more than the total time of the job.
+ */
+
+public class JobMetrics {
+    // Fresco request until the decoded bitmap arrives, Fresco's own decode included
+    public static final String STAGE_FETCH = "fetch";
+    // decodes done by the module: drawable resources, tiles, JPEG headers
+    public static final String STAGE_DECODE = "decode";
+    // scaling and copying the decoded bitmap to a mutable one
+    public static final String STAGE_SCALE = "scale";
+    // drawing the markers
+    public static final String STAGE_COMPOSITE = "composite";
+    // compressing, tiles are composited and encoded strip by strip and count here
+    public static final String STAGE_ENCODE = "encode";
+    // flushing and publishing the result
+    public static final String STAGE_WRITE = "write";
+
+    static final String[] STAGES = {STAGE_FETCH, STAGE_DECODE, STAGE_SCALE, STAGE_COMPOSITE, STAGE_ENCODE, STAGE_WRITE};
+
+    private final long start = now();
+    private long end = 0;
+    private final long[] nanos = new long[STAGES.length];
+    private final long[] bytes = new long[STAGES.length];
+    private final boolean[] recorded = new boolean[STAGES.length];
+
+    public static long now() {
+        return System.nanoTime();
+    }
+
+    static int indexOf(String stage) {
+        for (int i = 0; i < STAGES.length; i++) {
+            if (STAGES[i].equals(stage)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown stage: " + stage);
+    }
+
+    /**
+     * @param stage one of the STAGE_* values
+     * @param since {@link #now()} when the stage started
+     * @param allocated bitmap bytes the stage allocated
+     */
+    public synchronized void record(String stage, long since, long allocated) {
+        int index = indexOf(stage);
+        nanos[index] += Math.max(0, now() - since);
+        bytes[index] += allocated;
+        recorded[index] = true;
+    }
+
+    /**
+     * the job settled, later records still count for the stages but not for the total
+     */
+    public synchronized void finish() {
+        if (end == 0) {
+            end = now();
+        }
+    }
+
+    public synchronized long getTotalNanos() {
+        return (end != 0 ? end : now()) - start;
+    }
+
+    public synchronized boolean hasStage(String stage) {
+        return recorded[indexOf(stage)];
+    }
+
+    public synchronized long getNanos(String stage) {
+        return nanos[indexOf(stage)];
+    }
+
+    public synchronized long getBytes(String stage) {
+        return bytes[indexOf(stage)];
+    }
+
+    static double toMillis(long nanos) {
+        return nanos / 1000000.0;
+    }
+
+    /**
+     * { total, stages: { fetch: { time, bytes }, ... } } with the times in ms, only the stages the job went through
+     */
+    public synchronized WritableMap toMap() {
+        WritableMap stages = Arguments.createMap();
+        for (int i = 0; i < STAGES.length; i++) {
+            if (!recorded[i]) {
+                continue;
+            }
+            WritableMap stage = Arguments.createMap();
+            stage.putDouble("time", toMillis(nanos[i]));
+            stage.putDouble("bytes", bytes[i]);
+            stages.putMap(STAGES[i], stage);
+        }
+        WritableMap map = Arguments.createMap();
+        map.putDouble("total", toMillis(getTotalNanos()));
+        map.putMap("stages", stages);
+        return map;
+    }
+}
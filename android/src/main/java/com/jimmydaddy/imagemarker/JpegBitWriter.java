@@ -0,0 +1,98 @@
+package com.jimmydaddy.imagemarker;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Huffman coded output of a JPEG scan, with the 0xFF byte stuffing of entropy coded data
+ */
+
+public class JpegBitWriter {
+    private final OutputStream out;
+    private int buffer = 0;
+    private int count = 0;
+
+    public JpegBitWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * @param bits the low size bits are written, most significant first
+     * @param size 0-16
+     */
+    public void writeBits(int bits, int size) throws IOException {
+        if (size == 0) {
+            return;
+        }
+        buffer = (buffer << size) | (bits & ((1 << size) - 1));
+        count += size;
+        while (count >= 8) {
+            int b = (buffer >> (count - 8)) & 0xFF;
+            out.write(b);
+            if (b == 0xFF) {
+                out.write(0);
+            }
+            count -= 8;
+        }
+        buffer &= (1 << count) - 1;
+    }
+
+    /**
+     * number of bits needed for the magnitude of a coefficient
+     */
+    public static int category(int value) {
+        value = value < 0 ? -value : value;
+        int size = 0;
+        while (value != 0) {
+            size++;
+            value >>= 1;
+        }
+        return size;
+    }
+
+    /**
+     * write a quantized block
+     * @param block coefficients in zigzag order
+     * @param previousDc dc of the previous block of the same component
+     * @param dc
+     * @param ac
+     */
+    public void writeBlock(int[] block, int previousDc, JpegHuffmanTable dc, JpegHuffmanTable ac) throws IOException {
+        int diff = block[0] - previousDc;
+        int size = category(diff);
+        writeBits(dc.getCode(size), dc.getSize(size));
+        writeBits(diff < 0 ? diff - 1 : diff, size);
+
+        int run = 0;
+        for (int k = 1; k < 64; k++) {
+            int value = block[k];
+            if (value == 0) {
+                run++;
+                continue;
+            }
+            while (run > 15) {
+                // ZRL, sixteen zeros
+                writeBits(ac.getCode(0xF0), ac.getSize(0xF0));
+                run -= 16;
+            }
+            size = category(value);
+            int symbol = (run << 4) | size;
+            writeBits(ac.getCode(symbol), ac.getSize(symbol));
+            writeBits(value < 0 ? value - 1 : value, size);
+            run = 0;
+        }
+        if (run > 0) {
+            // EOB
+            writeBits(ac.getCode(0x00), ac.getSize(0x00));
+        }
+    }
+
+    /**
+     * pad the last byte with ones, as required before a marker
+     */
+    public void flush() throws IOException {
+        if (count > 0) {
+            writeBits(0x7F, 8 - count);
+        }
+    }
+}
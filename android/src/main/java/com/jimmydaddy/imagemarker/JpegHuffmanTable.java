@@ -0,0 +1,82 @@
+package com.jimmydaddy.imagemarker;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A JPEG Huffman table as stored in a DHT segment: the number of codes of each length 1-16
+ * and the symbols in code order, with the derived code of every symbol
+ */
+
+public class JpegHuffmanTable {
+    public static final JpegHuffmanTable DC_LUMINANCE = new JpegHuffmanTable(JpegTables.DC_LUMINANCE_BITS, JpegTables.DC_LUMINANCE_VALUES);
+    public static final JpegHuffmanTable DC_CHROMINANCE = new JpegHuffmanTable(JpegTables.DC_CHROMINANCE_BITS, JpegTables.DC_CHROMINANCE_VALUES);
+    public static final JpegHuffmanTable AC_LUMINANCE = new JpegHuffmanTable(JpegTables.AC_LUMINANCE_BITS, JpegTables.AC_LUMINANCE_VALUES);
+    public static final JpegHuffmanTable AC_CHROMINANCE = new JpegHuffmanTable(JpegTables.AC_CHROMINANCE_BITS, JpegTables.AC_CHROMINANCE_VALUES);
+
+    private final int[] bits;
+    private final int[] values;
+    // code and code length of every symbol, length 0 when the symbol has no code
+    private final int[] codes = new int[256];
+    private final int[] sizes = new int[256];
+
+    /**
+     * @param bits 16 counts, codes of length 1 to 16
+     * @param values symbols in order of increasing code length
+     */
+    public JpegHuffmanTable(int[] bits, int[] values) {
+        this.bits = bits;
+        this.values = values;
+        // ITU T.81 annex C
+        int code = 0;
+        int k = 0;
+        for (int length = 1; length <= 16; length++) {
+            for (int i = 0; i < bits[length - 1]; i++) {
+                codes[values[k]] = code;
+                sizes[values[k]] = length;
+                code++;
+                k++;
+            }
+            code <<= 1;
+        }
+    }
+
+    public int[] getBits() {
+        return bits;
+    }
+
+    public int[] getValues() {
+        return values;
+    }
+
+    public int getCode(int symbol) {
+        return codes[symbol];
+    }
+
+    public int getSize(int symbol) {
+        return sizes[symbol];
+    }
+
+    /**
+     * write this table as the body of a DHT segment
+     * @param out
+     * @param tableClass 0 for DC, 1 for AC
+     * @param id destination 0-3
+     */
+    public void writeTo(OutputStream out, int tableClass, int id) throws IOException {
+        out.write((tableClass << 4) | id);
+        for (int i = 0; i < 16; i++) {
+            out.write(bits[i]);
+        }
+        for (int value : values) {
+            out.write(value);
+        }
+    }
+
+    /**
+     * size of this table in a DHT segment
+     */
+    public int getSegmentLength() {
+        return 1 + 16 + values.length;
+    }
+}
@@ -0,0 +1,288 @@
+package com.jimmydaddy.imagemarker;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Streaming baseline JPEG writer, YCbCr 4:2:0 with the standard tables scaled to a quality.
+ * Rows are buffered until a full row of 16x16 MCUs is available, so memory stays at
+ * 16 rows of the image whatever its height.
+ */
+
+public class JpegStripEncoder implements StripEncoder {
+    private static final int MCU_SIZE = 16;
+    // AAN DCT scale factors, folded into the quantization divisors
+    private static final double[] AAN_SCALE = {
+            1.0, 1.387039845, 1.306562965, 1.175875602,
+            1.0, 0.785694958, 0.541196100, 0.275899379
+    };
+
+    private final OutputStream out;
+    private final int quality;
+    private final int[] luminanceQuant;
+    private final int[] chrominanceQuant;
+    private final float[] luminanceDivisors;
+    private final float[] chrominanceDivisors;
+    private JpegBitWriter writer;
+    private int width;
+    private int paddedWidth;
+    private float[] yRows;
+    private float[] cbRows;
+    private float[] crRows;
+    private int bufferedRows = 0;
+    private int lastDcY = 0;
+    private int lastDcCb = 0;
+    private int lastDcCr = 0;
+    private final float[] block = new float[64];
+    private final int[] quantized = new int[64];
+
+    /**
+     * @param out
+     * @param quality 1-100, like Bitmap.compress
+     */
+    public JpegStripEncoder(OutputStream out, int quality) {
+        this.out = out;
+        this.quality = quality;
+        this.luminanceQuant = JpegTables.scaleQuant(JpegTables.LUMINANCE_QUANT, quality);
+        this.chrominanceQuant = JpegTables.scaleQuant(JpegTables.CHROMINANCE_QUANT, quality);
+        this.luminanceDivisors = divisors(luminanceQuant);
+        this.chrominanceDivisors = divisors(chrominanceQuant);
+    }
+
+    public int getQuality() {
+        return quality;
+    }
+
+    static float[] divisors(int[] quant) {
+        float[] divisors = new float[64];
+        for (int row = 0; row < 8; row++) {
+            for (int col = 0; col < 8; col++) {
+                int i = row * 8 + col;
+                divisors[i] = (float) (1.0 / (quant[i] * AAN_SCALE[row] * AAN_SCALE[col] * 8.0));
+            }
+        }
+        return divisors;
+    }
+
+    @Override
+    public void begin(int width, int height) throws IOException {
+        this.width = width;
+        this.paddedWidth = (width + MCU_SIZE - 1) / MCU_SIZE * MCU_SIZE;
+        this.yRows = new float[paddedWidth * MCU_SIZE];
+        this.cbRows = new float[paddedWidth * MCU_SIZE];
+        this.crRows = new float[paddedWidth * MCU_SIZE];
+        writeHeaders(out, width, height, luminanceQuant, chrominanceQuant);
+        writer = new JpegBitWriter(out);
+    }
+
+    /**
+     * SOI, JFIF, DQT, SOF0 (4:2:0), DHT with the standard tables and SOS
+     */
+    static void writeHeaders(OutputStream out, int width, int height, int[] luminanceQuant, int[] chrominanceQuant) throws IOException {
+        ByteArrayOutputStream headers = new ByteArrayOutputStream(1024);
+        // SOI
+        headers.write(0xFF);
+        headers.write(0xD8);
+        // APP0 JFIF 1.01, no thumbnail
+        writeSegment(headers, 0xE0, new byte[]{'J', 'F', 'I', 'F', 0, 1, 1, 0, 0, 1, 0, 1, 0, 0});
+
+        ByteArrayOutputStream dqt = new ByteArrayOutputStream(130);
+        dqt.write(0);
+        for (int k = 0; k < 64; k++) {
+            dqt.write(luminanceQuant[JpegTables.ZIGZAG[k]]);
+        }
+        dqt.write(1);
+        for (int k = 0; k < 64; k++) {
+            dqt.write(chrominanceQuant[JpegTables.ZIGZAG[k]]);
+        }
+        writeSegment(headers, 0xDB, dqt.toByteArray());
+
+        writeSegment(headers, 0xC0, new byte[]{
+                8,
+                (byte) (height >> 8), (byte) height,
+                (byte) (width >> 8), (byte) width,
+                3,
+                1, 0x22, 0,
+                2, 0x11, 1,
+                3, 0x11, 1
+        });
+
+        ByteArrayOutputStream dht = new ByteArrayOutputStream(432);
+        JpegHuffmanTable.DC_LUMINANCE.writeTo(dht, 0, 0);
+        JpegHuffmanTable.AC_LUMINANCE.writeTo(dht, 1, 0);
+        JpegHuffmanTable.DC_CHROMINANCE.writeTo(dht, 0, 1);
+        JpegHuffmanTable.AC_CHROMINANCE.writeTo(dht, 1, 1);
+        writeSegment(headers, 0xC4, dht.toByteArray());
+
+        writeSegment(headers, 0xDA, new byte[]{
+                3,
+                1, 0x00,
+                2, 0x11,
+                3, 0x11,
+                0, 63, 0
+        });
+        headers.writeTo(out);
+    }
+
+    static void writeSegment(OutputStream out, int marker, byte[] data) throws IOException {
+        int length = data.length + 2;
+        out.write(0xFF);
+        out.write(marker);
+        out.write(length >> 8);
+        out.write(length & 0xFF);
+        out.write(data);
+    }
+
+    @Override
+    public void writeRows(int[] pixels, int rows) throws IOException {
+        for (int y = 0; y < rows; y++) {
+            int offset = y * width;
+            int row = bufferedRows * paddedWidth;
+            for (int x = 0; x < paddedWidth; x++) {
+                // repeat the last column into the padding
+                int color = pixels[offset + Math.min(x, width - 1)];
+                int r = (color >> 16) & 0xFF;
+                int g = (color >> 8) & 0xFF;
+                int b = color & 0xFF;
+                yRows[row + x] = 0.299f * r + 0.587f * g + 0.114f * b - 128;
+                cbRows[row + x] = -0.168736f * r - 0.331264f * g + 0.5f * b;
+                crRows[row + x] = 0.5f * r - 0.418688f * g - 0.081312f * b;
+            }
+            bufferedRows++;
+            if (bufferedRows == MCU_SIZE) {
+                encodeMcuRow();
+                bufferedRows = 0;
+            }
+        }
+    }
+
+    @Override
+    public void finish() throws IOException {
+        if (bufferedRows > 0) {
+            // repeat the last row into the padding
+            int last = (bufferedRows - 1) * paddedWidth;
+            for (int y = bufferedRows; y < MCU_SIZE; y++) {
+                System.arraycopy(yRows, last, yRows, y * paddedWidth, paddedWidth);
+                System.arraycopy(cbRows, last, cbRows, y * paddedWidth, paddedWidth);
+                System.arraycopy(crRows, last, crRows, y * paddedWidth, paddedWidth);
+            }
+            encodeMcuRow();
+            bufferedRows = 0;
+        }
+        writer.flush();
+        // EOI
+        out.write(0xFF);
+        out.write(0xD9);
+        out.flush();
+    }
+
+    private void encodeMcuRow() throws IOException {
+        for (int x = 0; x < paddedWidth; x += MCU_SIZE) {
+            lastDcY = encodeBlock(yRows, x, 0, lastDcY, true);
+            lastDcY = encodeBlock(yRows, x + 8, 0, lastDcY, true);
+            lastDcY = encodeBlock(yRows, x, 8, lastDcY, true);
+            lastDcY = encodeBlock(yRows, x + 8, 8, lastDcY, true);
+            lastDcCb = encodeSubsampledBlock(cbRows, x, lastDcCb);
+            lastDcCr = encodeSubsampledBlock(crRows, x, lastDcCr);
+        }
+    }
+
+    private int encodeBlock(float[] plane, int left, int top, int previousDc, boolean luminance) throws IOException {
+        for (int row = 0; row < 8; row++) {
+            System.arraycopy(plane, (top + row) * paddedWidth + left, block, row * 8, 8);
+        }
+        return writeBlock(previousDc, luminance);
+    }
+
+    private int encodeSubsampledBlock(float[] plane, int left, int previousDc) throws IOException {
+        for (int row = 0; row < 8; row++) {
+            int top = row * 2 * paddedWidth + left;
+            int bottom = top + paddedWidth;
+            for (int col = 0; col < 8; col++) {
+                int x = col * 2;
+                block[row * 8 + col] = (plane[top + x] + plane[top + x + 1] + plane[bottom + x] + plane[bottom + x + 1]) * 0.25f;
+            }
+        }
+        return writeBlock(previousDc, false);
+    }
+
+    private int writeBlock(int previousDc, boolean luminance) throws IOException {
+        forwardDct(block);
+        float[] divisors = luminance ? luminanceDivisors : chrominanceDivisors;
+        for (int k = 0; k < 64; k++) {
+            int i = JpegTables.ZIGZAG[k];
+            int value = Math.round(block[i] * divisors[i]);
+            // keep within the categories the huffman tables have codes for
+            int limit = k == 0 ? 2047 : 1023;
+            quantized[k] = Math.max(-limit, Math.min(limit, value));
+        }
+        writer.writeBlock(quantized, previousDc,
+                luminance ? JpegHuffmanTable.DC_LUMINANCE : JpegHuffmanTable.DC_CHROMINANCE,
+                luminance ? JpegHuffmanTable.AC_LUMINANCE : JpegHuffmanTable.AC_CHROMINANCE);
+        return quantized[0];
+    }
+
+    /**
+     * in place AAN float forward DCT (libjpeg jfdctflt), the output is scaled by the AAN factors
+     * @param data 8x8 samples in natural order
+     */
+    static void forwardDct(float[] data) {
+        for (int pass = 0; pass < 2; pass++) {
+            // rows first, then columns
+            int step = pass == 0 ? 1 : 8;
+            int stride = pass == 0 ? 8 : 1;
+            for (int i = 0; i < 8; i++) {
+                int p = i * stride;
+                float d0 = data[p];
+                float d1 = data[p + step];
+                float d2 = data[p + 2 * step];
+                float d3 = data[p + 3 * step];
+                float d4 = data[p + 4 * step];
+                float d5 = data[p + 5 * step];
+                float d6 = data[p + 6 * step];
+                float d7 = data[p + 7 * step];
+
+                float tmp0 = d0 + d7;
+                float tmp7 = d0 - d7;
+                float tmp1 = d1 + d6;
+                float tmp6 = d1 - d6;
+                float tmp2 = d2 + d5;
+                float tmp5 = d2 - d5;
+                float tmp3 = d3 + d4;
+                float tmp4 = d3 - d4;
+
+                // even part
+                float tmp10 = tmp0 + tmp3;
+                float tmp13 = tmp0 - tmp3;
+                float tmp11 = tmp1 + tmp2;
+                float tmp12 = tmp1 - tmp2;
+
+                data[p] = tmp10 + tmp11;
+                data[p + 4 * step] = tmp10 - tmp11;
+
+                float z1 = (tmp12 + tmp13) * 0.707106781f;
+                data[p + 2 * step] = tmp13 + z1;
+                data[p + 6 * step] = tmp13 - z1;
+
+                // odd part
+                tmp10 = tmp4 + tmp5;
+                tmp11 = tmp5 + tmp6;
+                tmp12 = tmp6 + tmp7;
+
+                float z5 = (tmp10 - tmp12) * 0.382683433f;
+                float z2 = 0.541196100f * tmp10 + z5;
+                float z4 = 1.306562965f * tmp12 + z5;
+                float z3 = tmp11 * 0.707106781f;
+
+                float z11 = tmp7 + z3;
+                float z13 = tmp7 - z3;
+
+                data[p + 5 * step] = z13 + z2;
+                data[p + 3 * step] = z13 - z2;
+                data[p + step] = z11 + z4;
+                data[p + 7 * step] = z11 - z4;
+            }
+        }
+    }
+}
@@ -0,0 +1,813 @@
+package com.jimmydaddy.imagemarker;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Marks a baseline JPEG without decoding it: the entropy coded data is read block by block,
+ * the quantized coefficients of every block the overlay doesn't touch are written back unchanged,
+ * and only the touched blocks are decoded, composited and quantized again with the source tables.
+ *
+ * Untouched blocks are bit exact, so the image keeps its quality everywhere but under the overlay,
+ * and no full size bitmap is ever allocated. Handles sequential Huffman JPEGs (SOF0/SOF1) with one
+ * interleaved scan, grayscale or YCbCr with any 1x1/2x1/1x2/2x2 sampling and restart intervals.
+ * {@link #isSupported()} is false for anything else, e.g. progressive files, the caller then takes
+ * the regular decode and encode path.
+ */
+
+public class JpegTranscoder {
+    private static final int SOF0 = 0xC0;
+    private static final int SOF1 = 0xC1;
+    private static final int DHT = 0xC4;
+    private static final int SOI = 0xD8;
+    private static final int EOI = 0xD9;
+    private static final int SOS = 0xDA;
+    private static final int DQT = 0xDB;
+    private static final int DRI = 0xDD;
+    private static final int RST0 = 0xD0;
+    private static final int APP14 = 0xEE;
+
+    private static final double[][] IDCT_COS = new double[8][8];
+
+    static {
+        for (int x = 0; x < 8; x++) {
+            for (int u = 0; u < 8; u++) {
+                double c = u == 0 ? Math.sqrt(0.5) : 1;
+                IDCT_COS[x][u] = c * Math.cos((2 * x + 1) * u * Math.PI / 16) / 2;
+            }
+        }
+    }
+
+    /**
+     * ARGB pixels, not premultiplied, drawn with their top left corner at (left, top)
+     */
+    public static class Overlay {
+        final int[] pixels;
+        final int width;
+        final int height;
+        final int left;
+        final int top;
+
+        public Overlay(int[] pixels, int width, int height, int left, int top) {
+            this.pixels = pixels;
+            this.width = width;
+            this.height = height;
+            this.left = left;
+            this.top = top;
+        }
+
+        boolean intersects(int x0, int y0, int x1, int y1) {
+            return x0 < left + width && x1 > left && y0 < top + height && y1 > top;
+        }
+
+        /**
+         * @return the color at image coordinates, 0 (transparent) outside of the overlay
+         */
+        int colorAt(int x, int y) {
+            x -= left;
+            y -= top;
+            if (x < 0 || y < 0 || x >= width || y >= height) {
+                return 0;
+            }
+            return pixels[y * width + x];
+        }
+    }
+
+    private static class Component {
+        int id;
+        int h;
+        int v;
+        int quantId;
+        int dcId;
+        int acId;
+        int previousDc;
+        int previousOutDc;
+        // quantized coefficients of the blocks of the current MCU, zigzag order
+        int[][] blocks;
+    }
+
+    /**
+     * decoding side of a DHT table
+     */
+    private static class HuffmanDecoder {
+        final int[] maxCode = new int[18];
+        final int[] valueOffset = new int[17];
+        final int[] values;
+        // 8 bit lookahead: code length (0 when longer) and symbol
+        final int[] lookupLength = new int[256];
+        final int[] lookupValue = new int[256];
+
+        HuffmanDecoder(int[] bits, int[] values) {
+            this.values = values;
+            int code = 0;
+            int k = 0;
+            for (int length = 1; length <= 16; length++) {
+                valueOffset[length] = k - code;
+                int count = bits[length - 1];
+                if (count > 0) {
+                    for (int i = 0; i < count; i++) {
+                        if (length <= 8) {
+                            int shift = 8 - length;
+                            for (int fill = 0; fill < (1 << shift); fill++) {
+                                int index = (code << shift) | fill;
+                                lookupLength[index] = length;
+                                lookupValue[index] = values[k];
+                            }
+                        }
+                        code++;
+                        k++;
+                    }
+                    maxCode[length] = code - 1;
+                } else {
+                    maxCode[length] = -1;
+                }
+                code <<= 1;
+            }
+            maxCode[17] = Integer.MAX_VALUE;
+        }
+    }
+
+    private final BufferedInputStream in;
+    private final List<byte[]> segments = new ArrayList<>();
+    private final int[][] quantTables = new int[4][];
+    private final int[][] huffmanBits = new int[8][];
+    private final int[][] huffmanValues = new int[8][];
+    private final HuffmanDecoder[] decoders = new HuffmanDecoder[8];
+    private Component[] components;
+    private int width;
+    private int height;
+    private int maxH = 1;
+    private int maxV = 1;
+    private int restartInterval = 0;
+    private boolean supported = true;
+    private String unsupportedReason;
+    private boolean adobeTransform = false;
+
+    // entropy decoding state
+    private long bitBuffer = 0;
+    private int bitCount = 0;
+    private int pendingMarker = -1;
+
+    private int touchedBlocks = 0;
+    private int totalBlocks = 0;
+
+    /**
+     * reads the headers, up to and including the start of scan
+     * @param input
+     */
+    public JpegTranscoder(InputStream input) throws IOException {
+        this.in = input instanceof BufferedInputStream ? (BufferedInputStream) input : new BufferedInputStream(input, 64 * 1024);
+        readHeaders();
+    }
+
+    public boolean isSupported() {
+        return supported;
+    }
+
+    public String getUnsupportedReason() {
+        return unsupportedReason;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getTouchedBlocks() {
+        return touchedBlocks;
+    }
+
+    public int getTotalBlocks() {
+        return totalBlocks;
+    }
+
+    private void unsupported(String reason) {
+        if (supported) {
+            supported = false;
+            unsupportedReason = reason;
+        }
+    }
+
+    private int readByte() throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException("Unexpected end of JPEG");
+        }
+        return b;
+    }
+
+    private byte[] readSegment(int marker) throws IOException {
+        int length = (readByte() << 8) | readByte();
+        byte[] segment = new byte[length + 2];
+        segment[0] = (byte) 0xFF;
+        segment[1] = (byte) marker;
+        segment[2] = (byte) (length >> 8);
+        segment[3] = (byte) length;
+        int offset = 4;
+        while (offset < segment.length) {
+            int n = in.read(segment, offset, segment.length - offset);
+            if (n < 0) {
+                throw new EOFException("Unexpected end of JPEG");
+            }
+            offset += n;
+        }
+        return segment;
+    }
+
+    private void readHeaders() throws IOException {
+        if (readByte() != 0xFF || readByte() != SOI) {
+            unsupported("not a JPEG");
+            return;
+        }
+        while (true) {
+            int b = readByte();
+            if (b != 0xFF) {
+                unsupported("garbage between segments");
+                return;
+            }
+            int marker = readByte();
+            while (marker == 0xFF) {
+                marker = readByte();
+            }
+            if (marker == EOI) {
+                unsupported("no scan");
+                return;
+            }
+            byte[] segment = readSegment(marker);
+            switch (marker) {
+                case SOF0:
+                case SOF1:
+                    readFrame(segment);
+                    segments.add(segment);
+                    break;
+                case DHT:
+                    readHuffmanTables(segment);
+                    break;
+                case DQT:
+                    readQuantTables(segment);
+                    segments.add(segment);
+                    break;
+                case DRI:
+                    restartInterval = ((segment[4] & 0xFF) << 8) | (segment[5] & 0xFF);
+                    segments.add(segment);
+                    break;
+                case SOS:
+                    readScan(segment);
+                    return;
+                default:
+                    if (marker >= 0xC2 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC) {
+                        unsupported("not a sequential huffman JPEG");
+                        return;
+                    }
+                    if (marker == APP14 && segment.length >= 16 && segment[4] == 'A' && segment[5] == 'd') {
+                        adobeTransform = segment[15] != 1;
+                    }
+                    // APPn, COM and the like are kept as they are, exif included
+                    segments.add(segment);
+            }
+            if (!supported) {
+                return;
+            }
+        }
+    }
+
+    private void readFrame(byte[] segment) {
+        if ((segment[4] & 0xFF) != 8) {
+            unsupported("only 8 bit samples");
+            return;
+        }
+        height = ((segment[5] & 0xFF) << 8) | (segment[6] & 0xFF);
+        width = ((segment[7] & 0xFF) << 8) | (segment[8] & 0xFF);
+        int count = segment[9] & 0xFF;
+        if ((count != 1 && count != 3) || width == 0 || height == 0) {
+            unsupported("only grayscale and YCbCr");
+            return;
+        }
+        components = new Component[count];
+        for (int i = 0; i < count; i++) {
+            Component component = new Component();
+            component.id = segment[10 + i * 3] & 0xFF;
+            component.h = (segment[11 + i * 3] >> 4) & 0x0F;
+            component.v = segment[11 + i * 3] & 0x0F;
+            component.quantId = segment[12 + i * 3] & 0x03;
+            if (component.h < 1 || component.h > 2 || component.v < 1 || component.v > 2) {
+                unsupported("unusual sampling factors");
+                return;
+            }
+            maxH = Math.max(maxH, component.h);
+            maxV = Math.max(maxV, component.v);
+            components[i] = component;
+        }
+    }
+
+    private void readQuantTables(byte[] segment) {
+        int offset = 4;
+        while (offset < segment.length) {
+            int precision = (segment[offset] >> 4) & 0x0F;
+            int id = segment[offset] & 0x03;
+            offset++;
+            int[] table = new int[64];
+            for (int k = 0; k < 64; k++) {
+                int value;
+                if (precision == 0) {
+                    value = segment[offset++] & 0xFF;
+                } else {
+                    value = ((segment[offset] & 0xFF) << 8) | (segment[offset + 1] & 0xFF);
+                    offset += 2;
+                }
+                table[JpegTables.ZIGZAG[k]] = value;
+            }
+            quantTables[id] = table;
+        }
+    }
+
+    private void readHuffmanTables(byte[] segment) {
+        int offset = 4;
+        while (offset < segment.length) {
+            int tableClass = (segment[offset] >> 4) & 0x01;
+            int id = segment[offset] & 0x03;
+            offset++;
+            int[] bits = new int[16];
+            int total = 0;
+            for (int i = 0; i < 16; i++) {
+                bits[i] = segment[offset + i] & 0xFF;
+                total += bits[i];
+            }
+            offset += 16;
+            int[] values = new int[total];
+            for (int i = 0; i < total; i++) {
+                values[i] = segment[offset + i] & 0xFF;
+            }
+            offset += total;
+            int index = tableClass * 4 + id;
+            huffmanBits[index] = bits;
+            huffmanValues[index] = values;
+            decoders[index] = new HuffmanDecoder(bits, values);
+        }
+    }
+
+    private void readScan(byte[] segment) {
+        if (null == components) {
+            unsupported("no frame header");
+            return;
+        }
+        if (components.length == 3 && adobeTransform) {
+            unsupported("RGB JPEG");
+            return;
+        }
+        int count = segment[4] & 0xFF;
+        if (count != components.length) {
+            unsupported("more than one scan");
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            int id = segment[5 + i * 2] & 0xFF;
+            int tables = segment[6 + i * 2] & 0xFF;
+            Component component = null;
+            for (Component c : components) {
+                if (c.id == id) {
+                    component = c;
+                }
+            }
+            if (null == component || component != components[i]) {
+                unsupported("scan components out of order");
+                return;
+            }
+            component.dcId = (tables >> 4) & 0x03;
+            component.acId = tables & 0x03;
+            if (null == decoders[component.dcId] || null == decoders[4 + component.acId] || null == quantTables[component.quantId]) {
+                unsupported("missing tables");
+                return;
+            }
+        }
+        int offset = 5 + count * 2;
+        if ((segment[offset] & 0xFF) != 0 || (segment[offset + 1] & 0xFF) != 63 || (segment[offset + 2] & 0xFF) != 0) {
+            unsupported("not a sequential scan");
+        }
+        if (components.length == 1) {
+            // a single component scan is not interleaved, its MCU is one block
+            components[0].h = 1;
+            components[0].v = 1;
+            maxH = 1;
+            maxV = 1;
+        }
+    }
+
+    /**
+     * IJG quality the luminance table was most likely scaled from, 1-100
+     */
+    public int estimateQuality() {
+        int[] table = quantTables[null != components ? components[0].quantId : 0];
+        if (null == table) {
+            return 0;
+        }
+        double sum = 0;
+        for (int i = 0; i < 64; i++) {
+            sum += table[i] * 100.0 / JpegTables.LUMINANCE_QUANT[i];
+        }
+        double factor = sum / 64;
+        int quality = factor <= 100 ? (int) Math.round((200 - factor) / 2) : (int) Math.round(5000 / factor);
+        return Math.max(1, Math.min(100, quality));
+    }
+
+    private boolean isComplete(int index) {
+        int[] values = huffmanValues[index];
+        boolean[] present = new boolean[256];
+        for (int value : values) {
+            present[value] = true;
+        }
+        if (index < 4) {
+            for (int size = 0; size <= 11; size++) {
+                if (!present[size]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (!present[0x00] || !present[0xF0]) {
+            return false;
+        }
+        for (int run = 0; run < 16; run++) {
+            for (int size = 1; size <= 10; size++) {
+                if (!present[(run << 4) | size]) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * write the marked image
+     * @param output
+     * @param overlay null to copy the image, re-entropy-coded
+     */
+    public void transcode(OutputStream output, Overlay overlay) throws IOException {
+        if (!supported) {
+            throw new IOException("Unsupported JPEG: " + unsupportedReason);
+        }
+        // touched blocks may need codes an optimized table doesn't have, fall back to the standard ones
+        boolean useSourceTables = true;
+        for (Component component : components) {
+            useSourceTables &= isComplete(component.dcId) && isComplete(4 + component.acId);
+        }
+        JpegHuffmanTable[] dcTables = new JpegHuffmanTable[components.length];
+        JpegHuffmanTable[] acTables = new JpegHuffmanTable[components.length];
+        ByteArrayOutputStream dht = new ByteArrayOutputStream(432);
+        ByteArrayOutputStream sos = new ByteArrayOutputStream(16);
+        sos.write(components.length);
+        boolean[] written = new boolean[8];
+        for (int i = 0; i < components.length; i++) {
+            Component component = components[i];
+            int dcId;
+            int acId;
+            if (useSourceTables) {
+                dcId = component.dcId;
+                acId = component.acId;
+                dcTables[i] = new JpegHuffmanTable(huffmanBits[dcId], huffmanValues[dcId]);
+                acTables[i] = new JpegHuffmanTable(huffmanBits[4 + acId], huffmanValues[4 + acId]);
+            } else {
+                dcId = i == 0 ? 0 : 1;
+                acId = dcId;
+                dcTables[i] = i == 0 ? JpegHuffmanTable.DC_LUMINANCE : JpegHuffmanTable.DC_CHROMINANCE;
+                acTables[i] = i == 0 ? JpegHuffmanTable.AC_LUMINANCE : JpegHuffmanTable.AC_CHROMINANCE;
+            }
+            if (!written[dcId]) {
+                dcTables[i].writeTo(dht, 0, dcId);
+                written[dcId] = true;
+            }
+            if (!written[4 + acId]) {
+                acTables[i].writeTo(dht, 1, acId);
+                written[4 + acId] = true;
+            }
+            sos.write(component.id);
+            sos.write((dcId << 4) | acId);
+        }
+        sos.write(0);
+        sos.write(63);
+        sos.write(0);
+
+        output.write(0xFF);
+        output.write(SOI);
+        for (byte[] segment : segments) {
+            output.write(segment);
+        }
+        JpegStripEncoder.writeSegment(output, DHT, dht.toByteArray());
+        JpegStripEncoder.writeSegment(output, SOS, sos.toByteArray());
+
+        int mcusX;
+        int mcusY;
+        if (components.length == 1) {
+            mcusX = (width + 7) / 8;
+            mcusY = (height + 7) / 8;
+        } else {
+            mcusX = (width + 8 * maxH - 1) / (8 * maxH);
+            mcusY = (height + 8 * maxV - 1) / (8 * maxV);
+        }
+        for (Component component : components) {
+            component.blocks = new int[component.h * component.v][64];
+        }
+        float[][] samples = new float[components.length][];
+        float[][] deltas = new float[components.length][];
+        for (int i = 0; i < components.length; i++) {
+            samples[i] = new float[components[i].h * 8 * components[i].v * 8];
+            deltas[i] = new float[samples[i].length];
+        }
+        boolean[][] touched = new boolean[components.length][];
+        for (int i = 0; i < components.length; i++) {
+            touched[i] = new boolean[components[i].h * components[i].v];
+        }
+
+        JpegBitWriter writer = new JpegBitWriter(output);
+        int mcuCount = mcusX * mcusY;
+        int restartCount = 0;
+        for (int mcu = 0; mcu < mcuCount; mcu++) {
+            if (restartInterval > 0 && mcu > 0 && mcu % restartInterval == 0) {
+                readRestart();
+                writer.flush();
+                output.write(0xFF);
+                output.write(RST0 + (restartCount & 7));
+                restartCount++;
+                for (Component component : components) {
+                    component.previousDc = 0;
+                    component.previousOutDc = 0;
+                }
+            }
+            int mcuX = mcu % mcusX;
+            int mcuY = mcu / mcusX;
+            boolean mcuTouched = false;
+            for (int c = 0; c < components.length; c++) {
+                Component component = components[c];
+                for (int b = 0; b < component.blocks.length; b++) {
+                    decodeBlock(component, component.blocks[b]);
+                    totalBlocks++;
+                    int x0 = (mcuX * component.h + b % component.h) * 8 * maxH / component.h;
+                    int y0 = (mcuY * component.v + b / component.h) * 8 * maxV / component.v;
+                    int x1 = x0 + 8 * maxH / component.h;
+                    int y1 = y0 + 8 * maxV / component.v;
+                    touched[c][b] = null != overlay && x0 < width && y0 < height && overlay.intersects(x0, y0, x1, y1);
+                    mcuTouched |= touched[c][b];
+                }
+            }
+            if (mcuTouched) {
+                composite(overlay, mcuX, mcuY, samples, deltas, touched);
+            }
+            for (int c = 0; c < components.length; c++) {
+                Component component = components[c];
+                for (int[] block : component.blocks) {
+                    writer.writeBlock(block, component.previousOutDc, dcTables[c], acTables[c]);
+                    component.previousOutDc = block[0];
+                }
+            }
+        }
+        writer.flush();
+        output.write(0xFF);
+        output.write(EOI);
+        output.flush();
+    }
+
+    // entropy decoding
+
+    private int nextByte() throws IOException {
+        if (pendingMarker >= 0) {
+            return 0;
+        }
+        int b = in.read();
+        if (b < 0) {
+            pendingMarker = EOI;
+            return 0;
+        }
+        if (b == 0xFF) {
+            int next = in.read();
+            while (next == 0xFF) {
+                next = in.read();
+            }
+            if (next == 0) {
+                return 0xFF;
+            }
+            pendingMarker = next < 0 ? EOI : next;
+            return 0;
+        }
+        return b;
+    }
+
+    private int peekBits(int n) throws IOException {
+        while (bitCount < n) {
+            bitBuffer = (bitBuffer << 8) | nextByte();
+            bitCount += 8;
+        }
+        return (int) (bitBuffer >>> (bitCount - n)) & ((1 << n) - 1);
+    }
+
+    private int readBits(int n) throws IOException {
+        if (n == 0) {
+            return 0;
+        }
+        int value = peekBits(n);
+        bitCount -= n;
+        return value;
+    }
+
+    private int decodeSymbol(HuffmanDecoder decoder) throws IOException {
+        int look = peekBits(8);
+        int length = decoder.lookupLength[look];
+        if (length > 0) {
+            bitCount -= length;
+            return decoder.lookupValue[look];
+        }
+        for (length = 9; length <= 16; length++) {
+            int code = peekBits(length);
+            if (code <= decoder.maxCode[length]) {
+                bitCount -= length;
+                return decoder.values[decoder.valueOffset[length] + code];
+            }
+        }
+        throw new IOException("Corrupt JPEG data");
+    }
+
+    private static int extend(int value, int size) {
+        return size > 0 && value < (1 << (size - 1)) ? value - (1 << size) + 1 : value;
+    }
+
+    private void decodeBlock(Component component, int[] block) throws IOException {
+        Arrays.fill(block, 0);
+        int size = decodeSymbol(decoders[component.dcId]);
+        int diff = extend(readBits(size), size);
+        component.previousDc += diff;
+        block[0] = component.previousDc;
+
+        HuffmanDecoder ac = decoders[4 + component.acId];
+        for (int k = 1; k < 64; ) {
+            int symbol = decodeSymbol(ac);
+            int run = symbol >> 4;
+            size = symbol & 0x0F;
+            if (size == 0) {
+                if (run != 15) {
+                    break;
+                }
+                k += 16;
+                continue;
+            }
+            k += run;
+            if (k > 63) {
+                throw new IOException("Corrupt JPEG data");
+            }
+            block[k] = extend(readBits(size), size);
+            k++;
+        }
+    }
+
+    private void readRestart() throws IOException {
+        bitCount = 0;
+        bitBuffer = 0;
+        if (pendingMarker < 0) {
+            // look for the marker
+            int b = in.read();
+            while (b >= 0) {
+                if (b == 0xFF) {
+                    int next = in.read();
+                    while (next == 0xFF) {
+                        next = in.read();
+                    }
+                    if (next != 0) {
+                        pendingMarker = next;
+                        break;
+                    }
+                }
+                b = in.read();
+            }
+        }
+        if (pendingMarker >= RST0 && pendingMarker <= RST0 + 7) {
+            pendingMarker = -1;
+        }
+    }
+
+    // compositing of the touched blocks
+
+    private void composite(Overlay overlay, int mcuX, int mcuY, float[][] samples, float[][] deltas, boolean[][] touched) {
+        // decode the MCU to samples
+        for (int c = 0; c < components.length; c++) {
+            Component component = components[c];
+            int[] quant = quantTables[component.quantId];
+            int stride = component.h * 8;
+            for (int b = 0; b < component.blocks.length; b++) {
+                inverseDct(component.blocks[b], quant, samples[c], (b / component.h) * 8 * stride + (b % component.h) * 8, stride);
+            }
+        }
+
+        int mcuWidth = 8 * maxH;
+        int mcuHeight = 8 * maxV;
+        int left = mcuX * mcuWidth;
+        int top = mcuY * mcuHeight;
+        boolean gray = components.length == 1;
+        // blend the overlay over the pixels it covers, straight on the samples
+        for (int y = 0; y < mcuHeight; y++) {
+            for (int x = 0; x < mcuWidth; x++) {
+                int color = overlay.colorAt(left + x, top + y);
+                int alpha = color >>> 24;
+                if (alpha == 0) {
+                    continue;
+                }
+                float a = alpha / 255f;
+                int r = (color >> 16) & 0xFF;
+                int g = (color >> 8) & 0xFF;
+                int bl = color & 0xFF;
+                float yOver = 0.299f * r + 0.587f * g + 0.114f * bl;
+                if (gray) {
+                    int i = y * 8 * components[0].h + x;
+                    samples[0][i] = samples[0][i] * (1 - a) + yOver * a;
+                    continue;
+                }
+                float cbOver = -0.168736f * r - 0.331264f * g + 0.5f * bl + 128;
+                float crOver = 0.5f * r - 0.418688f * g - 0.081312f * bl + 128;
+                float[] over = {yOver, cbOver, crOver};
+                for (int c = 0; c < 3; c++) {
+                    Component component = components[c];
+                    int sx = maxH / component.h;
+                    int sy = maxV / component.v;
+                    int i = (y / sy) * component.h * 8 + x / sx;
+                    // a subsampled sample covers sx * sy pixels, it moves by the mean of their changes
+                    deltas[c][i] += (over[c] - samples[c][i]) * a / (sx * sy);
+                }
+            }
+        }
+        if (!gray) {
+            for (int c = 0; c < 3; c++) {
+                for (int i = 0; i < samples[c].length; i++) {
+                    samples[c][i] += deltas[c][i];
+                    deltas[c][i] = 0;
+                }
+            }
+        }
+
+        // quantize the touched blocks again, the others keep their coefficients
+        float[] block = new float[64];
+        for (int c = 0; c < components.length; c++) {
+            Component component = components[c];
+            float[] divisors = JpegStripEncoder.divisors(quantTables[component.quantId]);
+            int stride = component.h * 8;
+            for (int b = 0; b < component.blocks.length; b++) {
+                if (!touched[c][b]) {
+                    continue;
+                }
+                touchedBlocks++;
+                int offset = (b / component.h) * 8 * stride + (b % component.h) * 8;
+                for (int row = 0; row < 8; row++) {
+                    for (int col = 0; col < 8; col++) {
+                        block[row * 8 + col] = samples[c][offset + row * stride + col] - 128;
+                    }
+                }
+                JpegStripEncoder.forwardDct(block);
+                int[] coefficients = component.blocks[b];
+                for (int k = 0; k < 64; k++) {
+                    int i = JpegTables.ZIGZAG[k];
+                    int limit = k == 0 ? 2047 : 1023;
+                    coefficients[k] = Math.max(-limit, Math.min(limit, Math.round(block[i] * divisors[i])));
+                }
+            }
+        }
+    }
+
+    /**
+     * dequantize and inverse transform a block into samples (0-255, clamped like a decoder does)
+     */
+    private static void inverseDct(int[] coefficients, int[] quant, float[] out, int offset, int stride) {
+        double[] f = new double[64];
+        for (int k = 0; k < 64; k++) {
+            int i = JpegTables.ZIGZAG[k];
+            f[i] = coefficients[k] * quant[i];
+        }
+        double[] tmp = new double[64];
+        // rows
+        for (int v = 0; v < 8; v++) {
+            for (int x = 0; x < 8; x++) {
+                double sum = 0;
+                for (int u = 0; u < 8; u++) {
+                    sum += IDCT_COS[x][u] * f[v * 8 + u];
+                }
+                tmp[v * 8 + x] = sum;
+            }
+        }
+        // columns
+        for (int x = 0; x < 8; x++) {
+            for (int y = 0; y < 8; y++) {
+                double sum = 0;
+                for (int v = 0; v < 8; v++) {
+                    sum += IDCT_COS[y][v] * tmp[v * 8 + x];
+                }
+                float sample = (float) Math.round(sum + 128);
+                out[offset + y * stride + x] = Math.max(0, Math.min(255, sample));
+            }
+        }
+    }
+}
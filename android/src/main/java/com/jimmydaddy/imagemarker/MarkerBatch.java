@@ -0,0 +1,201 @@
+package com.jimmydaddy.imagemarker;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.ReactContext;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+import com.facebook.react.modules.core.DeviceEventManagerModule;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the items of a batch with a bounded number of them in flight, collects the per-item
+ * results and reports progress through RCTDeviceEventEmitter.
+ */
+
+public class MarkerBatch {
+    public static final String EVENT_PROGRESS = "ImageMarkerBatchProgress";
+
+    /**
+     * starts the job of one item, which has to settle the callback exactly once
+     */
+    public interface ItemRunner {
+        void run(int index, String uri, MarkerCallback callback);
+    }
+
+    private final ReactContext context;
+    private final String batchId;
+    private final String[] uris;
+    private final String[] paths;
+    private final String[] errors;
+    private final int concurrency;
+    private final ItemRunner runner;
+    private final MarkerCallback callback;
+    private final AtomicInteger nextIndex = new AtomicInteger(0);
+    // items that may start, taken by dispatch and given back by onItemDone
+    private final AtomicInteger slots;
+    // dispatch requests, the thread that brought it from 0 dispatches for the others
+    private final AtomicInteger dispatching = new AtomicInteger(0);
+    private final AtomicInteger completed = new AtomicInteger(0);
+    private final AtomicInteger failed = new AtomicInteger(0);
+    @Nullable
+    private Runnable onFinished;
+
+    public MarkerBatch(ReactContext context, String batchId, String[] uris, int concurrency, ItemRunner runner, MarkerCallback callback) {
+        this.context = context;
+        this.batchId = batchId;
+        this.uris = uris;
+        this.paths = new String[uris.length];
+        this.errors = new String[uris.length];
+        this.concurrency = Math.max(1, concurrency);
+        this.slots = new AtomicInteger(this.concurrency);
+        this.runner = runner;
+        this.callback = callback;
+    }
+
+    public String getBatchId() {
+        return batchId;
+    }
+
+    /**
+     * called once every item has settled, before the batch resolves, e.g. to release shared markers
+     * @param onFinished
+     */
+    public void setOnFinished(@Nullable Runnable onFinished) {
+        this.onFinished = onFinished;
+    }
+
+    public void start() {
+        if (uris.length == 0) {
+            finish();
+            return;
+        }
+        dispatch();
+    }
+
+    /**
+     * start items while slots are free. An item settling synchronously calls back in here from
+     * its runner: that only adds a request the running loop picks up, so the stack doesn't grow
+     * with the number of items
+     */
+    private void dispatch() {
+        if (dispatching.getAndIncrement() != 0) {
+            return;
+        }
+        int requests = 1;
+        do {
+            while (slots.get() > 0 && nextIndex.get() < uris.length) {
+                slots.decrementAndGet();
+                run(nextIndex.getAndIncrement());
+            }
+            requests = dispatching.addAndGet(-requests);
+        } while (requests != 0);
+    }
+
+    private void run(final int index) {
+        if (callback.getJob().isCancelled()) {
+            // the batch was cancelled, the items left are skipped
+            errors[index] = callback.getJob().getCancellation().getMessage();
+            failed.incrementAndGet();
+            onItemDone(index);
+            return;
+        }
+        MarkerCallback itemCallback = new MarkerCallback(callback.getJob().child()) {
+            private final AtomicBoolean settled = new AtomicBoolean(false);
+
+            @Override
+            public void resolve(Object result) {
+                if (settled.compareAndSet(false, true)) {
+                    getJob().settle();
+                    getJobMetrics().finish();
+                    MarkerMetrics.getInstance().record(getJobMetrics(), false);
+                    paths[index] = String.valueOf(result);
+                    onItemDone(index);
+                }
+            }
+
+            @Override
+            public void reject(String code, String message, @Nullable Throwable e) {
+                if (settled.compareAndSet(false, true)) {
+                    getJob().settle();
+                    getJobMetrics().finish();
+                    if (MarkerCancelledException.CODE_CANCELLED.equals(code)) {
+                        MarkerMetrics.getInstance().recordCancelled();
+                    } else {
+                        MarkerMetrics.getInstance().record(getJobMetrics(), true);
+                    }
+                    Log.d(Utils.TAG, "batch " + batchId + " item " + index + " failed: " + message);
+                    errors[index] = null != message ? message : code;
+                    failed.incrementAndGet();
+                    onItemDone(index);
+                }
+            }
+        };
+        try {
+            runner.run(index, uris[index], itemCallback);
+        } catch (Exception e) {
+            itemCallback.reject("error", e.getMessage(), e);
+        }
+    }
+
+    private void onItemDone(int index) {
+        slots.incrementAndGet();
+        int done = completed.incrementAndGet();
+        emitProgress(index, done);
+        if (done == uris.length) {
+            finish();
+        } else {
+            dispatch();
+        }
+    }
+
+    // package-private for the tests, which run without the bridge
+
+    void emitProgress(int index, int done) {
+        try {
+            WritableMap event = Arguments.createMap();
+            event.putString("batchId", batchId);
+            event.putInt("index", index);
+            event.putString("uri", uris[index]);
+            if (null != errors[index]) {
+                event.putString("error", errors[index]);
+            } else {
+                event.putString("path", paths[index]);
+            }
+            event.putInt("completed", done);
+            event.putInt("failed", failed.get());
+            event.putInt("total", uris.length);
+            context.getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class).emit(EVENT_PROGRESS, event);
+        } catch (Exception e) {
+            Log.d(Utils.TAG, "can't emit batch progress", e);
+        }
+    }
+
+    void finish() {
+        if (null != onFinished) {
+            onFinished.run();
+        }
+        WritableArray items = Arguments.createArray();
+        for (int i = 0; i < uris.length; i++) {
+            WritableMap item = Arguments.createMap();
+            item.putInt("index", i);
+            item.putString("uri", uris[i]);
+            if (null != errors[i]) {
+                item.putString("error", errors[i]);
+            } else {
+                item.putString("path", paths[i]);
+            }
+            items.pushMap(item);
+        }
+        WritableMap result = Arguments.createMap();
+        result.putString("batchId", batchId);
+        result.putInt("total", uris.length);
+        result.putInt("failed", failed.get());
+        result.putArray("results", items);
+        callback.resolve(result);
+    }
+}
@@ -0,0 +1,168 @@
+package com.jimmydaddy.imagemarker;
+
+import android.graphics.Bitmap;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableMap;
+
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU cache of decoded and scaled marker bitmaps, keyed by (uri, markerScale, config),
+ * also used for the rasterized tiles of text markers.
+ *
+ * Entries are reference counted: a bitmap handed out by {@link #acquire} or {@link #put} has to be
+ * given back with {@link #release} instead of being recycled. An entry evicted while still in use
+ * goes to the {@link BitmapPool} when its last user releases it.
+ */
+
+public class MarkerBitmapCache {
+    // cache 1/8 of the heap by default, in KB like Utils.getMaxMemory
+    public static final int DEFAULT_MAX_SIZE = Utils.getMaxMemory() / 8;
+
+    private static class Entry {
+        final String key;
+        final Bitmap bitmap;
+        final int size;
+        int refCount = 0;
+        boolean evicted = false;
+
+        Entry(String key, Bitmap bitmap) {
+            this.key = key;
+            this.bitmap = bitmap;
+            this.size = Math.max(1, bitmap.getByteCount() / 1024);
+        }
+    }
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final IdentityHashMap<Bitmap, Entry> inUse = new IdentityHashMap<>();
+    private int maxSize;
+    private int size = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    public MarkerBitmapCache() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @param maxSize in KB
+     */
+    public MarkerBitmapCache(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public static String key(String uri, Float scale, Bitmap.Config config) {
+        // base64 data uris can be megabytes long, don't keep them around as keys
+        String source = uri.length() > 256 ? "md5:" + Utils.md5(uri) : uri;
+        return source + "@" + scale + ":" + config;
+    }
+
+    /**
+     * @return the cached bitmap with its reference count increased, or null on a miss
+     */
+    public synchronized Bitmap acquire(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null || entry.bitmap.isRecycled()) {
+            misses++;
+            return null;
+        }
+        hits++;
+        entry.refCount++;
+        inUse.put(entry.bitmap, entry);
+        return entry.bitmap;
+    }
+
+    /**
+     * cache a freshly decoded bitmap, the caller holds one reference to the returned bitmap.
+     * When another job cached the same key in the meantime, the given bitmap is pooled and the
+     * cached one is returned instead.
+     */
+    public synchronized Bitmap put(String key, Bitmap bitmap) {
+        Entry existing = entries.get(key);
+        if (existing != null && !existing.bitmap.isRecycled()) {
+            if (existing.bitmap != bitmap) {
+                BitmapPool.getInstance().put(bitmap);
+            }
+            existing.refCount++;
+            inUse.put(existing.bitmap, existing);
+            return existing.bitmap;
+        }
+        Entry entry = new Entry(key, bitmap);
+        entry.refCount = 1;
+        inUse.put(bitmap, entry);
+        if (entry.size > maxSize) {
+            // too big to be cached, it is pooled when released
+            entry.evicted = true;
+            return bitmap;
+        }
+        entries.put(key, entry);
+        size += entry.size;
+        trimToSize(maxSize);
+        return bitmap;
+    }
+
+    /**
+     * give back a bitmap obtained from {@link #acquire} or {@link #put},
+     * bitmaps this cache doesn't know about go straight to the pool
+     */
+    public synchronized void release(Bitmap bitmap) {
+        if (bitmap == null) {
+            return;
+        }
+        Entry entry = inUse.get(bitmap);
+        if (entry == null) {
+            BitmapPool.getInstance().put(bitmap);
+            return;
+        }
+        entry.refCount--;
+        if (entry.refCount <= 0) {
+            inUse.remove(bitmap);
+            if (entry.evicted) {
+                BitmapPool.getInstance().put(bitmap);
+            }
+        }
+    }
+
+    public synchronized void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+        trimToSize(maxSize);
+    }
+
+    public synchronized int getMaxSize() {
+        return maxSize;
+    }
+
+    public synchronized void clear() {
+        trimToSize(-1);
+    }
+
+    public synchronized void trimToSize(int targetSize) {
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (size > targetSize && iterator.hasNext()) {
+            Entry entry = iterator.next().getValue();
+            iterator.remove();
+            size -= entry.size;
+            evictions++;
+            entry.evicted = true;
+            if (entry.refCount <= 0) {
+                BitmapPool.getInstance().put(entry.bitmap);
+            }
+        }
+    }
+
+    public synchronized WritableMap getStats() {
+        WritableMap stats = Arguments.createMap();
+        stats.putDouble("hits", hits);
+        stats.putDouble("misses", misses);
+        stats.putDouble("evictions", evictions);
+        stats.putInt("count", entries.size());
+        stats.putInt("size", size);
+        stats.putInt("maxSize", maxSize);
+        return stats;
+    }
+}
@@ -0,0 +1,134 @@
+package com.jimmydaddy.imagemarker;
+
+import android.support.annotation.Nullable;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.Promise;
+import com.facebook.react.bridge.WritableMap;
+
+/**
+ * Outcome of a marking job, either a bridge promise or an item of a batch
+ */
+
+public abstract class MarkerCallback {
+    private final MarkerJob job;
+
+    public MarkerCallback() {
+        this(new MarkerJob());
+    }
+
+    /**
+     * @param job the job this callback settles, rejected through it when cancelled
+     */
+    protected MarkerCallback(MarkerJob job) {
+        this.job = job;
+        job.bind(this);
+    }
+
+    public abstract void resolve(Object result);
+
+    public abstract void reject(String code, String message, @Nullable Throwable e);
+
+    public void reject(String code, String message) {
+        reject(code, message, null);
+    }
+
+    /**
+     * reject with the code matching the failure, {@link MarkerOutOfMemoryException#CODE} when memory ran out,
+     * the one of the cancellation when the job was cancelled
+     * @param e
+     */
+    public void reject(Throwable e) {
+        if (e instanceof MarkerCancelledException) {
+            reject(((MarkerCancelledException) e).getCode(), e.getMessage(), e);
+            return;
+        }
+        boolean outOfMemory = e instanceof MarkerOutOfMemoryException || e instanceof OutOfMemoryError;
+        reject(outOfMemory ? MarkerOutOfMemoryException.CODE : "error", e.getMessage(), e);
+    }
+
+    /**
+     * the job the stages check for cancellation and record their metrics in,
+     * a callback wrapping another one hands out the job of the wrapped one
+     */
+    public MarkerJob getJob() {
+        return job;
+    }
+
+    public JobMetrics getJobMetrics() {
+        return getJob().getMetrics();
+    }
+
+    public static MarkerCallback fromPromise(final Promise promise) {
+        return fromPromise(promise, new MarkerJob());
+    }
+
+    /**
+     * settles the promise once, whatever the job does after being cancelled
+     * @param promise
+     * @param job
+     */
+    public static MarkerCallback fromPromise(final Promise promise, MarkerJob job) {
+        return new MarkerCallback(job) {
+            @Override
+            public void resolve(Object result) {
+                if (getJob().settle()) {
+                    promise.resolve(result);
+                }
+            }
+
+            @Override
+            public void reject(String code, String message, @Nullable Throwable e) {
+                if (getJob().settle()) {
+                    promise.reject(code, message, e);
+                }
+            }
+        };
+    }
+
+    /**
+     * a marking job settling a promise once, its metrics are added to {@link MarkerMetrics} once settled
+     * @param promise
+     * @param job
+     * @param stats resolve with { result, stats } instead of the bare result
+     */
+    public static MarkerCallback forJob(final Promise promise, MarkerJob job, final boolean stats) {
+        return new MarkerCallback(job) {
+            @Override
+            public void resolve(Object result) {
+                if (!getJob().settle()) {
+                    return;
+                }
+                JobMetrics metrics = getJobMetrics();
+                metrics.finish();
+                MarkerMetrics.getInstance().record(metrics, false);
+                if (!stats) {
+                    promise.resolve(result);
+                    return;
+                }
+                WritableMap map = Arguments.createMap();
+                if (result instanceof WritableMap) {
+                    map.putMap("result", (WritableMap) result);
+                } else {
+                    map.putString("result", String.valueOf(result));
+                }
+                map.putMap("stats", metrics.toMap());
+                promise.resolve(map);
+            }
+
+            @Override
+            public void reject(String code, String message, @Nullable Throwable e) {
+                if (!getJob().settle()) {
+                    return;
+                }
+                getJobMetrics().finish();
+                if (MarkerCancelledException.CODE_CANCELLED.equals(code)) {
+                    MarkerMetrics.getInstance().recordCancelled();
+                } else {
+                    MarkerMetrics.getInstance().record(getJobMetrics(), true);
+                }
+                promise.reject(code, message, e);
+            }
+        };
+    }
+}
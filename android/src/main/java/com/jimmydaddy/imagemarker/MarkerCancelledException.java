@@ -0,0 +1,25 @@
+package com.jimmydaddy.imagemarker;
+
+/**
+ * Thrown by the stages of a job that was cancelled or ran past its deadline, so they stop and
+ * release what they hold. The job was already rejected with {@link #getCode()} when it was cancelled.
+ */
+
+public class MarkerCancelledException extends RuntimeException {
+    public static final String CODE_CANCELLED = "E_CANCELLED";
+    public static final String CODE_TIMEOUT = "E_TIMEOUT";
+
+    private final String code;
+
+    public MarkerCancelledException(String code, String message) {
+        super(message);
+        this.code = code;
+    }
+
+    /**
+     * CODE_CANCELLED or CODE_TIMEOUT
+     */
+    public String getCode() {
+        return code;
+    }
+}
@@ -0,0 +1,328 @@
+package com.jimmydaddy.imagemarker;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared worker pool for all marking jobs of the module.
+ *
+ * A fixed number of workers (based on core count) and a bounded queue, so batch load
+ * can no longer leak one thread per request. When the queue is full the job is either
+ * rejected ({@link #POLICY_ABORT}) or handed to a single overflow thread with a queue of its own
+ * ({@link #POLICY_OVERFLOW}), never to the submitting thread, which is usually the bridge thread.
+ * The overflow thread rejects once its own queue is full too.
+ *
+ * Jobs wait in a {@link MarkerQueue} with a lane per priority. A {@link #PRIORITY_HIGH} job that
+ * finds every worker busy runs on a spare worker of its own, which never takes jobs of the other
+ * lanes, so a preview doesn't wait for the batch items already running.
+ */
+
+public class MarkerExecutor implements Executor {
+    public static final String POLICY_ABORT = "abort";
+    public static final String POLICY_OVERFLOW = "overflow";
+
+    public static final String PRIORITY_HIGH = "high";
+    public static final String PRIORITY_NORMAL = "normal";
+    public static final String PRIORITY_LOW = "low";
+
+    public static final int DEFAULT_POOL_SIZE = Math.max(2, Runtime.getRuntime().availableProcessors());
+    public static final int DEFAULT_QUEUE_SIZE = 64;
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private ThreadPoolExecutor executor;
+    // runs high priority jobs while every worker is busy, one at a time
+    private ThreadPoolExecutor spare;
+    // runs what the pool refused, POLICY_OVERFLOW only
+    private ThreadPoolExecutor overflow;
+    private int poolSize;
+    private int queueSize;
+    private String rejectPolicy;
+    private boolean isShutdown = false;
+
+    /**
+     * A job that knows how to report its own rejection, e.g. by rejecting its {@link MarkerCallback}
+     */
+    public static abstract class Task implements Runnable {
+        public abstract void onRejected(RejectedExecutionException e);
+
+        /**
+         * @return the lane the job waits in, one of the PRIORITY_* values
+         */
+        public String getPriority() {
+            return PRIORITY_NORMAL;
+        }
+    }
+
+    public MarkerExecutor() {
+        this(DEFAULT_POOL_SIZE, DEFAULT_QUEUE_SIZE, POLICY_ABORT);
+    }
+
+    public MarkerExecutor(int poolSize, int queueSize, String rejectPolicy) {
+        configure(poolSize, queueSize, rejectPolicy);
+    }
+
+    /**
+     * replace the underlying pool, jobs already queued on the old pool still finish
+     * @param poolSize
+     * @param queueSize
+     * @param rejectPolicy
+     */
+    public synchronized void configure(int poolSize, int queueSize, String rejectPolicy) {
+        if (isShutdown) {
+            throw new IllegalStateException("executor has been shut down");
+        }
+        if (poolSize <= 0) {
+            throw new IllegalArgumentException("poolSize should be greater than 0, got " + poolSize);
+        }
+        if (queueSize <= 0) {
+            throw new IllegalArgumentException("queueSize should be greater than 0, got " + queueSize);
+        }
+        if (!POLICY_ABORT.equals(rejectPolicy) && !POLICY_OVERFLOW.equals(rejectPolicy)) {
+            throw new IllegalArgumentException("Unknown rejectPolicy: " + rejectPolicy);
+        }
+
+        ThreadPoolExecutor old = this.executor;
+        ThreadPoolExecutor oldSpare = this.spare;
+        ThreadPoolExecutor oldOverflow = this.overflow;
+
+        // no queue: a high priority job either starts on it right away or waits in its lane
+        ThreadPoolExecutor extra = new ThreadPoolExecutor(
+                0,
+                1,
+                KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(),
+                new WorkerThreadFactory("ImageMarker-spare-"),
+                new ThreadPoolExecutor.AbortPolicy());
+
+        ThreadPoolExecutor spill = null;
+        if (POLICY_OVERFLOW.equals(rejectPolicy)) {
+            spill = new ThreadPoolExecutor(
+                    1,
+                    1,
+                    KEEP_ALIVE_SECONDS,
+                    TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(queueSize),
+                    new WorkerThreadFactory("ImageMarker-overflow-"),
+                    new OverflowFullHandler());
+            spill.allowCoreThreadTimeOut(true);
+        }
+
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(
+                poolSize,
+                poolSize,
+                KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS,
+                new MarkerQueue(queueSize),
+                new WorkerThreadFactory("ImageMarker-worker-"),
+                new RejectHandler(extra, spill));
+        pool.allowCoreThreadTimeOut(true);
+
+        this.executor = pool;
+        this.spare = extra;
+        this.overflow = spill;
+        this.poolSize = poolSize;
+        this.queueSize = queueSize;
+        this.rejectPolicy = rejectPolicy;
+
+        if (old != null) {
+            old.shutdown();
+        }
+        if (oldSpare != null) {
+            oldSpare.shutdown();
+        }
+        if (oldOverflow != null) {
+            oldOverflow.shutdown();
+        }
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        ThreadPoolExecutor pool;
+        synchronized (this) {
+            pool = this.executor;
+        }
+        pool.execute(command);
+    }
+
+    /**
+     * an executor that rejects the callback instead of throwing when the job can't be queued,
+     * use it for Fresco subscriptions whose callbacks are dispatched long after the bridge call returned
+     * @param callback
+     * @return
+     */
+    public Executor forCallback(final MarkerCallback callback) {
+        return new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                MarkerExecutor.this.execute(new Task() {
+                    @Override
+                    public void run() {
+                        if (!PRIORITY_HIGH.equals(getPriority())) {
+                            command.run();
+                            return;
+                        }
+                        // workers run below the UI thread, a preview shouldn't
+                        Thread worker = Thread.currentThread();
+                        int priority = worker.getPriority();
+                        worker.setPriority(Thread.NORM_PRIORITY);
+                        try {
+                            command.run();
+                        } finally {
+                            worker.setPriority(priority);
+                        }
+                    }
+
+                    @Override
+                    public void onRejected(RejectedExecutionException e) {
+                        callback.reject("error", e.getMessage(), e);
+                    }
+
+                    @Override
+                    public String getPriority() {
+                        return callback.getJob().getPriority();
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * submit a job, rejecting the callback if it is refused by the pool, or cancelled before it starts
+     * @param job
+     * @param callback
+     */
+    public void submit(final Runnable job, final MarkerCallback callback) {
+        forCallback(callback).execute(new Runnable() {
+            @Override
+            public void run() {
+                if (callback.getJob().isCancelled()) {
+                    callback.reject(callback.getJob().getCancellation());
+                    return;
+                }
+                job.run();
+            }
+        });
+    }
+
+    public synchronized int getPoolSize() {
+        return poolSize;
+    }
+
+    public synchronized int getQueueSize() {
+        return queueSize;
+    }
+
+    public synchronized String getRejectPolicy() {
+        return rejectPolicy;
+    }
+
+    public synchronized int getQueuedCount() {
+        return executor.getQueue().size() + (null != overflow ? overflow.getQueue().size() : 0);
+    }
+
+    public synchronized int getActiveCount() {
+        return executor.getActiveCount() + spare.getActiveCount() + (null != overflow ? overflow.getActiveCount() : 0);
+    }
+
+    public synchronized void shutdown() {
+        isShutdown = true;
+        executor.shutdownNow();
+        spare.shutdownNow();
+        if (null != overflow) {
+            overflow.shutdownNow();
+        }
+    }
+
+    /**
+     * a job refused by the queue, e.g. a high priority one for lack of an idle worker while the
+     * spare one is busy too, waits in its lane like the others unless the queue is full
+     */
+    private static boolean queueAnyway(Runnable r, ThreadPoolExecutor executor) {
+        return !executor.isShutdown() && ((MarkerQueue) executor.getQueue()).insert(r);
+    }
+
+    private static void reject(Runnable r, RejectedExecutionException e) {
+        if (r instanceof Task) {
+            ((Task) r).onRejected(e);
+        } else {
+            throw e;
+        }
+    }
+
+    private static class OverflowFullHandler implements RejectedExecutionHandler {
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            Log.d(Utils.TAG, "marker overflow queue is full, job rejected");
+            reject(r, new RejectedExecutionException("ImageMarker overflow queue is full (" + executor.getQueue().size() + " jobs waiting)"));
+        }
+    }
+
+    /**
+     * what the pool refused: a high priority job goes to the spare worker when it is free, otherwise
+     * the job waits in its lane, and once the queue is full goes to the overflow thread or is rejected
+     */
+    private static class RejectHandler implements RejectedExecutionHandler {
+        private final ThreadPoolExecutor spare;
+        @Nullable
+        private final ThreadPoolExecutor overflow;
+
+        RejectHandler(ThreadPoolExecutor spare, @Nullable ThreadPoolExecutor overflow) {
+            this.spare = spare;
+            this.overflow = overflow;
+        }
+
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                reject(r, new RejectedExecutionException("ImageMarker has been shut down"));
+                return;
+            }
+            if (r instanceof Task && PRIORITY_HIGH.equals(((Task) r).getPriority())) {
+                try {
+                    spare.execute(r);
+                    return;
+                } catch (RejectedExecutionException e) {
+                    // busy with another high priority job
+                }
+            }
+            if (queueAnyway(r, executor)) {
+                return;
+            }
+            if (null != overflow) {
+                overflow.execute(r);
+                return;
+            }
+            Log.d(Utils.TAG, "marker queue is full, job rejected");
+            reject(r, new RejectedExecutionException("ImageMarker queue is full (" + executor.getQueue().size() + " jobs waiting)"));
+        }
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger(1);
+
+        WorkerThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, prefix + count.getAndIncrement());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        }
+    }
+}
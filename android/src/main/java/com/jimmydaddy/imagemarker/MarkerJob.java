@@ -0,0 +1,229 @@
+package com.jimmydaddy.imagemarker;
+
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A marking job as seen by its stages: its metrics, and whether it was cancelled or ran past its
+ * deadline. Stages call {@link #throwIfCancelled()} before any expensive step; what a stage waits on,
+ * like a Fresco data source, is closed on cancellation with {@link #addOnCancel}.
+ */
+
+public class MarkerJob {
+    @Nullable
+    private final String id;
+    @Nullable
+    private final String tag;
+    // System.nanoTime, 0 for none
+    private final long deadline;
+    // one of the MarkerExecutor.PRIORITY_* values
+    private final String priority;
+    private final JobMetrics metrics = new JobMetrics();
+    private final List<Runnable> onCancel = new ArrayList<>();
+    @Nullable
+    private MarkerCallback callback;
+    @Nullable
+    private MarkerCancelledException cancellation;
+    private boolean settled = false;
+    // takes a child off the cancellation actions of its parent
+    @Nullable
+    private Runnable unlink;
+    @Nullable
+    private MarkerJobs registry;
+
+    /**
+     * @param id null for a job that can't be cancelled by id
+     * @param tag groups jobs for {@link MarkerJobs#cancelAll}, may be null
+     * @param timeout ms from now the job has to be done in, 0 for no deadline
+     * @param priority the lane of its work on the pool and the priority of its Fresco requests
+     */
+    public MarkerJob(@Nullable String id, @Nullable String tag, int timeout, String priority) {
+        if (!MarkerExecutor.PRIORITY_HIGH.equals(priority)
+                && !MarkerExecutor.PRIORITY_NORMAL.equals(priority)
+                && !MarkerExecutor.PRIORITY_LOW.equals(priority)) {
+            throw new IllegalArgumentException("Unknown priority: " + priority);
+        }
+        this.id = id;
+        this.tag = tag;
+        this.deadline = timeout > 0 ? JobMetrics.now() + timeout * 1000000L : 0;
+        this.priority = priority;
+    }
+
+    public MarkerJob(@Nullable String id, @Nullable String tag, int timeout) {
+        this(id, tag, timeout, MarkerExecutor.PRIORITY_NORMAL);
+    }
+
+    public MarkerJob() {
+        this(null, null, 0);
+    }
+
+    /**
+     * a job cancelled along with this one, like an item of a batch, until it settles,
+     * with the same priority
+     */
+    public MarkerJob child() {
+        final MarkerJob child = new MarkerJob(null, null, 0, priority);
+        final Runnable cancelChild = new Runnable() {
+            @Override
+            public void run() {
+                MarkerCancelledException cancellation = getCancellation();
+                child.cancel(cancellation.getCode(), cancellation.getMessage());
+            }
+        };
+        child.unlink = new Runnable() {
+            @Override
+            public void run() {
+                removeOnCancel(cancelChild);
+            }
+        };
+        addOnCancel(cancelChild);
+        return child;
+    }
+
+    @Nullable
+    public String getId() {
+        return id;
+    }
+
+    @Nullable
+    public String getTag() {
+        return tag;
+    }
+
+    public String getPriority() {
+        return priority;
+    }
+
+    /**
+     * @return ms left before the deadline, -1 when there is none
+     */
+    public long getRemainingMillis() {
+        if (deadline == 0) {
+            return -1;
+        }
+        return Math.max(0, (deadline - JobMetrics.now()) / 1000000L);
+    }
+
+    public JobMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * the registry told when the job settles
+     */
+    synchronized void track(MarkerJobs registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * the callback rejected when the job is cancelled
+     */
+    synchronized void bind(MarkerCallback callback) {
+        this.callback = callback;
+    }
+
+    /**
+     * true once cancelled, checking the deadline on the way
+     */
+    public boolean isCancelled() {
+        if (null != getCancellation()) {
+            return true;
+        }
+        if (deadline != 0 && JobMetrics.now() - deadline >= 0) {
+            cancel(MarkerCancelledException.CODE_TIMEOUT, "The job didn't finish within its deadline");
+            return true;
+        }
+        return false;
+    }
+
+    @Nullable
+    public synchronized MarkerCancelledException getCancellation() {
+        return cancellation;
+    }
+
+    /**
+     * stop the stage calling it when the job was cancelled
+     * @throws MarkerCancelledException
+     */
+    public void throwIfCancelled() {
+        if (isCancelled()) {
+            throw getCancellation();
+        }
+    }
+
+    /**
+     * run when the job is cancelled, right away when it already was
+     * @param action
+     */
+    public void addOnCancel(Runnable action) {
+        synchronized (this) {
+            if (null == cancellation && !settled) {
+                onCancel.add(action);
+                return;
+            }
+            if (settled) {
+                return;
+            }
+        }
+        action.run();
+    }
+
+    public synchronized void removeOnCancel(Runnable action) {
+        onCancel.remove(action);
+    }
+
+    /**
+     * reject the job with code and run the cancellation actions, nothing happens once it settled
+     * @param code one of the MarkerCancelledException.CODE_* values
+     * @param message
+     * @return false when the job was already settled or cancelled
+     */
+    public boolean cancel(String code, String message) {
+        List<Runnable> actions;
+        MarkerCallback callback;
+        synchronized (this) {
+            if (settled || null != cancellation) {
+                return false;
+            }
+            cancellation = new MarkerCancelledException(code, message);
+            actions = new ArrayList<>(onCancel);
+            onCancel.clear();
+            callback = this.callback;
+        }
+        // reject first, so what the actions settle doesn't settle the job before
+        if (null != callback) {
+            callback.reject(cancellation);
+        }
+        for (Runnable action : actions) {
+            action.run();
+        }
+        return true;
+    }
+
+    /**
+     * the job resolved or rejected, later cancellations are ignored
+     * @return false when it had settled already
+     */
+    boolean settle() {
+        synchronized (this) {
+            if (settled) {
+                return false;
+            }
+            settled = true;
+            onCancel.clear();
+        }
+        if (null != unlink) {
+            unlink.run();
+        }
+        MarkerJobs registry;
+        synchronized (this) {
+            registry = this.registry;
+        }
+        if (null != registry) {
+            registry.finish(this);
+        }
+        return true;
+    }
+}
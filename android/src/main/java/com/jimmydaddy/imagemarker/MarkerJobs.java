@@ -0,0 +1,137 @@
+package com.jimmydaddy.imagemarker;
+
+import android.os.Build;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The jobs in flight by id, for cancel and cancelAll, and the timer enforcing their deadlines
+ * while they wait on the queue or on Fresco.
+ */
+
+public class MarkerJobs {
+    private final ConcurrentHashMap<String, MarkerJob> jobs = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<MarkerJob, ScheduledFuture<?>> deadlines = new ConcurrentHashMap<>();
+    // wall clock ms each job started at
+    private final ConcurrentHashMap<MarkerJob, Long> startTimes = new ConcurrentHashMap<>();
+    @Nullable
+    private ScheduledThreadPoolExecutor timer;
+
+    /**
+     * track a job until it settles
+     * @param job with an id
+     * @throws IllegalArgumentException when a job with the same id is in flight
+     */
+    public void start(final MarkerJob job) {
+        if (null != jobs.putIfAbsent(job.getId(), job)) {
+            throw new IllegalArgumentException("A job with the id " + job.getId() + " is already running");
+        }
+        startTimes.put(job, System.currentTimeMillis());
+        job.track(this);
+        long remaining = job.getRemainingMillis();
+        if (remaining >= 0) {
+            deadlines.put(job, getTimer().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    // rejects when the deadline passed
+                    job.isCancelled();
+                }
+            }, remaining, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    /**
+     * called by the job once settled
+     * @param job
+     */
+    void finish(MarkerJob job) {
+        jobs.remove(job.getId(), job);
+        startTimes.remove(job);
+        ScheduledFuture<?> deadline = deadlines.remove(job);
+        if (null != deadline) {
+            deadline.cancel(false);
+        }
+    }
+
+    /**
+     * @param id
+     * @return false when no job with this id is in flight
+     */
+    public boolean cancel(String id) {
+        MarkerJob job = jobs.get(id);
+        return null != job && job.cancel(MarkerCancelledException.CODE_CANCELLED, "The job was cancelled");
+    }
+
+    /**
+     * @param tag null for every job
+     * @return the number of jobs cancelled
+     */
+    public int cancelAll(@Nullable String tag) {
+        List<MarkerJob> matching = new ArrayList<>();
+        for (MarkerJob job : jobs.values()) {
+            if (null == tag || tag.equals(job.getTag())) {
+                matching.add(job);
+            }
+        }
+        int cancelled = 0;
+        for (MarkerJob job : matching) {
+            if (job.cancel(MarkerCancelledException.CODE_CANCELLED, "The job was cancelled")) {
+                cancelled++;
+            }
+        }
+        return cancelled;
+    }
+
+    public int getCount() {
+        return jobs.size();
+    }
+
+    /**
+     * @return wall clock ms the oldest job in flight started at, Long.MAX_VALUE when there is none
+     */
+    public long getOldestStart() {
+        long oldest = Long.MAX_VALUE;
+        for (Long start : startTimes.values()) {
+            oldest = Math.min(oldest, start);
+        }
+        return oldest;
+    }
+
+    private synchronized ScheduledThreadPoolExecutor getTimer() {
+        if (null == timer) {
+            timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "ImageMarker-deadlines");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                // don't keep settled jobs around until their deadline
+                timer.setRemoveOnCancelPolicy(true);
+            }
+        }
+        return timer;
+    }
+
+    /**
+     * cancel everything in flight and stop the timer
+     */
+    public void shutdown() {
+        cancelAll(null);
+        synchronized (this) {
+            if (null != timer) {
+                timer.shutdownNow();
+                timer = null;
+            }
+        }
+    }
+}
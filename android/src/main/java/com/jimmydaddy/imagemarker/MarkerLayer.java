@@ -0,0 +1,113 @@
+package com.jimmydaddy.imagemarker;
+
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+
+import com.facebook.react.bridge.ReadableMap;
+
+/**
+ * A layer of the mark method: a text or an image marker, placed by position or X/Y.
+ */
+
+public class MarkerLayer {
+    public static final String TYPE_TEXT = "text";
+    public static final String TYPE_IMAGE = "image";
+
+    private final String type;
+    private final String text;
+    private final TextStyle textStyle;
+    private final String markerUri;
+    private final Float markerScale;
+    private final String position;
+    private final Integer X;
+    private final Integer Y;
+
+    private MarkerLayer(String type, String text, TextStyle textStyle, String markerUri, Float markerScale, String position, Integer X, Integer Y) {
+        this.type = type;
+        this.text = text;
+        this.textStyle = textStyle;
+        this.markerUri = markerUri;
+        this.markerScale = markerScale;
+        this.position = position;
+        this.X = X;
+        this.Y = Y;
+    }
+
+    /**
+     * @param layer { type: 'text', text, color, fontName, fontSize, shadowStyle } or { type: 'image', src, markerScale },
+     *              plus position or X/Y
+     * @return
+     */
+    public static MarkerLayer fromMap(ReadableMap layer) {
+        String type = Utils.optString(layer, "type", TYPE_TEXT);
+        String position = Utils.optString(layer, "position", null);
+        Integer X = Utils.optInteger(layer, "X", null);
+        Integer Y = Utils.optInteger(layer, "Y", null);
+        if (TYPE_TEXT.equals(type)) {
+            String text = Utils.optString(layer, "text", null);
+            if (TextUtils.isEmpty(text)) {
+                throw new IllegalArgumentException("mark should not be empty");
+            }
+            ReadableMap shadowStyle = Utils.optMap(layer, "shadowStyle");
+            TextStyle textStyle = new TextStyle(
+                    Utils.optString(layer, "color", "#000000"),
+                    Utils.optString(layer, "fontName", null),
+                    Utils.optInteger(layer, "fontSize", null),
+                    null != shadowStyle ? new ShadowLayerStyle(shadowStyle) : null);
+            return new MarkerLayer(type, text, textStyle, null, null, position, X, Y);
+        } else if (TYPE_IMAGE.equals(type)) {
+            ReadableMap src = Utils.optMap(layer, "src");
+            if (null == src || TextUtils.isEmpty(Utils.optString(src, "uri", null))) {
+                throw new IllegalArgumentException("marker src should not be empty");
+            }
+            return new MarkerLayer(type, null, null, src.getString("uri"), Utils.optFloat(layer, "markerScale", 1F), position, X, Y);
+        }
+        throw new IllegalArgumentException("Unknown marker type: " + type);
+    }
+
+    public boolean isImage() {
+        return TYPE_IMAGE.equals(type);
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public TextStyle getTextStyle() {
+        return textStyle;
+    }
+
+    public String getMarkerUri() {
+        return markerUri;
+    }
+
+    public Float getMarkerScale() {
+        return markerScale;
+    }
+
+    @Nullable
+    public String getPosition() {
+        return position;
+    }
+
+    @Nullable
+    public Integer getX() {
+        return X;
+    }
+
+    @Nullable
+    public Integer getY() {
+        return Y;
+    }
+
+    /**
+     * everything the rendering of this layer depends on, for the result cache
+     */
+    public String getCacheKey() {
+        String placement = position + ":" + X + ":" + Y;
+        if (isImage()) {
+            return type + ":" + ResultCache.sourceIdentity(markerUri) + ":" + markerScale + ":" + placement;
+        }
+        return type + ":" + text + ":" + textStyle.getKey() + ":" + placement;
+    }
+}
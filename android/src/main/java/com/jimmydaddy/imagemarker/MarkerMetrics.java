@@ -0,0 +1,171 @@
+package com.jimmydaddy.imagemarker;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableMap;
+
+import java.util.Arrays;
+
+/**
+ * Aggregate of the {@link JobMetrics} of the jobs run so far: counts, failures, and the
+ * p50/p95/p99 of the total time and of every stage over the most recent jobs.
+ */
+
+public class MarkerMetrics {
+    // jobs the percentiles are computed over
+    public static final int DEFAULT_WINDOW = 512;
+
+    private static final MarkerMetrics sInstance = new MarkerMetrics(DEFAULT_WINDOW);
+
+    /**
+     * the last samples of a value, in a ring
+     */
+    private static class Window {
+        final long[] samples;
+        int size = 0;
+        int next = 0;
+        long count = 0;
+        long bytes = 0;
+
+        Window(int capacity) {
+            samples = new long[capacity];
+        }
+
+        void add(long value, long allocated) {
+            samples[next] = value;
+            next = (next + 1) % samples.length;
+            size = Math.min(size + 1, samples.length);
+            count++;
+            bytes += allocated;
+        }
+
+        /**
+         * nearest rank
+         * @param sorted
+         * @param percent 0-100
+         */
+        static long percentile(long[] sorted, double percent) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int rank = (int) Math.ceil(percent / 100 * sorted.length);
+            return sorted[Math.min(sorted.length, Math.max(1, rank)) - 1];
+        }
+
+        long[] sorted() {
+            long[] sorted = Arrays.copyOf(samples, size);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+
+        void clear() {
+            size = 0;
+            next = 0;
+            count = 0;
+            bytes = 0;
+        }
+
+        WritableMap toMap(boolean withBytes) {
+            long[] sorted = sorted();
+            WritableMap map = Arguments.createMap();
+            map.putDouble("count", count);
+            map.putDouble("p50", JobMetrics.toMillis(percentile(sorted, 50)));
+            map.putDouble("p95", JobMetrics.toMillis(percentile(sorted, 95)));
+            map.putDouble("p99", JobMetrics.toMillis(percentile(sorted, 99)));
+            if (withBytes) {
+                map.putDouble("avgBytes", count > 0 ? (double) bytes / count : 0);
+            }
+            return map;
+        }
+    }
+
+    private final Window total;
+    private final Window[] stages = new Window[JobMetrics.STAGES.length];
+    private long failures = 0;
+    private long cancelled = 0;
+
+    public static MarkerMetrics getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * @param window number of recent jobs the percentiles are computed over
+     */
+    public MarkerMetrics(int window) {
+        total = new Window(window);
+        for (int i = 0; i < stages.length; i++) {
+            stages[i] = new Window(window);
+        }
+    }
+
+    /**
+     * @param job
+     * @param failed failed jobs are counted, their times are left out of the percentiles
+     */
+    public synchronized void record(JobMetrics job, boolean failed) {
+        if (failed) {
+            failures++;
+            return;
+        }
+        total.add(job.getTotalNanos(), 0);
+        for (int i = 0; i < stages.length; i++) {
+            String stage = JobMetrics.STAGES[i];
+            if (job.hasStage(stage)) {
+                stages[i].add(job.getNanos(stage), job.getBytes(stage));
+            }
+        }
+    }
+
+    /**
+     * a job cancelled by JS, neither a success nor a failure
+     */
+    public synchronized void recordCancelled() {
+        cancelled++;
+    }
+
+    public synchronized void clear() {
+        total.clear();
+        for (Window stage : stages) {
+            stage.clear();
+        }
+        failures = 0;
+        cancelled = 0;
+    }
+
+    // for tests
+    synchronized long getCount(String stage) {
+        return stages[JobMetrics.indexOf(stage)].count;
+    }
+
+    // for tests
+    synchronized long getPercentile(String stage, double percent) {
+        return Window.percentile(stages[JobMetrics.indexOf(stage)].sorted(), percent);
+    }
+
+    // for tests
+    synchronized long getTotalPercentile(double percent) {
+        return Window.percentile(total.sorted(), percent);
+    }
+
+    // for tests
+    synchronized long getFailures() {
+        return failures;
+    }
+
+    /**
+     * { count, failures, cancelled, total: { count, p50, p95, p99 }, stages: { fetch: { count, p50, p95, p99, avgBytes }, ... } }, times in ms
+     */
+    public synchronized WritableMap getStats() {
+        WritableMap stageStats = Arguments.createMap();
+        for (int i = 0; i < stages.length; i++) {
+            stageStats.putMap(JobMetrics.STAGES[i], stages[i].toMap(true));
+        }
+        WritableMap stats = Arguments.createMap();
+        stats.putDouble("count", total.count);
+        stats.putDouble("failures", failures);
+        stats.putDouble("cancelled", cancelled);
+        stats.putInt("window", total.samples.length);
+        stats.putMap("total", total.toMap(false));
+        stats.putMap("stages", stageStats);
+        return stats;
+    }
+}
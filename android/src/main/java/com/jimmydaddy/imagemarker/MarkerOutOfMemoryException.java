@@ -0,0 +1,36 @@
+package com.jimmydaddy.imagemarker;
+
+/**
+ * Thrown when a bitmap can't be allocated even after every fallback of {@link MemoryBudget},
+ * jobs reject with {@link #CODE} instead of waiting for memory that never comes.
+ */
+
+public class MarkerOutOfMemoryException extends RuntimeException {
+    public static final String CODE = "E_OUT_OF_MEMORY";
+
+    private final int width;
+    private final int height;
+    private final String fallback;
+
+    public MarkerOutOfMemoryException(int width, int height, String fallback, int attempts) {
+        super("Not enough memory for a " + width + "x" + height + " bitmap after " + attempts + " attempts, last fallback: " + fallback);
+        this.width = width;
+        this.height = height;
+        this.fallback = fallback;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * the last fallback that was tried, one of the MemoryBudget.FALLBACK_* values
+     */
+    public String getFallback() {
+        return fallback;
+    }
+}
@@ -0,0 +1,34 @@
+package com.jimmydaddy.imagemarker;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Where an encoder writes a result: a file in the cache dir or a buffer in memory,
+ * see the returnMode option.
+ */
+
+public abstract class MarkerOutput implements Closeable {
+    public abstract OutputStream getStream();
+
+    /**
+     * finish the output
+     * @return what the job resolves with: a path, a base64 string or a blob
+     */
+    public abstract Object commit() throws IOException;
+
+    /**
+     * release the output, discarding it unless committed. Safe to call more than once
+     */
+    @Override
+    public abstract void close();
+
+    /**
+     * drop the idle buffers of every kind of output, e.g. on memory pressure
+     */
+    public static void trimBuffers() {
+        OutputFile.trimPool();
+        OutputBuffer.trimPool();
+    }
+}
@@ -0,0 +1,320 @@
+package com.jimmydaddy.imagemarker;
+
+import java.util.ArrayDeque;
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The bounded work queue of {@link MarkerExecutor}, one lane per priority.
+ *
+ * Workers take from the highest lane first, FIFO within a lane. A job gains one lane for every
+ * agingMillis it waited, so a steady flow of previews can't starve a background batch forever.
+ * A high priority job is refused by {@link #offer} when no worker is idle, so the executor hands it
+ * to its spare worker instead of queueing it behind the jobs already running.
+ */
+
+public class MarkerQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+    public static final long DEFAULT_AGING_MILLIS = 500;
+
+    private static final String[] LANES = {
+            MarkerExecutor.PRIORITY_HIGH,
+            MarkerExecutor.PRIORITY_NORMAL,
+            MarkerExecutor.PRIORITY_LOW
+    };
+
+    private static class Entry {
+        final Runnable job;
+        final long queuedAt;
+
+        Entry(Runnable job) {
+            this.job = job;
+            this.queuedAt = System.nanoTime();
+        }
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final List<ArrayDeque<Entry>> lanes = new ArrayList<>(LANES.length);
+    private final int capacity;
+    private final long agingNanos;
+    private int count = 0;
+    // workers blocked in take or poll
+    private int idle = 0;
+
+    public MarkerQueue(int capacity) {
+        this(capacity, DEFAULT_AGING_MILLIS);
+    }
+
+    /**
+     * @param capacity max number of jobs waiting, over all lanes
+     * @param agingMillis wait after which a job is taken as if it had the next higher priority
+     */
+    public MarkerQueue(int capacity, long agingMillis) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity should be greater than 0, got " + capacity);
+        }
+        this.capacity = capacity;
+        this.agingNanos = Math.max(1, agingMillis) * 1000000L;
+        for (int i = 0; i < LANES.length; i++) {
+            lanes.add(new ArrayDeque<Entry>());
+        }
+    }
+
+    /**
+     * @param priority one of the MarkerExecutor.PRIORITY_* values
+     * @return the lane, normal for unknown values
+     */
+    static int laneOf(String priority) {
+        for (int i = 0; i < LANES.length; i++) {
+            if (LANES[i].equals(priority)) {
+                return i;
+            }
+        }
+        return 1;
+    }
+
+    private static int laneOf(Runnable job) {
+        if (job instanceof MarkerExecutor.Task) {
+            return laneOf(((MarkerExecutor.Task) job).getPriority());
+        }
+        return 1;
+    }
+
+    @Override
+    public boolean offer(Runnable job) {
+        if (laneOf(job) == 0) {
+            lock.lock();
+            try {
+                if (idle <= count) {
+                    return false;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        return insert(job);
+    }
+
+    /**
+     * queue the job whatever its priority, used once the spare worker is busy too
+     * @param job
+     * @return false when the queue is full
+     */
+    public boolean insert(Runnable job) {
+        if (null == job) {
+            throw new NullPointerException();
+        }
+        lock.lock();
+        try {
+            if (count >= capacity) {
+                return false;
+            }
+            lanes.get(laneOf(job)).addLast(new Entry(job));
+            count++;
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(Runnable job) throws InterruptedException {
+        if (!insert(job)) {
+            throw new IllegalStateException("Queue full");
+        }
+    }
+
+    @Override
+    public boolean offer(Runnable job, long timeout, TimeUnit unit) {
+        return offer(job);
+    }
+
+    // the lane to take from, the highest once every head got credit for its wait
+    private int nextLane() {
+        long now = System.nanoTime();
+        int best = -1;
+        long bestRank = Long.MAX_VALUE;
+        for (int i = 0; i < lanes.size(); i++) {
+            Entry head = lanes.get(i).peekFirst();
+            if (null == head) {
+                continue;
+            }
+            long rank = i - (now - head.queuedAt) / agingNanos;
+            if (rank < bestRank) {
+                best = i;
+                bestRank = rank;
+            }
+        }
+        return best;
+    }
+
+    private Runnable dequeue() {
+        int lane = nextLane();
+        if (lane < 0) {
+            return null;
+        }
+        count--;
+        return lanes.get(lane).pollFirst().job;
+    }
+
+    @Override
+    public Runnable poll() {
+        lock.lock();
+        try {
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            idle++;
+            try {
+                while (count == 0) {
+                    notEmpty.await();
+                }
+            } finally {
+                idle--;
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            idle++;
+            try {
+                while (count == 0) {
+                    if (nanos <= 0) {
+                        return null;
+                    }
+                    nanos = notEmpty.awaitNanos(nanos);
+                }
+            } finally {
+                idle--;
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable peek() {
+        lock.lock();
+        try {
+            int lane = nextLane();
+            return lane < 0 ? null : lanes.get(lane).peekFirst().job;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object job) {
+        lock.lock();
+        try {
+            for (ArrayDeque<Entry> lane : lanes) {
+                Iterator<Entry> it = lane.iterator();
+                while (it.hasNext()) {
+                    if (it.next().job == job) {
+                        it.remove();
+                        count--;
+                        return true;
+                    }
+                }
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param priority one of the MarkerExecutor.PRIORITY_* values
+     * @return the number of jobs waiting in its lane
+     */
+    public int size(String priority) {
+        lock.lock();
+        try {
+            return lanes.get(laneOf(priority)).size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        lock.lock();
+        try {
+            return capacity - count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c, int maxElements) {
+        lock.lock();
+        try {
+            int drained = 0;
+            while (drained < maxElements && count > 0) {
+                c.add(dequeue());
+                drained++;
+            }
+            return drained;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * a snapshot in the order the jobs would be taken right now, without aging
+     */
+    @Override
+    public Iterator<Runnable> iterator() {
+        List<Runnable> snapshot = new ArrayList<>();
+        lock.lock();
+        try {
+            for (ArrayDeque<Entry> lane : lanes) {
+                for (Entry entry : lane) {
+                    snapshot.add(entry.job);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return snapshot.iterator();
+    }
+}
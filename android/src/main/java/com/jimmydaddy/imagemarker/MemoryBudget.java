@@ -0,0 +1,234 @@
+package com.jimmydaddy.imagemarker;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.util.Log;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableMap;
+
+/**
+ * Memory-aware allocation for one job. The bytes a bitmap needs are estimated before it is
+ * allocated and compared with what the heap can still spare. When it doesn't fit, or the
+ * allocation fails anyway, the job degrades step by step: ARGB_8888, then RGB_565, then a
+ * larger inSampleSize. After {@link #MAX_ATTEMPTS} steps a {@link MarkerOutOfMemoryException}
+ * is thrown, and local files are then processed tile by tile with {@link TiledImage}.
+ * The fallback taken is kept so it can be reported with the result.
+ */
+
+public class MemoryBudget {
+    public static final String EVENT_FALLBACK = "ImageMarkerMemoryFallback";
+
+    public static final String FALLBACK_NONE = "none";
+    public static final String FALLBACK_RGB_565 = "rgb565";
+    public static final String FALLBACK_DOWNSAMPLE = "downsample";
+    public static final String FALLBACK_TILED = "tiled";
+
+    public static final int MAX_ATTEMPTS = 4;
+    // a single bitmap may take this share of the memory that is still free
+    private static final float BUDGET_RATIO = 0.5f;
+
+    /**
+     * decodes with the given options, which the budget adjusts between attempts
+     */
+    public interface Decoder {
+        Bitmap decode(BitmapFactory.Options options);
+    }
+
+    private final long fixedBudget;
+    private Bitmap.Config config = Bitmap.Config.ARGB_8888;
+    private int sampleSize = 1;
+    private int attempts = 0;
+    private String fallback = FALLBACK_NONE;
+
+    public MemoryBudget() {
+        this(-1);
+    }
+
+    /**
+     * @param fixedBudget bytes a bitmap may take, -1 to follow the free heap
+     */
+    MemoryBudget(long fixedBudget) {
+        this.fixedBudget = fixedBudget;
+    }
+
+    public static long bytesOf(int width, int height, Bitmap.Config config) {
+        int bytesPerPixel = config == Bitmap.Config.ALPHA_8 ? 1
+                : config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444 ? 2 : 4;
+        return (long) width * height * bytesPerPixel;
+    }
+
+    /**
+     * bytes a new bitmap may take right now
+     */
+    public long getBudget() {
+        if (fixedBudget >= 0) {
+            return fixedBudget;
+        }
+        Runtime runtime = Runtime.getRuntime();
+        // from Android 8.0 (API 26) pixels live in native memory, don't hold them against the java heap
+        long free = Build.VERSION.SDK_INT >= 26
+                ? runtime.maxMemory()
+                : runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        return (long) (free * BUDGET_RATIO);
+    }
+
+    public boolean fits(int width, int height, Bitmap.Config config) {
+        return bytesOf(width, height, config) <= getBudget();
+    }
+
+    /**
+     * move to the next fallback
+     * @param allowDownsample whether the caller can live with a smaller bitmap
+     * @return false when no fallback is left
+     */
+    public boolean degrade(boolean allowDownsample) {
+        if (attempts >= MAX_ATTEMPTS) {
+            return false;
+        }
+        if (config != Bitmap.Config.RGB_565) {
+            attempts++;
+            config = Bitmap.Config.RGB_565;
+            fallback = FALLBACK_RGB_565;
+            return true;
+        }
+        if (!allowDownsample) {
+            return false;
+        }
+        attempts++;
+        sampleSize *= 2;
+        fallback = FALLBACK_DOWNSAMPLE;
+        return true;
+    }
+
+    /**
+     * drop what can be dropped before trying again
+     */
+    private static void relieve() {
+        BitmapPool.getInstance().clear();
+    }
+
+    private MarkerOutOfMemoryException outOfMemory(int width, int height) {
+        return new MarkerOutOfMemoryException(width, height, fallback, attempts);
+    }
+
+    /**
+     * choose the config and sample size for a bitmap of about width x height without allocating it,
+     * e.g. before handing the decode to a pipeline that can only be told a target size
+     * @param width
+     * @param height
+     */
+    public void plan(int width, int height) {
+        while (!fits(Math.max(1, width / sampleSize), Math.max(1, height / sampleSize), config)) {
+            if (!degrade(true)) {
+                throw outOfMemory(width / sampleSize, height / sampleSize);
+            }
+        }
+    }
+
+    /**
+     * a blank mutable bitmap of exactly width x height, in RGB_565 when ARGB_8888 doesn't fit
+     * @param width
+     * @param height
+     * @return
+     */
+    public Bitmap createBitmap(int width, int height) {
+        Bitmap bitmap = BitmapPool.getInstance().get(width, height, config);
+        if (bitmap != null) {
+            return bitmap;
+        }
+        boolean relieved = false;
+        while (true) {
+            if (fits(width, height, config)) {
+                try {
+                    return Bitmap.createBitmap(width, height, config);
+                } catch (OutOfMemoryError e) {
+                    Log.w(Utils.TAG, "can't allocate " + width + "x" + height + " " + config);
+                }
+            }
+            if (!relieved) {
+                relieve();
+                relieved = true;
+            } else if (!degrade(false)) {
+                throw outOfMemory(width, height);
+            }
+        }
+    }
+
+    /**
+     * decode an image of width x height with options, degrading them until the result fits
+     * @param decoder
+     * @param options
+     * @param width source width
+     * @param height source height
+     * @return the decoded bitmap, null when the decoder can't read the image
+     */
+    public Bitmap decode(Decoder decoder, BitmapFactory.Options options, int width, int height) {
+        int baseSampleSize = Math.max(1, options.inSampleSize);
+        options.inPreferredConfig = config;
+        options.inSampleSize = baseSampleSize * sampleSize;
+        boolean relieved = false;
+        while (true) {
+            int outWidth = Utils.getDecodedSize(width, options);
+            int outHeight = Utils.getDecodedSize(height, options);
+            if (width <= 0 || height <= 0 || fits(outWidth, outHeight, options.inPreferredConfig)) {
+                try {
+                    return decoder.decode(options);
+                } catch (OutOfMemoryError e) {
+                    Log.w(Utils.TAG, "can't decode " + outWidth + "x" + outHeight + " " + options.inPreferredConfig);
+                }
+            }
+            if (!relieved) {
+                relieve();
+                relieved = true;
+            } else if (!degrade(true)) {
+                throw outOfMemory(outWidth, outHeight);
+            }
+            options.inPreferredConfig = config;
+            options.inSampleSize = baseSampleSize * sampleSize;
+        }
+    }
+
+    /**
+     * the job gave up on a whole bitmap and goes on tile by tile
+     */
+    public void useTiles() {
+        fallback = FALLBACK_TILED;
+    }
+
+    public boolean isDegraded() {
+        return !FALLBACK_NONE.equals(fallback);
+    }
+
+    /**
+     * the last fallback taken, one of the FALLBACK_* values
+     */
+    public String getFallback() {
+        return fallback;
+    }
+
+    public Bitmap.Config getConfig() {
+        return config;
+    }
+
+    /**
+     * extra downsampling on top of the requested scale, a power of two
+     */
+    public int getSampleSize() {
+        return sampleSize;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public WritableMap toMap() {
+        WritableMap map = Arguments.createMap();
+        map.putString("fallback", fallback);
+        map.putString("config", config.name());
+        map.putInt("sampleSize", sampleSize);
+        map.putInt("attempts", attempts);
+        return map;
+    }
+}
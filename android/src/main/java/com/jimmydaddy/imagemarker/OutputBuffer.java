@@ -0,0 +1,215 @@
+package com.jimmydaddy.imagemarker;
+
+import android.support.annotation.Nullable;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.NativeModule;
+import com.facebook.react.bridge.ReactContext;
+import com.facebook.react.bridge.WritableMap;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A result kept in memory, for callers that upload it right away: the encoder writes into
+ * pooled chunks that grow with the output, no copy is made while encoding, and the result
+ * is handed back as a base64 string or stored in the React Native blob module.
+ */
+
+public class OutputBuffer extends MarkerOutput {
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int MAX_POOLED_CHUNKS = 32;
+    private static final ArrayDeque<byte[]> chunkPool = new ArrayDeque<>();
+    private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+    private static final String BLOB_MODULE = "com.facebook.react.modules.blob.BlobModule";
+
+    private final String mimeType;
+    private final Object blobModule;
+    private final List<byte[]> chunks = new ArrayList<>();
+    private int size = 0;
+    private boolean closed = false;
+
+    private final OutputStream stream = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            ensureOpen();
+            int offset = size % CHUNK_SIZE;
+            if (offset == 0 && size / CHUNK_SIZE == chunks.size()) {
+                chunks.add(acquireChunk());
+            }
+            chunks.get(size / CHUNK_SIZE)[offset] = (byte) b;
+            size++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ensureOpen();
+            while (len > 0) {
+                int offset = size % CHUNK_SIZE;
+                if (offset == 0 && size / CHUNK_SIZE == chunks.size()) {
+                    chunks.add(acquireChunk());
+                }
+                int count = Math.min(len, CHUNK_SIZE - offset);
+                System.arraycopy(b, off, chunks.get(size / CHUNK_SIZE), offset, count);
+                size += count;
+                off += count;
+                len -= count;
+            }
+        }
+    };
+
+    /**
+     * an output committed as a base64 string
+     */
+    public OutputBuffer() {
+        this(null, null);
+    }
+
+    /**
+     * @param mimeType type of the blob
+     * @param blobModule the blob module from {@link #getBlobModule}, null to commit as base64
+     */
+    public OutputBuffer(@Nullable String mimeType, @Nullable Object blobModule) {
+        this.mimeType = mimeType;
+        this.blobModule = blobModule;
+    }
+
+    /**
+     * the blob module of the app, looked up by name since it only exists from React Native 0.54
+     * @param context
+     * @return null when there is none
+     */
+    @Nullable
+    @SuppressWarnings("unchecked")
+    public static Object getBlobModule(ReactContext context) {
+        try {
+            Class<? extends NativeModule> blobClass = (Class<? extends NativeModule>) Class.forName(BLOB_MODULE);
+            return context.hasNativeModule(blobClass) ? context.getNativeModule(blobClass) : null;
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+    }
+
+    private static byte[] acquireChunk() {
+        synchronized (chunkPool) {
+            byte[] chunk = chunkPool.pollFirst();
+            if (chunk != null) {
+                return chunk;
+            }
+        }
+        return new byte[CHUNK_SIZE];
+    }
+
+    static void trimPool() {
+        synchronized (chunkPool) {
+            chunkPool.clear();
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Output already closed");
+        }
+    }
+
+    @Override
+    public OutputStream getStream() {
+        return stream;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public byte[] toByteArray() {
+        byte[] data = new byte[size];
+        for (int i = 0, offset = 0; offset < size; i++, offset += CHUNK_SIZE) {
+            System.arraycopy(chunks.get(i), 0, data, offset, Math.min(CHUNK_SIZE, size - offset));
+        }
+        return data;
+    }
+
+    private int byteAt(int index) {
+        return chunks.get(index / CHUNK_SIZE)[index % CHUNK_SIZE] & 0xFF;
+    }
+
+    /**
+     * base64 straight from the chunks, without a joined copy of the data
+     */
+    public String toBase64() {
+        char[] out = new char[(size + 2) / 3 * 4];
+        int o = 0;
+        int i = 0;
+        for (; i + 2 < size; i += 3) {
+            int bits = (byteAt(i) << 16) | (byteAt(i + 1) << 8) | byteAt(i + 2);
+            out[o++] = BASE64[bits >> 18];
+            out[o++] = BASE64[(bits >> 12) & 0x3F];
+            out[o++] = BASE64[(bits >> 6) & 0x3F];
+            out[o++] = BASE64[bits & 0x3F];
+        }
+        int left = size - i;
+        if (left > 0) {
+            int bits = byteAt(i) << 16;
+            if (left == 2) {
+                bits |= byteAt(i + 1) << 8;
+            }
+            out[o++] = BASE64[bits >> 18];
+            out[o++] = BASE64[(bits >> 12) & 0x3F];
+            out[o++] = left == 2 ? BASE64[(bits >> 6) & 0x3F] : '=';
+            out[o] = '=';
+        }
+        return new String(out);
+    }
+
+    /**
+     * @return the base64 string, or { blobId, offset, size, type } to build a Blob from in js
+     */
+    @Override
+    public Object commit() throws IOException {
+        ensureOpen();
+        Object result;
+        if (null == blobModule) {
+            result = toBase64();
+        } else {
+            try {
+                Method store = blobModule.getClass().getMethod("store", byte[].class);
+                String blobId = (String) store.invoke(blobModule, (Object) toByteArray());
+                WritableMap blob = Arguments.createMap();
+                blob.putString("blobId", blobId);
+                blob.putInt("offset", 0);
+                blob.putInt("size", size);
+                blob.putString("type", mimeType);
+                result = blob;
+            } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+                throw new IOException("Can't store the blob", e);
+            }
+        }
+        close();
+        return result;
+    }
+
+    /**
+     * give the chunks back to the pool
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        synchronized (chunkPool) {
+            for (byte[] chunk : chunks) {
+                if (chunkPool.size() < MAX_POOLED_CHUNKS) {
+                    chunkPool.addFirst(chunk);
+                }
+            }
+        }
+        chunks.clear();
+        size = 0;
+    }
+}
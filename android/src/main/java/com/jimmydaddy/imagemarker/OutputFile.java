@@ -0,0 +1,233 @@
+package com.jimmydaddy.imagemarker;
+
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.UUID;
+
+/**
+ * A result file written in one go: the encoder writes into a temp file next to the destination
+ * through a large pooled buffer, {@link #commit()} renames it over the destination, and
+ * {@link #close()} deletes it when the job failed. A reader never sees a partial file, even
+ * when the process dies mid-write, and the descriptor is released on every path.
+ */
+
+public class OutputFile extends MarkerOutput {
+    // temp files end with this, so stale ones left by a killed process can be told apart
+    public static final String TEMP_SUFFIX = ".imagemarker-tmp";
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 8;
+    private static final ArrayDeque<byte[]> buffers = new ArrayDeque<>();
+    private static volatile boolean sync = false;
+
+    private final File file;
+    private final File temp;
+    private final FileOutputStream fileStream;
+    private final BufferedStream stream;
+    private final CacheJanitor janitor;
+    private boolean committed = false;
+    private boolean closed = false;
+
+    /**
+     * @param path destination, replaced on commit
+     */
+    public static OutputFile open(String path) throws IOException {
+        return open(path, null);
+    }
+
+    /**
+     * @param path destination, replaced on commit
+     * @param janitor told about the file once committed, may be null
+     */
+    public static OutputFile open(String path, @Nullable CacheJanitor janitor) throws IOException {
+        return new OutputFile(new File(path), janitor);
+    }
+
+    private OutputFile(File file, @Nullable CacheJanitor janitor) throws IOException {
+        this.file = file;
+        this.janitor = janitor;
+        this.temp = new File(file.getParentFile(), "." + file.getName() + "." + UUID.randomUUID().toString() + TEMP_SUFFIX);
+        this.fileStream = new FileOutputStream(temp);
+        this.stream = new BufferedStream(fileStream, acquireBuffer());
+    }
+
+    /**
+     * whether commits wait for the data to reach the storage (FileChannel.force), off by default.
+     * Without it a power loss right after a commit may still lose the file, but never expose a partial one
+     * @param sync
+     */
+    public static void setSync(boolean sync) {
+        OutputFile.sync = sync;
+    }
+
+    public static boolean isSync() {
+        return sync;
+    }
+
+    private static byte[] acquireBuffer() {
+        synchronized (buffers) {
+            byte[] buffer = buffers.pollFirst();
+            if (buffer != null) {
+                return buffer;
+            }
+        }
+        return new byte[BUFFER_SIZE];
+    }
+
+    private static void releaseBuffer(byte[] buffer) {
+        synchronized (buffers) {
+            if (buffers.size() < MAX_POOLED_BUFFERS) {
+                buffers.addFirst(buffer);
+            }
+        }
+    }
+
+    static void trimPool() {
+        synchronized (buffers) {
+            buffers.clear();
+        }
+    }
+
+    @Override
+    public OutputStream getStream() {
+        return stream;
+    }
+
+    /**
+     * flush, close and move the temp file to the destination
+     * @return the destination path
+     */
+    @Override
+    public String commit() throws IOException {
+        if (closed) {
+            throw new IOException("Output already closed: " + file.getPath());
+        }
+        stream.flush();
+        if (sync) {
+            fileStream.getChannel().force(false);
+        }
+        closeStream();
+        if (!temp.renameTo(file)) {
+            // some file systems don't replace on rename
+            if (!file.delete() || !temp.renameTo(file)) {
+                throw new IOException("Can't move the result to " + file.getPath());
+            }
+        }
+        committed = true;
+        if (janitor != null) {
+            janitor.track(file);
+        }
+        return file.getPath();
+    }
+
+    private void closeStream() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        byte[] buffer = stream.detach();
+        try {
+            fileStream.close();
+        } finally {
+            releaseBuffer(buffer);
+        }
+    }
+
+    /**
+     * release the descriptor and, unless committed, delete the temp file. Safe to call more than once
+     */
+    @Override
+    public void close() {
+        try {
+            closeStream();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (!committed && temp.exists() && !temp.delete()) {
+            temp.deleteOnExit();
+        }
+    }
+
+    /**
+     * BufferedOutputStream over a pooled buffer, writes bigger than the buffer go straight through
+     */
+    private static class BufferedStream extends OutputStream {
+        private final OutputStream out;
+        private byte[] buffer;
+        private int count = 0;
+
+        BufferedStream(OutputStream out, byte[] buffer) {
+            this.out = out;
+            this.buffer = buffer;
+        }
+
+        private void ensureOpen() throws IOException {
+            if (buffer == null) {
+                throw new IOException("Stream closed");
+            }
+        }
+
+        private void flushBuffer() throws IOException {
+            if (count > 0) {
+                out.write(buffer, 0, count);
+                count = 0;
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            ensureOpen();
+            if (count == buffer.length) {
+                flushBuffer();
+            }
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ensureOpen();
+            if (len >= buffer.length) {
+                flushBuffer();
+                out.write(b, off, len);
+                return;
+            }
+            if (len > buffer.length - count) {
+                flushBuffer();
+            }
+            System.arraycopy(b, off, buffer, count, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            ensureOpen();
+            flushBuffer();
+            out.flush();
+        }
+
+        /**
+         * encoders may close the stream they were given, the file is only closed by OutputFile
+         */
+        @Override
+        public void close() throws IOException {
+            if (buffer != null) {
+                flush();
+            }
+        }
+
+        /**
+         * @return the buffer, the stream can't be written anymore
+         */
+        byte[] detach() {
+            byte[] detached = buffer;
+            buffer = null;
+            count = 0;
+            return detached;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.jimmydaddy.imagemarker;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Streaming PNG writer: 8 bit RGB or RGBA, every row with the Sub filter,
+ * the deflate output is cut into IDAT chunks as it comes.
+ */
+
+public class PngStripEncoder implements StripEncoder {
+    private static final byte[] SIGNATURE = {(byte) 137, 80, 78, 71, 13, 10, 26, 10};
+    private static final int CHUNK_SIZE = 32 * 1024;
+    private static final int FILTER_SUB = 1;
+
+    private final OutputStream out;
+    private final boolean alpha;
+    private final int level;
+    private int width;
+    private byte[] row;
+    private Deflater deflater;
+    private DeflaterOutputStream idat;
+
+    /**
+     * @param out
+     * @param alpha keep the alpha channel, otherwise write RGB
+     * @param level deflate level, 0-9 or Deflater.DEFAULT_COMPRESSION
+     */
+    public PngStripEncoder(OutputStream out, boolean alpha, int level) {
+        this.out = out;
+        this.alpha = alpha;
+        this.level = level;
+    }
+
+    public PngStripEncoder(OutputStream out, boolean alpha) {
+        this(out, alpha, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    @Override
+    public void begin(int width, int height) throws IOException {
+        this.width = width;
+        this.row = new byte[1 + width * (alpha ? 4 : 3)];
+        out.write(SIGNATURE);
+        byte[] header = new byte[13];
+        putInt(header, 0, width);
+        putInt(header, 4, height);
+        header[8] = 8;
+        // 6: truecolor with alpha, 2: truecolor
+        header[9] = (byte) (alpha ? 6 : 2);
+        writeChunk(out, "IHDR", header, header.length);
+        deflater = new Deflater(level);
+        idat = new DeflaterOutputStream(new IdatOutputStream(out), deflater, CHUNK_SIZE);
+    }
+
+    @Override
+    public void writeRows(int[] pixels, int rows) throws IOException {
+        int channels = alpha ? 4 : 3;
+        for (int y = 0; y < rows; y++) {
+            row[0] = FILTER_SUB;
+            int offset = y * width;
+            int prev = 0;
+            for (int x = 0; x < width; x++) {
+                int color = pixels[offset + x];
+                int i = 1 + x * channels;
+                row[i] = (byte) ((color >> 16) - (prev >> 16));
+                row[i + 1] = (byte) ((color >> 8) - (prev >> 8));
+                row[i + 2] = (byte) (color - prev);
+                if (alpha) {
+                    row[i + 3] = (byte) ((color >>> 24) - (prev >>> 24));
+                }
+                prev = color;
+            }
+            idat.write(row);
+        }
+    }
+
+    @Override
+    public void finish() throws IOException {
+        idat.finish();
+        idat.flush();
+        deflater.end();
+        writeChunk(out, "IEND", new byte[0], 0);
+        out.flush();
+    }
+
+    private static void putInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    private static void writeChunk(OutputStream out, String type, byte[] data, int length) throws IOException {
+        byte[] header = new byte[8];
+        putInt(header, 0, length);
+        for (int i = 0; i < 4; i++) {
+            header[4 + i] = (byte) type.charAt(i);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(header, 4, 4);
+        crc.update(data, 0, length);
+        byte[] trailer = new byte[4];
+        putInt(trailer, 0, (int) crc.getValue());
+        out.write(header);
+        out.write(data, 0, length);
+        out.write(trailer);
+    }
+
+    /**
+     * collects compressed bytes and writes them out as IDAT chunks
+     */
+    private static class IdatOutputStream extends OutputStream {
+        private final OutputStream out;
+        private final byte[] buffer = new byte[CHUNK_SIZE];
+        private int count = 0;
+
+        IdatOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buffer.length) {
+                flushChunk();
+            }
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (count == buffer.length) {
+                    flushChunk();
+                }
+                int n = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            flushChunk();
+        }
+
+        private void flushChunk() throws IOException {
+            if (count > 0) {
+                writeChunk(out, "IDAT", buffer, count);
+                count = 0;
+            }
+        }
+    }
+}
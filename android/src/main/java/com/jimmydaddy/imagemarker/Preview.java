@@ -0,0 +1,119 @@
+package com.jimmydaddy.imagemarker;
+
+import android.support.annotation.Nullable;
+
+import com.facebook.react.bridge.ReadableMap;
+
+/**
+ * A job rendered at display size for a quick look: the background is decoded within maxSize
+ * and the coordinates, font size and marker scale given for the full resolution result are
+ * remapped by the same ratio, so the marker lands where it will in the full render.
+ *
+ * With full set, the full resolution render is started once the preview resolved, its result
+ * is sent as an {@link #EVENT_FULL_RESOLUTION} event.
+ */
+
+public class Preview {
+    public static final String EVENT_FULL_RESOLUTION = "ImageMarkerFullResolution";
+    // jobId of the full resolution render, for cancel
+    public static final String FULL_JOB_SUFFIX = ":full";
+
+    private final int maxSize;
+    private final boolean full;
+    // preview size / full resolution size, known once the size of the source is
+    private volatile float ratio = 1F;
+
+    /**
+     * @param maxSize px of the longer side of the preview
+     * @param full whether to render the full resolution result afterwards
+     */
+    public Preview(int maxSize, boolean full) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("preview maxSize should be greater than 0, got " + maxSize);
+        }
+        this.maxSize = maxSize;
+        this.full = full;
+    }
+
+    /**
+     * @param options with a preview map of maxSize and full
+     * @param screenSize default maxSize, px of the longer side of the screen
+     * @return null when no preview was asked for
+     */
+    @Nullable
+    public static Preview fromOptions(@Nullable ReadableMap options, int screenSize) {
+        ReadableMap preview = Utils.optMap(options, "preview");
+        if (null == preview) {
+            return null;
+        }
+        return new Preview(Utils.optInt(preview, "maxSize", screenSize), Utils.optBoolean(preview, "full", false));
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public boolean isFull() {
+        return full;
+    }
+
+    public float getRatio() {
+        return ratio;
+    }
+
+    /**
+     * the scale to decode a source of width x height at so it fits in maxSize,
+     * records the ratio to remap the job with
+     * @param scale requested for the full resolution result
+     * @param width of the source
+     * @param height of the source
+     * @return
+     */
+    public float fit(@Nullable Float scale, int width, int height) {
+        float target = null != scale && scale > 0 ? scale : 1;
+        ratio = fit(Math.round(width * target), Math.round(height * target), maxSize);
+        return target * ratio;
+    }
+
+    /**
+     * @return the ratio bringing width x height within maxSize, 1 when it fits already
+     */
+    static float fit(int width, int height, int maxSize) {
+        int longer = Math.max(width, height);
+        if (longer <= maxSize || longer <= 0) {
+            return 1F;
+        }
+        return (float) maxSize / longer;
+    }
+
+    /**
+     * @param value a coordinate or size of the full resolution result, may be null
+     * @param ratio
+     * @return
+     */
+    static Integer remap(@Nullable Integer value, float ratio) {
+        if (null == value || ratio == 1) {
+            return value;
+        }
+        return Math.round(value * ratio);
+    }
+
+    /**
+     * @param scale of a marker, null for 1
+     * @param ratio
+     * @return
+     */
+    static Float remap(@Nullable Float scale, float ratio) {
+        if (ratio == 1) {
+            return scale;
+        }
+        return (null != scale ? scale : 1F) * ratio;
+    }
+
+    /**
+     * part of the result cache key, previews of different sizes differ
+     */
+    public String getCacheKey() {
+        return "preview:" + maxSize;
+    }
+}
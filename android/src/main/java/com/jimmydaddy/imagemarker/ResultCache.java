@@ -0,0 +1,305 @@
+package com.jimmydaddy.imagemarker;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableMap;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Result files of earlier jobs, keyed by a hash of the source and every parameter of the job,
+ * so marking the same source the same way again resolves with the existing file right away.
+ *
+ * The index lives next to the results and is kept in LRU order, files evicted to stay under the
+ * size limit are deleted. Entries whose file was moved or changed by the app are dropped on lookup.
+ * Off until a size is set, see the resultCacheSize option of configure.
+ */
+
+public class ResultCache {
+    private static final String IMAGE_MARKER_TAG = "[ImageMarker]";
+    private static final String SEPARATOR = "\t";
+
+    private static class Entry {
+        final String key;
+        final String path;
+        final long size;
+        long lastAccess;
+
+        Entry(String key, String path, long size, long lastAccess) {
+            this.key = key;
+            this.path = path;
+            this.size = size;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    private final File indexFile;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private boolean loaded = false;
+    private boolean dirty = false;
+    // read without the lock, so checking whether the cache is on never waits for the index to be written
+    private volatile int maxSize = 0;
+    private long size = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * @param indexFile where the index is kept between launches
+     */
+    public ResultCache(File indexFile) {
+        this.indexFile = indexFile;
+    }
+
+    /**
+     * hash of everything a result depends on
+     * @param parts source identity and job parameters, null parts are allowed
+     * @return
+     */
+    public static String key(Object... parts) {
+        StringBuilder builder = new StringBuilder();
+        for (Object part : parts) {
+            // the separator can't be confused with the content of a part
+            builder.append(String.valueOf(part).replace("\\", "\\\\").replace("|", "\\|")).append('|');
+        }
+        return Utils.md5(builder.toString());
+    }
+
+    /**
+     * what identifies the content of a source: local files by their path, size and modification time,
+     * the others by their uri
+     * @param uri
+     * @return
+     */
+    public static String sourceIdentity(String uri) {
+        if (uri != null && uri.startsWith("file://")) {
+            File file = new File(uri.substring("file://".length()));
+            return uri + "#" + file.length() + "@" + file.lastModified();
+        }
+        return uri;
+    }
+
+    /**
+     * @param maxSize in KB, 0 turns the cache off, the index is kept for when it is turned on again
+     */
+    public synchronized void setMaxSize(int maxSize) {
+        this.maxSize = Math.max(0, maxSize);
+        if (this.maxSize == 0) {
+            return;
+        }
+        ensureLoaded();
+        trimToSize(this.maxSize * 1024L);
+        flush();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public boolean isEnabled() {
+        return maxSize > 0;
+    }
+
+    /**
+     * @return the path of the cached result, or null on a miss
+     */
+    @Nullable
+    public synchronized String get(String key) {
+        if (!isEnabled()) {
+            return null;
+        }
+        ensureLoaded();
+        Entry entry = entries.get(key);
+        if (entry != null && new File(entry.path).length() != entry.size) {
+            // deleted, moved or overwritten since
+            entries.remove(key);
+            size -= entry.size;
+            dirty = true;
+            entry = null;
+        }
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        entry.lastAccess = System.currentTimeMillis();
+        dirty = true;
+        return entry.path;
+    }
+
+    /**
+     * remember the result file of a job, older results are evicted and deleted when over the limit.
+     * An identical job that finished first keeps its entry while its file is intact: both files were
+     * handed to js, so the later one is left uncached rather than deleting the earlier one
+     * @param key
+     * @param path
+     */
+    public synchronized void put(String key, String path) {
+        if (!isEnabled()) {
+            return;
+        }
+        ensureLoaded();
+        long length = new File(path).length();
+        if (length <= 0 || length > maxSize * 1024L) {
+            return;
+        }
+        Entry current = entries.get(key);
+        if (current != null && !current.path.equals(path) && new File(current.path).length() == current.size) {
+            return;
+        }
+        Entry previous = entries.put(key, new Entry(key, path, length, System.currentTimeMillis()));
+        if (previous != null) {
+            size -= previous.size;
+        }
+        size += length;
+        trimToSize(maxSize * 1024L);
+        dirty = true;
+        flush();
+    }
+
+    /**
+     * whether the file is kept as the result of a cached job
+     * @param path
+     */
+    public synchronized boolean contains(String path) {
+        if (!isEnabled()) {
+            return false;
+        }
+        ensureLoaded();
+        for (Entry entry : entries.values()) {
+            if (entry.path.equals(path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void trimToSize(long targetSize) {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (size > targetSize && iterator.hasNext()) {
+            Entry entry = iterator.next();
+            iterator.remove();
+            size -= entry.size;
+            evictions++;
+            deleteFile(entry.path);
+            dirty = true;
+        }
+    }
+
+    private static void deleteFile(String path) {
+        File file = new File(path);
+        if (file.exists() && !file.delete()) {
+            Log.d(IMAGE_MARKER_TAG, "can't delete cached result " + path);
+        }
+    }
+
+    private void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        if (!indexFile.exists()) {
+            return;
+        }
+        List<Entry> loadedEntries = new ArrayList<>();
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(SEPARATOR, 4);
+                if (fields.length != 4) {
+                    continue;
+                }
+                try {
+                    loadedEntries.add(new Entry(fields[0], fields[3], Long.parseLong(fields[1]), Long.parseLong(fields[2])));
+                } catch (NumberFormatException e) {
+                    dirty = true;
+                }
+            }
+        } catch (IOException e) {
+            Log.d(IMAGE_MARKER_TAG, "error：" + e.getMessage());
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        Collections.sort(loadedEntries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return a.lastAccess < b.lastAccess ? -1 : (a.lastAccess == b.lastAccess ? 0 : 1);
+            }
+        });
+        for (Entry entry : loadedEntries) {
+            Entry previous = entries.put(entry.key, entry);
+            if (previous != null) {
+                size -= previous.size;
+            }
+            size += entry.size;
+        }
+    }
+
+    /**
+     * write the index if it changed
+     */
+    public synchronized void flush() {
+        if (!dirty) {
+            return;
+        }
+        MarkerOutput output = null;
+        try {
+            output = OutputFile.open(indexFile.getPath());
+            Writer writer = new OutputStreamWriter(output.getStream(), "UTF-8");
+            for (Entry entry : entries.values()) {
+                writer.write(entry.key + SEPARATOR + entry.size + SEPARATOR + entry.lastAccess + SEPARATOR + entry.path + "\n");
+            }
+            writer.flush();
+            output.commit();
+            dirty = false;
+        } catch (IOException e) {
+            Log.d(IMAGE_MARKER_TAG, "error：" + e.getMessage());
+        } finally {
+            if (output != null) {
+                output.close();
+            }
+        }
+    }
+
+    public synchronized WritableMap getStats() {
+        WritableMap stats = Arguments.createMap();
+        stats.putDouble("hits", hits);
+        stats.putDouble("misses", misses);
+        stats.putDouble("evictions", evictions);
+        stats.putInt("count", entries.size());
+        stats.putInt("size", (int) (size / 1024));
+        stats.putInt("maxSize", maxSize);
+        return stats;
+    }
+
+    // for tests
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+}
@@ -0,0 +1,306 @@
+package com.jimmydaddy.imagemarker;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.support.annotation.Nullable;
+
+import com.facebook.react.bridge.ReadableMap;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/**
+ * How a marked image is written: format, quality and file name.
+ *
+ * The format is the saveFormat option when given, else the one of the file name extension,
+ * else PNG for images with an alpha channel and JPEG for the others.
+ *
+ * Android can't write lossless WebP before Android 10 (API 29), webpLossless is written as PNG there.
+ */
+
+public class SaveOptions {
+    public static final String FORMAT_JPEG = "jpeg";
+    public static final String FORMAT_PNG = "png";
+    public static final String FORMAT_WEBP = "webp";
+    public static final String FORMAT_WEBP_LOSSLESS = "webpLossless";
+
+    public static final String RETURN_FILE = "file";
+    public static final String RETURN_BASE64 = "base64";
+    public static final String RETURN_BLOB = "blob";
+
+    // rows handed to the streaming PNG encoder at once
+    private static final int CHUNK_ROWS = 16;
+
+    // Android 10, the legacy WEBP format is lossless at quality 100 from there
+    private static final int SDK_WEBP_LOSSLESS = 29;
+    // Android 11, WEBP_LOSSY and WEBP_LOSSLESS
+    private static final int SDK_WEBP_FORMATS = 30;
+
+    private final String saveFormat;
+    private final int quality;
+    private final int pngCompressionLevel;
+    private final String filename;
+    private final String returnMode;
+
+    /**
+     * @param saveFormat one of the FORMAT_* values, null to choose from the file name or the alpha channel
+     * @param quality 0-100, for the lossy formats
+     * @param pngCompressionLevel deflate level 0-9, -1 for the platform encoder
+     * @param filename may be null for a random name
+     */
+    public SaveOptions(@Nullable String saveFormat, int quality, int pngCompressionLevel, @Nullable String filename) {
+        this(saveFormat, quality, pngCompressionLevel, filename, RETURN_FILE);
+    }
+
+    /**
+     * @param saveFormat
+     * @param quality
+     * @param pngCompressionLevel
+     * @param filename
+     * @param returnMode one of the RETURN_* values, how the result is handed back
+     */
+    public SaveOptions(@Nullable String saveFormat, int quality, int pngCompressionLevel, @Nullable String filename, String returnMode) {
+        if (!RETURN_FILE.equals(returnMode) && !RETURN_BASE64.equals(returnMode) && !RETURN_BLOB.equals(returnMode)) {
+            throw new IllegalArgumentException("Unknown returnMode: " + returnMode);
+        }
+        if (null != saveFormat && null == getExtension(saveFormat)) {
+            throw new IllegalArgumentException("Unknown saveFormat: " + saveFormat);
+        }
+        if (pngCompressionLevel < -1 || pngCompressionLevel > 9) {
+            throw new IllegalArgumentException("pngCompressionLevel should be within 0-9");
+        }
+        this.saveFormat = "jpg".equals(saveFormat) ? FORMAT_JPEG : saveFormat;
+        this.quality = quality;
+        this.pngCompressionLevel = pngCompressionLevel;
+        this.filename = filename;
+        this.returnMode = returnMode;
+    }
+
+    /**
+     * @param options saveFormat, pngCompressionLevel and returnMode, may be null
+     * @param quality
+     * @param filename
+     */
+    public static SaveOptions fromOptions(@Nullable ReadableMap options, int quality, @Nullable String filename) {
+        return new SaveOptions(
+                Utils.optString(options, "saveFormat", null),
+                quality,
+                Utils.optInt(options, "pngCompressionLevel", -1),
+                filename,
+                Utils.optString(options, "returnMode", RETURN_FILE));
+    }
+
+    public int getQuality() {
+        return quality;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public String getReturnMode() {
+        return returnMode;
+    }
+
+    /**
+     * the options the encoded result depends on, for the result cache
+     */
+    public String getCacheKey() {
+        return saveFormat + ":" + quality + ":" + pngCompressionLevel;
+    }
+
+    /**
+     * @param hasAlpha whether the image to write has an alpha channel
+     * @return one of the FORMAT_* values
+     */
+    public String resolveFormat(boolean hasAlpha) {
+        if (FORMAT_WEBP_LOSSLESS.equals(saveFormat)) {
+            return getSupportedFormat(saveFormat, Build.VERSION.SDK_INT);
+        }
+        if (null != saveFormat) {
+            return saveFormat;
+        }
+        String format = null != filename ? formatOfPath(filename) : null;
+        if (null != format) {
+            return format;
+        }
+        return hasAlpha ? FORMAT_PNG : FORMAT_JPEG;
+    }
+
+    /**
+     * the format actually written on a given Android version
+     * @param format one of the FORMAT_* values
+     * @param sdk
+     * @return PNG for webpLossless before Android 10, which has no lossless WebP encoder, else format
+     */
+    static String getSupportedFormat(String format, int sdk) {
+        if (FORMAT_WEBP_LOSSLESS.equals(format) && sdk < SDK_WEBP_LOSSLESS) {
+            return FORMAT_PNG;
+        }
+        return format;
+    }
+
+    /**
+     * format for a streaming encoder, which can't write WebP: lossy goes to JPEG and lossless to PNG
+     */
+    public static String getStripFormat(String format) {
+        if (FORMAT_WEBP.equals(format)) {
+            return FORMAT_JPEG;
+        }
+        if (FORMAT_WEBP_LOSSLESS.equals(format)) {
+            return FORMAT_PNG;
+        }
+        return format;
+    }
+
+    /**
+     * @return the format of a file name extension, null when it isn't one
+     */
+    @Nullable
+    public static String formatOfPath(String path) {
+        String lower = path.toLowerCase();
+        if (lower.endsWith(".jpg") || lower.endsWith(".jpeg")) {
+            return FORMAT_JPEG;
+        }
+        if (lower.endsWith(".png")) {
+            return FORMAT_PNG;
+        }
+        if (lower.endsWith(".webp")) {
+            return FORMAT_WEBP;
+        }
+        return null;
+    }
+
+    @Nullable
+    public static String getExtension(String format) {
+        switch (format) {
+            case FORMAT_JPEG:
+            case "jpg":
+                return ".jpg";
+            case FORMAT_PNG:
+                return ".png";
+            case FORMAT_WEBP:
+            case FORMAT_WEBP_LOSSLESS:
+                return ".webp";
+            default:
+                return null;
+        }
+    }
+
+    public static String getMimeType(String format) {
+        switch (format) {
+            case FORMAT_PNG:
+                return "image/png";
+            case FORMAT_WEBP:
+            case FORMAT_WEBP_LOSSLESS:
+                return "image/webp";
+            default:
+                return "image/jpeg";
+        }
+    }
+
+    /**
+     * the file in dir the image is written to, its extension matches the format
+     * @param dir
+     * @param format
+     * @return
+     */
+    public String getPath(String dir, String format) {
+        String extension = getExtension(format);
+        if (null == filename) {
+            return dir + "/" + UUID.randomUUID().toString() + "imagemarker" + extension;
+        }
+        String name = filename;
+        String current = formatOfPath(name);
+        if (null != current) {
+            if (extension.equals(getExtension(current))) {
+                return dir + "/" + name;
+            }
+            name = name.substring(0, name.lastIndexOf('.'));
+        }
+        return dir + "/" + name + extension;
+    }
+
+    /**
+     * encode the whole bitmap
+     * @param bitmap
+     * @param format one of the FORMAT_* values
+     * @param out
+     */
+    public void write(Bitmap bitmap, String format, OutputStream out) throws IOException {
+        if (FORMAT_PNG.equals(format) && pngCompressionLevel >= 0) {
+            writeRows(bitmap, new PngStripEncoder(out, bitmap.hasAlpha(), pngCompressionLevel));
+            return;
+        }
+        int sdk = Build.VERSION.SDK_INT;
+        if (!bitmap.compress(Bitmap.CompressFormat.valueOf(getCompressFormatName(format, sdk)), getCompressQuality(format, quality, sdk), out)) {
+            throw new IOException("Can't encode the image as " + format);
+        }
+    }
+
+    /**
+     * a streaming encoder for {@link #getStripFormat} of format
+     * @param format
+     * @param out
+     * @param alpha keep the alpha channel, PNG only
+     */
+    public StripEncoder createStripEncoder(String format, OutputStream out, boolean alpha) {
+        if (FORMAT_PNG.equals(getStripFormat(format))) {
+            return new PngStripEncoder(out, alpha, pngCompressionLevel);
+        }
+        return new JpegStripEncoder(out, quality);
+    }
+
+    private static void writeRows(Bitmap bitmap, StripEncoder encoder) throws IOException {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int[] chunk = new int[width * Math.min(CHUNK_ROWS, height)];
+        encoder.begin(width, height);
+        for (int y = 0; y < height; y += CHUNK_ROWS) {
+            int rows = Math.min(CHUNK_ROWS, height - y);
+            bitmap.getPixels(chunk, 0, width, 0, y, width, rows);
+            encoder.writeRows(chunk, rows);
+        }
+        encoder.finish();
+    }
+
+    /**
+     * name of the Bitmap.CompressFormat to write format with, WEBP_LOSSY and WEBP_LOSSLESS
+     * only exist from Android 11 so they are looked up by name
+     * @param format one of the FORMAT_* values
+     * @param sdk
+     * @return
+     */
+    static String getCompressFormatName(String format, int sdk) {
+        switch (getSupportedFormat(format, sdk)) {
+            case FORMAT_PNG:
+                return "PNG";
+            case FORMAT_WEBP:
+                return sdk >= SDK_WEBP_FORMATS ? "WEBP_LOSSY" : "WEBP";
+            case FORMAT_WEBP_LOSSLESS:
+                return sdk >= SDK_WEBP_FORMATS ? "WEBP_LOSSLESS" : "WEBP";
+            default:
+                return "JPEG";
+        }
+    }
+
+    /**
+     * the quality passed to Bitmap.compress
+     * @param format one of the FORMAT_* values
+     * @param quality requested
+     * @param sdk
+     * @return
+     */
+    static int getCompressQuality(String format, int quality, int sdk) {
+        if (sdk >= SDK_WEBP_FORMATS || sdk < SDK_WEBP_LOSSLESS) {
+            // lossless is a format of its own from Android 11, before Android 10 WEBP is always lossy
+            return FORMAT_WEBP_LOSSLESS.equals(format) ? 100 : quality;
+        }
+        // on Android 10 the legacy WEBP is lossless at quality 100 only
+        if (FORMAT_WEBP_LOSSLESS.equals(format)) {
+            return 100;
+        }
+        return FORMAT_WEBP.equals(format) ? Math.min(quality, 99) : quality;
+    }
+}
@@ -0,0 +1,23 @@
+package com.jimmydaddy.imagemarker;
+
+import java.io.IOException;
+
+/**
+ * Encoder fed a band of rows at a time, so an image can be written without ever being
+ * in memory as a whole
+ */
+
+public interface StripEncoder {
+    void begin(int width, int height) throws IOException;
+
+    /**
+     * @param pixels ARGB colors, width * rows of them, not premultiplied
+     * @param rows number of rows in pixels
+     */
+    void writeRows(int[] pixels, int rows) throws IOException;
+
+    /**
+     * write the trailer, the underlying stream stays open
+     */
+    void finish() throws IOException;
+}
@@ -0,0 +1,179 @@
+package com.jimmydaddy.imagemarker;
+
+import android.content.res.AssetManager;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Picture;
+import android.graphics.Rect;
+import android.graphics.Typeface;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableMap;
+import com.facebook.react.views.text.ReactFontManager;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Paints and laid out text runs of the markWithObjects text markers, shared across markers and jobs.
+ *
+ * A paint is built once per font name, size, color and weight, so the color is parsed and the
+ * typeface looked up once. A run is the text drawn with a paint, recorded into a {@link Picture}:
+ * the recording holds the shaped glyphs and their positions, so drawing the same label again
+ * skips the text layout.
+ */
+
+public class TextRunCache {
+    public static final int DEFAULT_MAX_PAINTS = 32;
+    public static final int DEFAULT_MAX_RUNS = 256;
+
+    private static class Run {
+        final Picture picture;
+        final int left;
+        final int top;
+
+        Run(Picture picture, int left, int top) {
+            this.picture = picture;
+            this.left = left;
+            this.top = top;
+        }
+    }
+
+    private final LinkedHashMap<String, Paint> paints;
+    private final LinkedHashMap<String, Run> runs;
+    private long paintHits = 0;
+    private long paintMisses = 0;
+    private long runHits = 0;
+    private long runMisses = 0;
+
+    public TextRunCache() {
+        this(DEFAULT_MAX_PAINTS, DEFAULT_MAX_RUNS);
+    }
+
+    public TextRunCache(final int maxPaints, final int maxRuns) {
+        paints = new LinkedHashMap<String, Paint>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Paint> eldest) {
+                return size() > maxPaints;
+            }
+        };
+        runs = new LinkedHashMap<String, Run>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Run> eldest) {
+                return size() > maxRuns;
+            }
+        };
+    }
+
+    public static String paintKey(String fontName, int fontSize, String color, int style) {
+        return fontName + "|" + fontSize + "|" + color + "|" + style;
+    }
+
+    /**
+     * the shared paint of a style, never modify it
+     * @param fontName null for the default typeface
+     * @param fontSize
+     * @param color
+     * @param style Typeface.BOLD, Typeface.NORMAL...
+     * @param assets
+     * @return
+     */
+    public Paint getPaint(String fontName, int fontSize, String color, int style, AssetManager assets) {
+        String key = paintKey(fontName, fontSize, color, style);
+        synchronized (this) {
+            Paint paint = paints.get(key);
+            if (paint != null) {
+                paintHits++;
+                return paint;
+            }
+            paintMisses++;
+        }
+        Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        paint.setTextSize(fontSize);
+        try {
+            paint.setColor(Color.parseColor(color));
+            if (fontName != null) {
+                //设置字体失败时使用默认字体
+                paint.setTypeface(ReactFontManager.getInstance().getTypeface(fontName, style, assets));
+            } else if (style != Typeface.NORMAL) {
+                paint.setTypeface(Typeface.defaultFromStyle(style));
+            }
+        } catch (Exception e) {
+            paint.setTypeface(Typeface.DEFAULT);
+        }
+        synchronized (this) {
+            Paint existing = paints.get(key);
+            if (existing != null) {
+                return existing;
+            }
+            paints.put(key, paint);
+        }
+        return paint;
+    }
+
+    /**
+     * like canvas.drawText(text, x, y, paint), from the recorded run when there is one
+     * @param canvas
+     * @param text
+     * @param x
+     * @param y baseline
+     * @param paint from {@link #getPaint}
+     * @param paintKey the key of the paint
+     */
+    public void drawText(Canvas canvas, String text, float x, float y, Paint paint, String paintKey) {
+        String key = paintKey + "\n" + text;
+        Run run;
+        synchronized (this) {
+            run = runs.get(key);
+            if (run != null) {
+                runHits++;
+            } else {
+                runMisses++;
+            }
+        }
+        if (run == null) {
+            run = record(text, paint);
+            synchronized (this) {
+                runs.put(key, run);
+            }
+        }
+        canvas.save();
+        canvas.translate(x + run.left, y + run.top);
+        canvas.drawPicture(run.picture);
+        canvas.restore();
+    }
+
+    private static Run record(String text, Paint paint) {
+        Rect bounds = new Rect();
+        paint.getTextBounds(text, 0, text.length(), bounds);
+        // room for anti aliasing
+        bounds.inset(-2, -2);
+        Picture picture = new Picture();
+        Canvas canvas = picture.beginRecording(Math.max(1, bounds.width()), Math.max(1, bounds.height()));
+        canvas.drawText(text, -bounds.left, -bounds.top, paint);
+        picture.endRecording();
+        return new Run(picture, bounds.left, bounds.top);
+    }
+
+    public synchronized void clear() {
+        paints.clear();
+        runs.clear();
+    }
+
+    // for tests
+    synchronized long getRunHits() {
+        return runHits;
+    }
+
+    public synchronized WritableMap getStats() {
+        WritableMap stats = Arguments.createMap();
+        stats.putDouble("paintHits", paintHits);
+        stats.putDouble("paintMisses", paintMisses);
+        stats.putDouble("hits", runHits);
+        stats.putDouble("misses", runMisses);
+        stats.putInt("paints", paints.size());
+        stats.putInt("count", runs.size());
+        return stats;
+    }
+}
@@ -0,0 +1,151 @@
+package com.jimmydaddy.imagemarker;
+
+import android.content.res.AssetManager;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Typeface;
+import android.text.Layout;
+import android.text.StaticLayout;
+import android.text.TextPaint;
+
+import com.facebook.react.views.text.ReactFontManager;
+
+/**
+ * Style of a text marker: color, font, size and shadow.
+ *
+ * The paint is built once per style, and {@link #renderTile} rasterizes a text with it into an
+ * ARGB tile that can be cached and stamped with a single drawBitmap.
+ */
+
+public class TextStyle {
+    public static final int DEFAULT_FONT_SIZE = 14;
+
+    private final String color;
+    private final String fontName;
+    private final int fontSize;
+    private final ShadowLayerStyle shadowLayerStyle;
+    private final String key;
+    private TextPaint paint;
+
+    public TextStyle(String color, String fontName, Integer fontSize, ShadowLayerStyle shadowLayerStyle) {
+        this.color = color;
+        this.fontName = fontName;
+        this.fontSize = null != fontSize ? fontSize : DEFAULT_FONT_SIZE;
+        this.shadowLayerStyle = shadowLayerStyle;
+        this.key = color + "|" + fontName + "|" + this.fontSize + "|" + (null != shadowLayerStyle
+                ? shadowLayerStyle.radius + "," + shadowLayerStyle.dx + "," + shadowLayerStyle.dy + "," + shadowLayerStyle.color
+                : "");
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * the same style with the font size and shadow scaled, for a preview
+     * @param ratio
+     * @return this for a ratio of 1
+     */
+    public TextStyle scale(float ratio) {
+        if (ratio == 1) {
+            return this;
+        }
+        ShadowLayerStyle shadow = null != shadowLayerStyle
+                ? new ShadowLayerStyle(shadowLayerStyle.radius * ratio, shadowLayerStyle.dx * ratio, shadowLayerStyle.dy * ratio, shadowLayerStyle.color)
+                : null;
+        return new TextStyle(color, fontName, Math.max(1, Math.round(fontSize * ratio)), shadow);
+    }
+
+    /**
+     * the shared paint of this style, draw with a copy of it
+     * @param assets
+     * @return
+     */
+    public synchronized TextPaint getPaint(AssetManager assets) {
+        if (null == paint) {
+            //建立画笔
+            TextPaint textPaint = new TextPaint(Paint.ANTI_ALIAS_FLAG | Paint.DEV_KERN_TEXT_FLAG);
+            textPaint.setAntiAlias(true);
+            if (null != shadowLayerStyle) {
+                textPaint.setShadowLayer(shadowLayerStyle.radius, shadowLayerStyle.dx,shadowLayerStyle.dy, shadowLayerStyle.color);
+            }
+            try {
+                //设置字体失败时使用默认字体
+                textPaint.setTypeface(ReactFontManager.getInstance().getTypeface(fontName, Typeface.NORMAL, assets));
+            } catch (Exception e) {
+                textPaint.setTypeface(Typeface.DEFAULT);
+            }
+            textPaint.setTextSize(fontSize);
+            textPaint.setColor(Color.parseColor(color));
+            paint = textPaint;
+        }
+        return paint;
+    }
+
+    /**
+     * cache key of the tile of a text laid out within maxWidth
+     * @param text
+     * @param maxWidth
+     * @return
+     */
+    public String tileKey(String text, int maxWidth) {
+        String content = text.length() > 256 ? "md5:" + Utils.md5(text) : text;
+        return key + "|" + maxWidth + "|" + content;
+    }
+
+    // room around the text for the shadow
+    public int getPaddingLeft() {
+        return null != shadowLayerStyle ? (int) Math.ceil(Math.max(0, shadowLayerStyle.radius - shadowLayerStyle.dx)) : 0;
+    }
+
+    public int getPaddingTop() {
+        return null != shadowLayerStyle ? (int) Math.ceil(Math.max(0, shadowLayerStyle.radius - shadowLayerStyle.dy)) : 0;
+    }
+
+    public int getPaddingRight() {
+        return null != shadowLayerStyle ? (int) Math.ceil(Math.max(0, shadowLayerStyle.radius + shadowLayerStyle.dx)) : 0;
+    }
+
+    public int getPaddingBottom() {
+        return null != shadowLayerStyle ? (int) Math.ceil(Math.max(0, shadowLayerStyle.radius + shadowLayerStyle.dy)) : 0;
+    }
+
+    /**
+     * lay out the text within maxWidth and rasterize it, shadow included, into a tile
+     * of (textWidth + horizontal padding) x (textHeight + vertical padding)
+     * @param text
+     * @param maxWidth
+     * @param assets
+     * @return
+     */
+    public Bitmap renderTile(String text, int maxWidth, AssetManager assets) {
+        // ALIGN_CENTER, ALIGN_NORMAL, ALIGN_OPPOSITE
+        StaticLayout textLayout = new StaticLayout(text, new TextPaint(getPaint(assets)), maxWidth, Layout.Alignment.ALIGN_NORMAL, 1.0f, 0.0f, false);
+
+        int textHeight = textLayout.getHeight();
+        int textWidth = 0;
+        int count = textLayout.getLineCount();
+        for (int a = 0; a < count; a++) {
+            textWidth = (int) Math.ceil(Math.max(textWidth, textLayout.getLineWidth(a) + textLayout.getLineLeft(a)));
+        }
+
+        Bitmap tile = Bitmap.createBitmap(
+                Math.max(1, textWidth + getPaddingLeft() + getPaddingRight()),
+                Math.max(1, textHeight + getPaddingTop() + getPaddingBottom()),
+                Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(tile);
+        canvas.translate(getPaddingLeft(), getPaddingTop());
+        textLayout.draw(canvas);
+        return tile;
+    }
+
+    public int getTextWidth(Bitmap tile) {
+        return tile.getWidth() - getPaddingLeft() - getPaddingRight();
+    }
+
+    public int getTextHeight(Bitmap tile) {
+        return tile.getHeight() - getPaddingTop() - getPaddingBottom();
+    }
+}
@@ -0,0 +1,170 @@
+package com.jimmydaddy.imagemarker;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * An image too big to be decoded at once, composited band by band with BitmapRegionDecoder.
+ *
+ * Each band of full width rows is decoded and handed to a {@link StripEncoder}. Only the bands
+ * that intersect the overlay are drawn on, so peak memory is a couple of bands whatever the
+ * resolution of the image.
+ *
+ * The image is read as stored, its EXIF orientation isn't applied: don't open a rotated photo.
+ */
+
+public class TiledImage implements Closeable {
+    // aim for bands of about this many bytes
+    private static final int BAND_BYTES = 4 * 1024 * 1024;
+    // a multiple of the JPEG MCU height
+    private static final int BAND_ALIGN = 16;
+    // rows handed to the encoder at once
+    private static final int CHUNK_ROWS = 16;
+
+    private final BitmapRegionDecoder decoder;
+    private final int sampleSize;
+    private final int width;
+    private final int height;
+    private final boolean alpha;
+
+    /**
+     * @param path image file, JPEG or PNG
+     * @param sampleSize power of two the image is downsampled by
+     */
+    public static TiledImage open(String path, int sampleSize) throws IOException {
+        BitmapFactory.Options bounds = Utils.decodeBounds(path);
+        return new TiledImage(BitmapRegionDecoder.newInstance(path, false), sampleSize, !"image/jpeg".equals(bounds.outMimeType));
+    }
+
+    private TiledImage(BitmapRegionDecoder decoder, int sampleSize, boolean alpha) {
+        this.decoder = decoder;
+        this.alpha = alpha;
+        this.sampleSize = Math.max(1, sampleSize);
+        this.width = decoder.getWidth() / this.sampleSize;
+        this.height = decoder.getHeight() / this.sampleSize;
+    }
+
+    /**
+     * output width, after the sample size
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * whether the source format can have an alpha channel, JPEG can't
+     */
+    public boolean hasAlpha() {
+        return alpha;
+    }
+
+    public int getBandHeight() {
+        int rows = BAND_BYTES / Math.max(1, width * 4) / BAND_ALIGN * BAND_ALIGN;
+        return Math.max(BAND_ALIGN, Math.min(rows, (height + BAND_ALIGN - 1) / BAND_ALIGN * BAND_ALIGN));
+    }
+
+    /**
+     * stream the image through the encoder with the overlay drawn at (left, top)
+     * @param overlay may be null to re-encode the image as is
+     * @param left
+     * @param top
+     * @param paint
+     * @param encoder
+     * @param budget
+     */
+    public void composite(Bitmap overlay, float left, float top, Paint paint, StripEncoder encoder, MemoryBudget budget) throws IOException {
+        int bandHeight = getBandHeight();
+        if (!budget.fits(width, bandHeight, Bitmap.Config.ARGB_8888)) {
+            throw new MarkerOutOfMemoryException(width, bandHeight, MemoryBudget.FALLBACK_TILED, budget.getAttempts());
+        }
+        Rect dirty = null;
+        if (null != overlay) {
+            dirty = new Rect((int) Math.floor(left), (int) Math.floor(top),
+                    (int) Math.ceil(left + overlay.getWidth()), (int) Math.ceil(top + overlay.getHeight()));
+        }
+
+        // the band the overlay is drawn on, decodes write straight into it when the platform allows
+        Bitmap band = budget.createBitmap(width, bandHeight);
+        int[] chunk = new int[width * CHUNK_ROWS];
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        options.inMutable = true;
+        try {
+            encoder.begin(width, height);
+            for (int bandTop = 0; bandTop < height; bandTop += bandHeight) {
+                int rows = Math.min(bandHeight, height - bandTop);
+                Rect region = new Rect(0, bandTop * sampleSize, width * sampleSize, (bandTop + rows) * sampleSize);
+                options.inBitmap = BitmapPool.isSupported() ? band : null;
+                Bitmap decoded;
+                try {
+                    decoded = decoder.decodeRegion(region, options);
+                } catch (IllegalArgumentException e) {
+                    options.inBitmap = null;
+                    decoded = decoder.decodeRegion(region, options);
+                }
+                if (null == decoded) {
+                    throw new IOException("Can't decode rows " + bandTop + "-" + (bandTop + rows));
+                }
+
+                Bitmap source = decoded;
+                if (null != dirty && dirty.top < bandTop + rows && dirty.bottom > bandTop) {
+                    if (decoded != band) {
+                        band.eraseColor(0);
+                        new Canvas(band).drawBitmap(decoded, 0, 0, null);
+                        decoded.recycle();
+                    }
+                    Canvas canvas = new Canvas(band);
+                    canvas.translate(0, -bandTop);
+                    canvas.drawBitmap(overlay, left, top, paint);
+                    source = band;
+                }
+
+                for (int y = 0; y < rows; y += CHUNK_ROWS) {
+                    int chunkRows = Math.min(CHUNK_ROWS, rows - y);
+                    readRows(source, y, chunkRows, chunk);
+                    encoder.writeRows(chunk, chunkRows);
+                }
+                if (source != band) {
+                    decoded.recycle();
+                }
+            }
+            encoder.finish();
+        } finally {
+            BitmapPool.getInstance().put(band);
+        }
+    }
+
+    /**
+     * copy rows of a band, the decoder may round the band size so missing pixels repeat the edge
+     */
+    private void readRows(Bitmap source, int y, int rows, int[] chunk) {
+        int sourceWidth = Math.min(width, source.getWidth());
+        for (int row = 0; row < rows; row++) {
+            int sourceRow = Math.min(y + row, source.getHeight() - 1);
+            int offset = row * width;
+            source.getPixels(chunk, offset, width, 0, sourceRow, sourceWidth, 1);
+            for (int x = sourceWidth; x < width; x++) {
+                chunk[offset + x] = chunk[offset + sourceWidth - 1];
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        if (!decoder.isRecycled()) {
+            decoder.recycle();
+        }
+    }
+}
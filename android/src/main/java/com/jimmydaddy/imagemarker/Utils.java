@@ -1,15 +1,24 @@
 package com.jimmydaddy.imagemarker;
 
+import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
 import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.RectF;
 import android.media.ExifInterface;
+import android.util.DisplayMetrics;
 import android.util.Log;
+import android.util.TypedValue;
+
+import com.facebook.react.bridge.ReadableMap;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.security.MessageDigest;
 
 /**
  * Created by jimmydaddy on 2018/4/8.
@@ -63,19 +72,54 @@ public class Utils {
 
 
     public static Bitmap getBlankBitmap(int width, int height){
-        Bitmap icon = null;
-        try {
-            icon = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-        } catch (OutOfMemoryError e) {
-            System.out.print(e.getMessage());
-            while(icon == null) {
-                System.gc();
-                System.runFinalization();
-                icon = Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
-            }
-        }
+        return getBlankBitmap(width, height, new MemoryBudget());
+    }
 
-        return icon;
+    /**
+     * a blank mutable bitmap allocated within the budget of a job
+     * @param width
+     * @param height
+     * @param budget
+     * @return
+     * @throws MarkerOutOfMemoryException when even an RGB_565 bitmap doesn't fit
+     */
+    public static Bitmap getBlankBitmap(int width, int height, MemoryBudget budget) {
+        return budget.createBitmap(width, height);
+    }
+
+    /**
+     * a mutable copy of a bitmap, the original is left untouched
+     * @param bitmap
+     * @param budget
+     * @return
+     */
+    public static Bitmap copyBitmap(Bitmap bitmap, MemoryBudget budget) {
+        Bitmap copy = getBlankBitmap(bitmap.getWidth(), bitmap.getHeight(), budget);
+        new Canvas(copy).drawBitmap(bitmap, 0, 0, null);
+        copy.setDensity(bitmap.getDensity());
+        // keeps an opaque image opaque, the default output format follows it
+        copy.setHasAlpha(bitmap.hasAlpha());
+        return copy;
+    }
+
+    public static Bitmap ensureMutable(Bitmap bitmap) {
+        return ensureMutable(bitmap, new MemoryBudget());
+    }
+
+    /**
+     * a bitmap that can back a canvas: the bitmap itself when it is mutable,
+     * otherwise a mutable copy, and the original goes back to the pool
+     * @param bitmap owned by the caller
+     * @param budget
+     * @return
+     */
+    public static Bitmap ensureMutable(Bitmap bitmap, MemoryBudget budget) {
+        if (bitmap.isMutable()) {
+            return bitmap;
+        }
+        Bitmap mutable = copyBitmap(bitmap, budget);
+        BitmapPool.getInstance().put(bitmap);
+        return mutable;
     }
 
     public static int readDegree(String path) {
@@ -101,75 +145,344 @@ public class Utils {
     }
 
 
-    public static Bitmap scaleBitmap(String path, Float scale) {
-        int degree = readDegree(path);
+    /**
+     * the largest power of two sample size that still decodes at least at the requested scale
+     * @param scale
+     * @return
+     */
+    public static int calculateInSampleSize(float scale) {
+        int inSampleSize = 1;
+        if (scale > 0 && scale < 1) {
+            while (inSampleSize * 2 * scale <= 1) {
+                inSampleSize *= 2;
+            }
+        }
+        return inSampleSize;
+    }
 
+    /**
+     * options to decode an image of width x height directly at width * scale: a power of two
+     * inSampleSize does the bulk of the downscaling, inDensity/inTargetDensity the rest
+     * @param width
+     * @param height
+     * @param scale
+     * @return
+     */
+    public static BitmapFactory.Options getTargetSizeOptions(int width, int height, float scale) {
         BitmapFactory.Options options = new BitmapFactory.Options();
-        Bitmap prePhoto = null;
-        options.inPurgeable = true;
-        options.inInputShareable = true;
-        options.inSampleSize = scale.intValue();
-        try {
-            prePhoto = BitmapFactory.decodeFile(path, options);
-        } catch (OutOfMemoryError e) {
-            System.out.print(e.getMessage());
-            while(prePhoto == null) {
-                System.gc();
-                System.runFinalization();
-                prePhoto = BitmapFactory.decodeFile(path, options);
+        if (scale <= 0 || width <= 0 || height <= 0) {
+            options.inScaled = false;
+            return options;
+        }
+        options.inSampleSize = calculateInSampleSize(scale);
+        int sampledWidth = width / options.inSampleSize;
+        int targetWidth = Math.max(1, Math.round(width * scale));
+        if (sampledWidth > 0 && targetWidth != sampledWidth) {
+            options.inScaled = true;
+            options.inDensity = sampledWidth;
+            options.inTargetDensity = targetWidth;
+            options.inScreenDensity = 0;
+        } else {
+            options.inScaled = false;
+        }
+        return options;
+    }
+
+    /**
+     * bitmaps decoded with a density trick carry that density, reset it so canvases don't rescale them
+     * @param bitmap
+     */
+    private static void resetDensity(Bitmap bitmap) {
+        if (bitmap != null) {
+            bitmap.setDensity(Resources.getSystem().getDisplayMetrics().densityDpi);
+        }
+    }
+
+    /**
+     * size of one side of an image once decoded with options
+     * @param size source width or height
+     * @param options
+     * @return
+     */
+    public static int getDecodedSize(int size, BitmapFactory.Options options) {
+        float density = options.inScaled && options.inDensity > 0 && options.inTargetDensity > 0
+                ? (float) options.inTargetDensity / options.inDensity : 1;
+        int sampleSize = Math.max(1, options.inSampleSize);
+        return Math.max(1, (int) Math.ceil(Math.ceil((float) size / sampleSize) * density));
+    }
+
+    /**
+     * let the decoder reuse a pooled bitmap big enough for the output of options
+     * @param options
+     * @param width source width
+     * @param height source height
+     */
+    private static void setInBitmap(BitmapFactory.Options options, int width, int height) {
+        options.inBitmap = null;
+        if (!BitmapPool.isSupported() || width <= 0 || height <= 0) {
+            return;
+        }
+        options.inMutable = true;
+        options.inBitmap = BitmapPool.getInstance().getForDecode(
+                getDecodedSize(width, options) + 1,
+                getDecodedSize(height, options) + 1,
+                null != options.inPreferredConfig ? options.inPreferredConfig : Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * decode into a pooled bitmap when there is one, the candidate goes back to the pool when it isn't used
+     */
+    private static abstract class ReusingDecoder implements MemoryBudget.Decoder {
+        private final int width;
+        private final int height;
+
+        ReusingDecoder(int width, int height) {
+            this.width = width;
+            this.height = height;
+        }
+
+        abstract Bitmap decodeOnce(BitmapFactory.Options options);
+
+        @Override
+        public Bitmap decode(BitmapFactory.Options options) {
+            setInBitmap(options, width, height);
+            Bitmap reuse = options.inBitmap;
+            Bitmap bitmap;
+            try {
+                bitmap = decodeOnce(options);
+            } catch (IllegalArgumentException e) {
+                // the pooled bitmap doesn't fit after all
+                options.inBitmap = null;
+                bitmap = decodeOnce(options);
+            } finally {
+                options.inBitmap = null;
             }
+            if (reuse != null && reuse != bitmap) {
+                BitmapPool.getInstance().put(reuse);
+            }
+            return bitmap;
         }
-//
+    }
+
+    /**
+     * read the size of an image file without decoding its pixels
+     * @param path
+     * @return options with outWidth/outHeight set, -1 when the file can't be read
+     */
+    public static BitmapFactory.Options decodeBounds(String path) {
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, bounds);
+        return bounds;
+    }
+
+    /**
+     * like {@link #decodeBounds} but the size as displayed: Fresco applies the EXIF orientation,
+     * so width and height are swapped for a rotation of 90 or 270 degrees
+     * @param path
+     * @return
+     */
+    public static BitmapFactory.Options decodeOrientedBounds(String path) {
+        BitmapFactory.Options bounds = decodeBounds(path);
+        int[] size = orientSize(bounds.outWidth, bounds.outHeight, readDegree(path));
+        bounds.outWidth = size[0];
+        bounds.outHeight = size[1];
+        return bounds;
+    }
+
+    /**
+     * @param width as stored
+     * @param height as stored
+     * @param degree of the EXIF orientation
+     * @return width and height once rotated
+     */
+    static int[] orientSize(int width, int height, int degree) {
+        if (degree == 90 || degree == 270) {
+            return new int[] { height, width };
+        }
+        return new int[] { width, height };
+    }
+
+    public static Bitmap scaleBitmap(String path, Float scale) {
+        return scaleBitmap(path, scale, new MemoryBudget());
+    }
+
+    /**
+     * decode an image file directly at the target size and rotate it according to its exif orientation,
+     * the full resolution bitmap never exists when scale < 1. The result is mutable
+     * @param path
+     * @param scale
+     * @param budget degrades the decode when memory is short
+     * @return
+     */
+    public static Bitmap scaleBitmap(final String path, Float scale, MemoryBudget budget) {
+        int degree = readDegree(path);
+
+        BitmapFactory.Options bounds = decodeBounds(path);
+        BitmapFactory.Options options = getTargetSizeOptions(bounds.outWidth, bounds.outHeight, null != scale ? scale : 1);
+        options.inMutable = true;
+        Bitmap prePhoto = budget.decode(new ReusingDecoder(bounds.outWidth, bounds.outHeight) {
+            @Override
+            Bitmap decodeOnce(BitmapFactory.Options options) {
+                return BitmapFactory.decodeFile(path, options);
+            }
+        }, options, bounds.outWidth, bounds.outHeight);
 
         if(prePhoto == null)
             return null ;
 
-        int w = options.outWidth;
-        int h = options.outHeight;
+        resetDensity(prePhoto);
+        if (degree == 0) {
+            return prePhoto;
+        }
 
         Matrix mtx = new Matrix();
         mtx.postRotate(degree);
-        if (scale != 1 && scale >= 0) {
-            mtx.postScale(scale, scale);
+
+        Bitmap rotatedBitmap;
+        try {
+            rotatedBitmap = transformBitmap(prePhoto, mtx, budget);
+        } catch (MarkerOutOfMemoryException e) {
+            BitmapPool.getInstance().put(prePhoto);
+            throw e;
+        }
+        if (rotatedBitmap != prePhoto) {
+            BitmapPool.getInstance().put(prePhoto);
+        }
+        return rotatedBitmap;
+    }
+
+    /**
+     * decode a drawable resource directly at its screen density size times scale, as a mutable bitmap
+     * @param r
+     * @param resId
+     * @param scale
+     * @param budget degrades the decode when memory is short
+     * @return
+     */
+    public static Bitmap decodeResource(final Resources r, final int resId, Float scale, MemoryBudget budget) {
+        TypedValue value = new TypedValue();
+        r.getValue(resId, value, true);
+        float densityScale = 1;
+        if (value.density != TypedValue.DENSITY_NONE) {
+            int resDensity = value.density == TypedValue.DENSITY_DEFAULT ? DisplayMetrics.DENSITY_DEFAULT : value.density;
+            densityScale = (float) r.getDisplayMetrics().densityDpi / resDensity;
         }
 
-        Bitmap scaledBitmap = null;
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        bounds.inScaled = false;
+        BitmapFactory.decodeResource(r, resId, bounds);
 
-        try {
-            scaledBitmap = Bitmap.createBitmap(prePhoto, 0, 0, w, h, mtx, true);
-        } catch (OutOfMemoryError e) {
-            System.out.print(e.getMessage());
-            while(scaledBitmap == null) {
-                System.gc();
-                System.runFinalization();
-                scaledBitmap = Bitmap.createBitmap(prePhoto, 0, 0, w, h, mtx, true);
+        BitmapFactory.Options options = getTargetSizeOptions(bounds.outWidth, bounds.outHeight, (null != scale && scale > 0 ? scale : 1) * densityScale);
+        options.inMutable = true;
+        Bitmap bitmap = budget.decode(new ReusingDecoder(bounds.outWidth, bounds.outHeight) {
+            @Override
+            Bitmap decodeOnce(BitmapFactory.Options options) {
+                return BitmapFactory.decodeResource(r, resId, options);
             }
-        }
-        return scaledBitmap;
+        }, options, bounds.outWidth, bounds.outHeight);
+        resetDensity(bitmap);
+        return bitmap;
     }
 
     public static Bitmap scaleBitmap(Bitmap bitmap, Float scale) {
-        int w = bitmap.getWidth();
-        int h = bitmap.getHeight();
+        return scaleBitmap(bitmap, scale, new MemoryBudget());
+    }
 
+    /**
+     * scale a bitmap into a new (pooled) bitmap, the source is returned as is for a scale of 1
+     * @param bitmap
+     * @param scale
+     * @param budget
+     * @return
+     */
+    public static Bitmap scaleBitmap(Bitmap bitmap, Float scale, MemoryBudget budget) {
         Matrix mtx = new Matrix();
         if (scale != 1 && scale >= 0) {
             mtx.postScale(scale, scale);
         }
+        return transformBitmap(bitmap, mtx, budget);
+    }
+
+    /**
+     * like Bitmap.createBitmap(source, 0, 0, w, h, matrix, true), but drawn into a bitmap from the pool
+     * @param source
+     * @param mtx
+     * @param budget
+     * @return
+     */
+    public static Bitmap transformBitmap(Bitmap source, Matrix mtx, MemoryBudget budget) {
+        if (mtx.isIdentity()) {
+            return source;
+        }
+        RectF bounds = new RectF(0, 0, source.getWidth(), source.getHeight());
+        mtx.mapRect(bounds);
+        int width = Math.max(1, Math.round(bounds.width()));
+        int height = Math.max(1, Math.round(bounds.height()));
 
-        Bitmap scaledBitmap = null;
+        Bitmap transformed = getBlankBitmap(width, height, budget);
+        Canvas canvas = new Canvas(transformed);
+        canvas.translate(-bounds.left, -bounds.top);
+        canvas.concat(mtx);
+        canvas.drawBitmap(source, 0, 0, new Paint(Paint.FILTER_BITMAP_FLAG | Paint.DITHER_FLAG));
+        transformed.setDensity(source.getDensity());
+        transformed.setHasAlpha(source.hasAlpha());
+        return transformed;
+    }
 
+    /**
+     * hex md5 of a string, used to build short cache keys
+     * @param value
+     * @return
+     */
+    public static String md5(String value) {
         try {
-            scaledBitmap = Bitmap.createBitmap(bitmap, 0, 0, w, h, mtx, true);
-        } catch (OutOfMemoryError e) {
-            System.out.print(e.getMessage());
-            while(scaledBitmap == null) {
-                System.gc();
-                System.runFinalization();
-                scaledBitmap = Bitmap.createBitmap(bitmap, 0, 0, w, h, mtx, true);
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            byte[] bytes = digest.digest(value.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : bytes) {
+                sb.append(String.format("%02x", b & 0xff));
             }
+            return sb.toString();
+        } catch (Exception e) {
+            return value.length() + "-" + value.hashCode();
         }
-        return scaledBitmap;
+    }
+
+    private static boolean has(ReadableMap map, String key) {
+        return null != map && map.hasKey(key) && !map.isNull(key);
+    }
+
+    /**
+     * read an optional int from the js options
+     * @param map
+     * @param key
+     * @param defaultValue returned when the map is null or the key is missing
+     * @return
+     */
+    public static int optInt(ReadableMap map, String key, int defaultValue) {
+        return has(map, key) ? map.getInt(key) : defaultValue;
+    }
+
+    public static Integer optInteger(ReadableMap map, String key, Integer defaultValue) {
+        return has(map, key) ? Integer.valueOf(map.getInt(key)) : defaultValue;
+    }
+
+    public static float optFloat(ReadableMap map, String key, float defaultValue) {
+        return has(map, key) ? (float) map.getDouble(key) : defaultValue;
+    }
+
+    public static boolean optBoolean(ReadableMap map, String key, boolean defaultValue) {
+        return has(map, key) ? map.getBoolean(key) : defaultValue;
+    }
+
+    public static String optString(ReadableMap map, String key, String defaultValue) {
+        return has(map, key) ? map.getString(key) : defaultValue;
+    }
+
+    public static ReadableMap optMap(ReadableMap map, String key) {
+        return has(map, key) ? map.getMap(key) : null;
     }
 
 //
@@ -0,0 +1,101 @@
+package com.jimmydaddy.imagemarker;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Synthetic inputs of the benchmarks: photo-like rows, JPEGs made of them and rendered text labels,
+ * so the benchmarks run on a plain JVM without sample files
+ */
+class BenchmarkImages {
+    // rows fed to the streaming encoders at once, like TiledImage
+    static final int BAND_ROWS = 16;
+
+    /**
+     * a stream that only counts, the output of the encoder benchmarks
+     */
+    static class CountingStream extends OutputStream {
+        long count = 0;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+    /**
+     * a band of rows of a smooth gradient with some texture, so the entropy coding has work to do
+     * @param pixels width * rows, filled
+     * @param width
+     * @param top first row of the band in the image
+     * @param rows
+     */
+    static void fillRows(int[] pixels, int width, int top, int rows) {
+        for (int y = 0; y < rows; y++) {
+            int row = top + y;
+            for (int x = 0; x < width; x++) {
+                int noise = ((x * 31 + row * 17) ^ (x * row)) & 0x1F;
+                int r = (x * 255 / width + noise) & 0xFF;
+                int g = (row * 7 + noise) & 0xFF;
+                int b = ((x + row) / 3 + noise) & 0xFF;
+                pixels[y * width + x] = 0xFF000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+    }
+
+    /**
+     * stream a synthetic image through an encoder, band by band
+     */
+    static void encode(StripEncoder encoder, int width, int height) throws IOException {
+        int[] band = new int[width * BAND_ROWS];
+        encoder.begin(width, height);
+        for (int top = 0; top < height; top += BAND_ROWS) {
+            int rows = Math.min(BAND_ROWS, height - top);
+            fillRows(band, width, top, rows);
+            encoder.writeRows(band, rows);
+        }
+        encoder.finish();
+    }
+
+    /**
+     * a baseline JPEG of a synthetic image, the input of the JPEG fast path
+     */
+    static byte[] jpeg(int width, int height, int quality) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encode(new JpegStripEncoder(out, quality), width, height);
+        return out.toByteArray();
+    }
+
+    /**
+     * a text label rendered with AWT, ARGB not premultiplied like the text tiles of the module
+     */
+    static JpegTranscoder.Overlay label(String text, int fontSize, int left, int top) {
+        BufferedImage probe = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = probe.createGraphics();
+        Font font = new Font(Font.SANS_SERIF, Font.BOLD, fontSize);
+        int width = Math.max(1, g.getFontMetrics(font).stringWidth(text) + 8);
+        int height = g.getFontMetrics(font).getHeight() + 8;
+        g.dispose();
+
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        g = image.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+        g.setFont(font);
+        g.setColor(new Color(255, 255, 255, 220));
+        g.drawString(text, 4, 4 + g.getFontMetrics().getAscent());
+        g.dispose();
+        int[] pixels = image.getRGB(0, 0, width, height, null, 0, width);
+        return new JpegTranscoder.Overlay(pixels, width, height, left, top);
+    }
+}
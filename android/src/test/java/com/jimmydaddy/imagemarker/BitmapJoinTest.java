@@ -0,0 +1,101 @@
+package com.jimmydaddy.imagemarker;
+
+import android.graphics.Bitmap;
+import android.support.annotation.Nullable;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Local unit tests of the join of concurrently loaded bitmaps
+ */
+public class BitmapJoinTest {
+    private static class Outcome extends MarkerCallback {
+        final AtomicInteger resolved = new AtomicInteger();
+        final AtomicInteger rejected = new AtomicInteger();
+
+        @Override
+        public void resolve(Object result) {
+            resolved.incrementAndGet();
+        }
+
+        @Override
+        public void reject(String code, String message, @Nullable Throwable e) {
+            rejected.incrementAndGet();
+        }
+    }
+
+    private static class CountingJoin extends BitmapJoin {
+        final Outcome outcome;
+        final AtomicInteger completed = new AtomicInteger();
+
+        CountingJoin(int count, Outcome outcome) {
+            super(count, outcome);
+            this.outcome = outcome;
+        }
+
+        @Override
+        protected void onComplete(Bitmap[] bitmaps) {
+            completed.incrementAndGet();
+            outcome.resolve(null);
+        }
+
+        @Override
+        protected void release(Bitmap bitmap) {
+        }
+    }
+
+    @Test
+    public void complete_runsOnceAfterTheLastLoad() throws Exception {
+        final CountingJoin join = new CountingJoin(16, new Outcome());
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[16];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    join.complete(index, null);
+                }
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(1, join.completed.get());
+        assertEquals(1, join.outcome.resolved.get());
+    }
+
+    @Test
+    public void fail_rejectsOnceAndNeverCompletes() throws Exception {
+        CountingJoin join = new CountingJoin(3, new Outcome());
+        join.complete(0, null);
+        join.failureCallback().reject("error", "first");
+        join.failureCallback().reject("error", "second");
+        join.complete(1, null);
+        join.complete(2, null);
+        assertEquals(0, join.completed.get());
+        assertEquals(1, join.outcome.rejected.get());
+        assertEquals(0, join.outcome.resolved.get());
+    }
+
+    @Test
+    public void fail_afterCompletionIsIgnored() throws Exception {
+        CountingJoin join = new CountingJoin(1, new Outcome());
+        join.complete(0, null);
+        join.fail("error", "late", null);
+        assertEquals(1, join.completed.get());
+        assertEquals(0, join.outcome.rejected.get());
+    }
+}
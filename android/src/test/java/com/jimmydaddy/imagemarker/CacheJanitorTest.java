@@ -0,0 +1,143 @@
+package com.jimmydaddy.imagemarker;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit tests of the cache dir janitor
+ */
+public class CacheJanitorTest {
+    private static final long HOUR = 60 * 60 * 1000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File output(String name, int size, long modified) throws Exception {
+        File file = new File(folder.getRoot(), name);
+        Files.write(file.toPath(), new byte[size]);
+        assertTrue(file.setLastModified(modified));
+        return file;
+    }
+
+    private File output(int size, long modified) throws Exception {
+        return output(UUID.randomUUID().toString() + "imagemarker.jpg", size, modified);
+    }
+
+    @Test
+    public void isOutputName_matchesRandomNamesOnly() throws Exception {
+        assertTrue(CacheJanitor.isOutputName(UUID.randomUUID().toString() + "imagemarker.png"));
+        assertFalse(CacheJanitor.isOutputName("photo.jpg"));
+        assertFalse(CacheJanitor.isOutputName("imagemarker-results.idx"));
+    }
+
+    @Test
+    public void pass_deletesTheOldestOverTheFileCount() throws Exception {
+        long now = System.currentTimeMillis();
+        File oldest = output(10, now - 5 * HOUR);
+        File older = output(10, now - 4 * HOUR);
+        File recent = output(10, now - 3 * HOUR);
+        File named = output("photo.jpg", 10, now - 10 * HOUR);
+
+        CacheJanitor janitor = new CacheJanitor(folder.getRoot(), null, null);
+        janitor.configure(0, 1, 0);
+        janitor.runPass(now);
+
+        assertFalse(oldest.exists());
+        assertFalse(older.exists());
+        assertTrue(recent.exists());
+        assertTrue(named.exists());
+        assertEquals(1, janitor.getCount());
+    }
+
+    @Test
+    public void pass_enforcesSizeAndAge() throws Exception {
+        long now = System.currentTimeMillis();
+        File expired = output(10, now - 50 * HOUR);
+        File big = output(2048, now - 2 * HOUR);
+        File small = output(512, now - HOUR);
+
+        CacheJanitor janitor = new CacheJanitor(folder.getRoot(), null, null);
+        janitor.configure(1, 0, 24 * 60 * 60);
+        janitor.runPass(now);
+
+        assertFalse(expired.exists());
+        assertFalse(big.exists());
+        assertTrue(small.exists());
+    }
+
+    @Test
+    public void pass_keepsFreshResultsAndCachedOnes() throws Exception {
+        long now = System.currentTimeMillis();
+        File cachedFile = output(10, now - 2 * HOUR);
+        File fresh = output(10, now);
+        ResultCache resultCache = new ResultCache(new File(folder.getRoot(), "index"));
+        resultCache.setMaxSize(100);
+        resultCache.put("k", cachedFile.getPath());
+
+        CacheJanitor janitor = new CacheJanitor(folder.getRoot(), resultCache, null);
+        janitor.configure(0, 0, 60 * 60);
+        janitor.track(fresh);
+        janitor.runPass(now);
+
+        assertTrue(cachedFile.exists());
+        assertTrue(fresh.exists());
+    }
+
+    @Test
+    public void pass_keepsTheResultsOfJobsInFlight() throws Exception {
+        long now = System.currentTimeMillis();
+        File old = output(10, now - 3 * HOUR);
+        MarkerJobs jobs = new MarkerJobs();
+        MarkerJob batch = new MarkerJob("batch", null, 0);
+        jobs.start(batch);
+        File written = output(10, now);
+
+        CacheJanitor janitor = new CacheJanitor(folder.getRoot(), null, jobs);
+        janitor.configure(0, 0, 60 * 60);
+        janitor.runPass(now + 3 * HOUR);
+
+        assertFalse(old.exists());
+        assertTrue(written.exists());
+
+        batch.settle();
+        janitor.runPass(now + 3 * HOUR);
+        assertFalse(written.exists());
+    }
+
+    @Test
+    public void defaults_limitTheAgeOnly() throws Exception {
+        long now = System.currentTimeMillis();
+        File expired = output(10, now - 8 * 24 * HOUR);
+        File recent = output(10, now - 2 * HOUR);
+        File other = output(4096, now - 3 * HOUR);
+
+        CacheJanitor janitor = new CacheJanitor(folder.getRoot(), null, null);
+        janitor.runPass(now);
+
+        assertFalse(expired.exists());
+        assertTrue(recent.exists());
+        assertTrue(other.exists());
+    }
+
+    @Test
+    public void pass_deletesStaleTempFiles() throws Exception {
+        long now = System.currentTimeMillis();
+        File stale = output(".a.jpg.1" + OutputFile.TEMP_SUFFIX, 10, now - 2 * HOUR);
+        File writing = output(".b.jpg.2" + OutputFile.TEMP_SUFFIX, 10, now);
+
+        CacheJanitor janitor = new CacheJanitor(folder.getRoot(), null, null);
+        janitor.runPass(now);
+
+        assertFalse(stale.exists());
+        assertTrue(writing.exists());
+    }
+}
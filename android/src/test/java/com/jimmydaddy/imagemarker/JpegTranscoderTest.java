@@ -0,0 +1,203 @@
+package com.jimmydaddy.imagemarker;
+
+import org.junit.Test;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.plugins.jpeg.JPEGImageWriteParam;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit tests of the JPEG fast path on JPEGs written by ImageIO
+ */
+public class JpegTranscoderTest {
+    // odd sizes so the last MCU row and column are partial
+    private static final int WIDTH = 99;
+    private static final int HEIGHT = 71;
+
+    private static BufferedImage source(int type) {
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, type);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int r = x * 255 / WIDTH;
+                int g = y * 255 / HEIGHT;
+                int b = ((x / 7 + y / 5) % 2) * 200;
+                image.setRGB(x, y, 0xFF000000 | (r << 16) | (g << 8) | b);
+            }
+        }
+        return image;
+    }
+
+    private static byte[] write(BufferedImage image, boolean progressive, boolean optimize, int restartInterval) throws Exception {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(0.75f);
+        if (progressive) {
+            param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+        }
+        if (optimize) {
+            ((JPEGImageWriteParam) param).setOptimizeHuffmanTables(true);
+        }
+        IIOMetadata metadata = writer.getDefaultImageMetadata(new ImageTypeSpecifier(image), param);
+        if (restartInterval > 0) {
+            String format = "javax_imageio_jpeg_image_1.0";
+            Node root = metadata.getAsTree(format);
+            Node markers = root.getLastChild();
+            Element dri = new IIOMetadataNode("dri");
+            dri.setAttribute("interval", String.valueOf(restartInterval));
+            markers.insertBefore(dri, markers.getFirstChild());
+            metadata.setFromTree(format, root);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MemoryCacheImageOutputStream stream = new MemoryCacheImageOutputStream(out);
+        writer.setOutput(stream);
+        writer.write(null, new IIOImage(image, null, metadata), param);
+        stream.close();
+        writer.dispose();
+        return out.toByteArray();
+    }
+
+    private static byte[] transcode(byte[] jpeg, JpegTranscoder.Overlay overlay) throws Exception {
+        JpegTranscoder transcoder = new JpegTranscoder(new ByteArrayInputStream(jpeg));
+        assertTrue(transcoder.getUnsupportedReason(), transcoder.isSupported());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        transcoder.transcode(out, overlay);
+        return out.toByteArray();
+    }
+
+    private static BufferedImage read(byte[] jpeg) throws Exception {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(jpeg));
+        assertNotNull(image);
+        assertEquals(WIDTH, image.getWidth());
+        assertEquals(HEIGHT, image.getHeight());
+        return image;
+    }
+
+    private static JpegTranscoder.Overlay square(int left, int top, int size, int color) {
+        int[] pixels = new int[size * size];
+        Arrays.fill(pixels, color);
+        return new JpegTranscoder.Overlay(pixels, size, size, left, top);
+    }
+
+    /**
+     * pixels of the MCUs away from the overlay decode exactly as before, the ones under it take its color
+     */
+    private static void assertMarked(byte[] original, byte[] marked, JpegTranscoder.Overlay overlay, int mcu) throws Exception {
+        BufferedImage before = read(original);
+        BufferedImage after = read(marked);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int mcuLeft = x / mcu * mcu;
+                int mcuTop = y / mcu * mcu;
+                // the decoder smooths chroma across MCU edges, keep one MCU of margin
+                boolean near = overlay.intersects(mcuLeft - mcu, mcuTop - mcu, mcuLeft + 2 * mcu, mcuTop + 2 * mcu);
+                if (!near) {
+                    assertEquals("pixel " + x + "," + y, before.getRGB(x, y), after.getRGB(x, y));
+                }
+            }
+        }
+        int color = overlay.pixels[0];
+        for (int y = overlay.top + 2; y < overlay.top + overlay.height - 2; y++) {
+            for (int x = overlay.left + 2; x < overlay.left + overlay.width - 2; x++) {
+                int actual = after.getRGB(x, y);
+                for (int shift = 0; shift <= 16; shift += 8) {
+                    int diff = Math.abs(((color >> shift) & 0xFF) - ((actual >> shift) & 0xFF));
+                    assertTrue("pixel " + x + "," + y + " off by " + diff, diff < 40);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void copy_decodesIdentically() throws Exception {
+        byte[] original = write(source(BufferedImage.TYPE_INT_RGB), false, false, 0);
+        byte[] copy = transcode(original, null);
+        BufferedImage before = read(original);
+        BufferedImage after = read(copy);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                assertEquals(before.getRGB(x, y), after.getRGB(x, y));
+            }
+        }
+    }
+
+    @Test
+    public void overlay_onlyTouchesItsBlocks() throws Exception {
+        byte[] original = write(source(BufferedImage.TYPE_INT_RGB), false, false, 0);
+        JpegTranscoder.Overlay overlay = square(70, 44, 20, 0xFFE02020);
+        JpegTranscoder transcoder = new JpegTranscoder(new ByteArrayInputStream(original));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        transcoder.transcode(out, overlay);
+        assertMarked(original, out.toByteArray(), overlay, 16);
+        assertTrue(transcoder.getTouchedBlocks() > 0);
+        assertTrue(transcoder.getTouchedBlocks() < transcoder.getTotalBlocks() / 4);
+    }
+
+    @Test
+    public void transparentOverlay_keepsThePixels() throws Exception {
+        byte[] original = write(source(BufferedImage.TYPE_INT_RGB), false, false, 0);
+        byte[] marked = transcode(original, square(10, 10, 30, 0x00FFFFFF));
+        BufferedImage before = read(original);
+        BufferedImage after = read(marked);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                for (int shift = 0; shift <= 16; shift += 8) {
+                    int diff = Math.abs(((before.getRGB(x, y) >> shift) & 0xFF) - ((after.getRGB(x, y) >> shift) & 0xFF));
+                    assertTrue("pixel " + x + "," + y + " off by " + diff, diff <= 8);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void grayscale() throws Exception {
+        byte[] original = write(source(BufferedImage.TYPE_BYTE_GRAY), false, false, 0);
+        JpegTranscoder.Overlay overlay = square(8, 8, 16, 0xFFFFFFFF);
+        assertMarked(original, transcode(original, overlay), overlay, 8);
+    }
+
+    @Test
+    public void restartIntervals() throws Exception {
+        byte[] original = write(source(BufferedImage.TYPE_INT_RGB), false, false, 3);
+        JpegTranscoder.Overlay overlay = square(30, 30, 12, 0xFF2020E0);
+        assertMarked(original, transcode(original, overlay), overlay, 16);
+    }
+
+    @Test
+    public void optimizedTables_fallBackToTheStandardOnes() throws Exception {
+        byte[] original = write(source(BufferedImage.TYPE_INT_RGB), false, true, 0);
+        JpegTranscoder.Overlay overlay = square(0, 0, 24, 0xFF20E020);
+        assertMarked(original, transcode(original, overlay), overlay, 16);
+    }
+
+    @Test
+    public void progressive_isNotSupported() throws Exception {
+        byte[] original = write(source(BufferedImage.TYPE_INT_RGB), true, false, 0);
+        assertFalse(new JpegTranscoder(new ByteArrayInputStream(original)).isSupported());
+    }
+
+    @Test
+    public void estimatesTheQuality() throws Exception {
+        byte[] original = write(source(BufferedImage.TYPE_INT_RGB), false, false, 0);
+        int quality = new JpegTranscoder(new ByteArrayInputStream(original)).estimateQuality();
+        assertTrue("quality " + quality, Math.abs(quality - 75) <= 2);
+    }
+}
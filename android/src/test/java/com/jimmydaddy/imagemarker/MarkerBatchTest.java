@@ -0,0 +1,86 @@
+package com.jimmydaddy.imagemarker;
+
+import android.support.annotation.Nullable;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Local unit tests of how a batch dispatches its items
+ */
+public class MarkerBatchTest {
+    private static class Batch extends MarkerBatch {
+        final AtomicInteger finished = new AtomicInteger();
+
+        Batch(int count, int concurrency, ItemRunner runner) {
+            super(null, "batch", new String[count], concurrency, runner, new MarkerCallback() {
+                @Override
+                public void resolve(Object result) {
+                }
+
+                @Override
+                public void reject(String code, String message, @Nullable Throwable e) {
+                }
+            });
+        }
+
+        @Override
+        void emitProgress(int index, int done) {
+        }
+
+        @Override
+        void finish() {
+            finished.incrementAndGet();
+        }
+    }
+
+    @Test
+    public void itemsSettlingSynchronously_doNotGrowTheStack() throws Exception {
+        final AtomicInteger ran = new AtomicInteger();
+        final AtomicInteger depth = new AtomicInteger();
+        final AtomicInteger maxDepth = new AtomicInteger();
+        Batch batch = new Batch(5000, 4, new MarkerBatch.ItemRunner() {
+            @Override
+            public void run(int index, String uri, MarkerCallback callback) {
+                ran.incrementAndGet();
+                maxDepth.set(Math.max(maxDepth.get(), depth.incrementAndGet()));
+                callback.resolve("path" + index);
+                depth.decrementAndGet();
+            }
+        });
+        batch.start();
+
+        assertEquals(5000, ran.get());
+        assertEquals(1, batch.finished.get());
+        assertEquals(1, maxDepth.get());
+    }
+
+    @Test
+    public void itemsInFlight_stayWithinTheConcurrency() throws Exception {
+        final List<MarkerCallback> pending = new ArrayList<>();
+        Batch batch = new Batch(5, 2, new MarkerBatch.ItemRunner() {
+            @Override
+            public void run(int index, String uri, MarkerCallback callback) {
+                pending.add(callback);
+            }
+        });
+        batch.start();
+        assertEquals(2, pending.size());
+
+        pending.get(0).resolve("a");
+        assertEquals(3, pending.size());
+        pending.get(1).reject("error", "failed", null);
+        pending.get(2).resolve("c");
+        assertEquals(5, pending.size());
+        assertEquals(0, batch.finished.get());
+
+        pending.get(3).resolve("d");
+        pending.get(4).resolve("e");
+        assertEquals(1, batch.finished.get());
+    }
+}
@@ -0,0 +1,74 @@
+package com.jimmydaddy.imagemarker;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Microbenchmarks of the steps of the marking pipeline that run on a plain JVM: the streaming
+ * encoders of the tiled path, the JPEG fast path and the marker placement.
+ * Run with ./gradlew benchmark, the gc profiler reports the allocation rate
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MarkerBenchmark {
+    // 1, 3 and 12 MP
+    @Param({"1280x960", "2048x1536", "4032x3024"})
+    public String size;
+
+    private int width;
+    private int height;
+    private byte[] jpeg;
+    private JpegTranscoder.Overlay label;
+
+    @Setup
+    public void setUp() throws Exception {
+        String[] parts = size.split("x");
+        width = Integer.parseInt(parts[0]);
+        height = Integer.parseInt(parts[1]);
+        jpeg = BenchmarkImages.jpeg(width, height, 90);
+        label = BenchmarkImages.label("© react-native-image-marker", 48, 20, height - 100);
+    }
+
+    @Benchmark
+    public long jpegStripEncoder() throws Exception {
+        BenchmarkImages.CountingStream out = new BenchmarkImages.CountingStream();
+        BenchmarkImages.encode(new JpegStripEncoder(out, 90), width, height);
+        return out.count;
+    }
+
+    @Benchmark
+    public long pngStripEncoder() throws Exception {
+        BenchmarkImages.CountingStream out = new BenchmarkImages.CountingStream();
+        BenchmarkImages.encode(new PngStripEncoder(out, false, 1), width, height);
+        return out.count;
+    }
+
+    @Benchmark
+    public long jpegTranscoder() throws Exception {
+        BenchmarkImages.CountingStream out = new BenchmarkImages.CountingStream();
+        JpegTranscoder transcoder = new JpegTranscoder(new ByteArrayInputStream(jpeg));
+        transcoder.transcode(out, label);
+        return out.count;
+    }
+
+    @Benchmark
+    public Position rectFromPosition() {
+        return ImageMarkerManager.getRectFromPosition("bottomRight", 300, 120, width, height);
+    }
+}
@@ -0,0 +1,141 @@
+package com.jimmydaddy.imagemarker;
+
+import android.support.annotation.Nullable;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit tests of job cancellation and deadlines
+ */
+public class MarkerJobTest {
+    private static class Outcome extends MarkerCallback {
+        final AtomicInteger resolved = new AtomicInteger();
+        final AtomicInteger rejected = new AtomicInteger();
+        String code;
+
+        Outcome(MarkerJob job) {
+            super(job);
+        }
+
+        @Override
+        public void resolve(Object result) {
+            if (getJob().settle()) {
+                resolved.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void reject(String code, String message, @Nullable Throwable e) {
+            if (getJob().settle()) {
+                this.code = code;
+                rejected.incrementAndGet();
+            }
+        }
+    }
+
+    @Test
+    public void cancel_rejectsOnceAndRunsTheActions() throws Exception {
+        MarkerJob job = new MarkerJob("a", null, 0);
+        Outcome outcome = new Outcome(job);
+        final AtomicInteger closed = new AtomicInteger();
+        job.addOnCancel(new Runnable() {
+            @Override
+            public void run() {
+                closed.incrementAndGet();
+            }
+        });
+
+        assertTrue(job.cancel(MarkerCancelledException.CODE_CANCELLED, "cancelled"));
+        assertFalse(job.cancel(MarkerCancelledException.CODE_CANCELLED, "cancelled"));
+        outcome.resolve("late");
+
+        assertEquals(1, closed.get());
+        assertEquals(1, outcome.rejected.get());
+        assertEquals(0, outcome.resolved.get());
+        assertEquals(MarkerCancelledException.CODE_CANCELLED, outcome.code);
+        assertTrue(job.isCancelled());
+    }
+
+    @Test
+    public void cancel_afterSettlingIsIgnored() throws Exception {
+        MarkerJob job = new MarkerJob("a", null, 0);
+        Outcome outcome = new Outcome(job);
+        outcome.resolve("done");
+
+        assertFalse(job.cancel(MarkerCancelledException.CODE_CANCELLED, "cancelled"));
+        assertEquals(1, outcome.resolved.get());
+        assertEquals(0, outcome.rejected.get());
+    }
+
+    @Test(expected = MarkerCancelledException.class)
+    public void deadline_cancelsOnceItPassed() throws Exception {
+        MarkerJob job = new MarkerJob("a", null, 1);
+        Outcome outcome = new Outcome(job);
+        Thread.sleep(5);
+        try {
+            job.throwIfCancelled();
+        } finally {
+            assertEquals(MarkerCancelledException.CODE_TIMEOUT, outcome.code);
+        }
+    }
+
+    @Test
+    public void child_isCancelledWithItsParentUntilItSettles() throws Exception {
+        MarkerJob parent = new MarkerJob("batch", null, 0);
+        new Outcome(parent);
+        MarkerJob running = parent.child();
+        Outcome runningOutcome = new Outcome(running);
+        MarkerJob done = parent.child();
+        Outcome doneOutcome = new Outcome(done);
+        doneOutcome.resolve("done");
+
+        parent.cancel(MarkerCancelledException.CODE_CANCELLED, "cancelled");
+
+        assertTrue(running.isCancelled());
+        assertEquals(1, runningOutcome.rejected.get());
+        assertFalse(done.isCancelled());
+        assertEquals(1, doneOutcome.resolved.get());
+    }
+
+    @Test
+    public void child_keepsThePriorityOfItsParent() throws Exception {
+        MarkerJob parent = new MarkerJob("batch", null, 0, MarkerExecutor.PRIORITY_LOW);
+
+        assertEquals(MarkerExecutor.PRIORITY_LOW, parent.child().getPriority());
+        assertEquals(MarkerExecutor.PRIORITY_NORMAL, new MarkerJob().getPriority());
+    }
+
+    @Test
+    public void registry_cancelsByIdAndTag() throws Exception {
+        MarkerJobs jobs = new MarkerJobs();
+        MarkerJob first = new MarkerJob("1", "screen", 0);
+        MarkerJob second = new MarkerJob("2", "screen", 0);
+        MarkerJob other = new MarkerJob("3", "other", 0);
+        Outcome firstOutcome = new Outcome(first);
+        new Outcome(second);
+        new Outcome(other);
+        jobs.start(first);
+        jobs.start(second);
+        jobs.start(other);
+
+        firstOutcome.resolve("done");
+        assertFalse(jobs.cancel("1"));
+        assertEquals(1, jobs.cancelAll("screen"));
+        assertTrue(second.isCancelled());
+        assertFalse(other.isCancelled());
+        assertEquals(1, jobs.getCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void registry_rejectsIdsInFlight() throws Exception {
+        MarkerJobs jobs = new MarkerJobs();
+        jobs.start(new MarkerJob("1", null, 0));
+        jobs.start(new MarkerJob("1", null, 0));
+    }
+}
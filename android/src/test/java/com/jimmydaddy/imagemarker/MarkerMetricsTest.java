@@ -0,0 +1,78 @@
+package com.jimmydaddy.imagemarker;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit tests of the per-stage job metrics
+ */
+public class MarkerMetricsTest {
+    private static final long MS = 1000000;
+
+    private static JobMetrics job(String stage, long millis) {
+        JobMetrics job = new JobMetrics();
+        job.record(stage, JobMetrics.now() - millis * MS, 1024);
+        job.finish();
+        return job;
+    }
+
+    @Test
+    public void record_addsUpTheStagesOfAJob() throws Exception {
+        JobMetrics job = new JobMetrics();
+        job.record(JobMetrics.STAGE_FETCH, JobMetrics.now() - 5 * MS, 100);
+        job.record(JobMetrics.STAGE_FETCH, JobMetrics.now() - 3 * MS, 50);
+
+        assertTrue(job.hasStage(JobMetrics.STAGE_FETCH));
+        assertFalse(job.hasStage(JobMetrics.STAGE_ENCODE));
+        assertTrue(job.getNanos(JobMetrics.STAGE_FETCH) >= 8 * MS);
+        assertEquals(150, job.getBytes(JobMetrics.STAGE_FETCH));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void record_rejectsUnknownStages() throws Exception {
+        new JobMetrics().record("upload", JobMetrics.now(), 0);
+    }
+
+    @Test
+    public void percentiles_overTheRecordedJobs() throws Exception {
+        MarkerMetrics metrics = new MarkerMetrics(MarkerMetrics.DEFAULT_WINDOW);
+        for (int i = 1; i <= 100; i++) {
+            metrics.record(job(JobMetrics.STAGE_ENCODE, i), false);
+        }
+
+        assertEquals(100, metrics.getCount(JobMetrics.STAGE_ENCODE));
+        assertEquals(0, metrics.getCount(JobMetrics.STAGE_FETCH));
+        assertEquals(50, metrics.getPercentile(JobMetrics.STAGE_ENCODE, 50) / MS);
+        assertEquals(95, metrics.getPercentile(JobMetrics.STAGE_ENCODE, 95) / MS);
+        assertEquals(99, metrics.getPercentile(JobMetrics.STAGE_ENCODE, 99) / MS);
+    }
+
+    @Test
+    public void percentiles_onlyKeepTheWindow() throws Exception {
+        MarkerMetrics metrics = new MarkerMetrics(10);
+        for (int i = 0; i < 10; i++) {
+            metrics.record(job(JobMetrics.STAGE_WRITE, 200), false);
+        }
+        for (int i = 0; i < 10; i++) {
+            metrics.record(job(JobMetrics.STAGE_WRITE, 1), false);
+        }
+
+        assertEquals(20, metrics.getCount(JobMetrics.STAGE_WRITE));
+        assertTrue(metrics.getPercentile(JobMetrics.STAGE_WRITE, 99) < 100 * MS);
+    }
+
+    @Test
+    public void failures_areCountedWithoutTimes() throws Exception {
+        MarkerMetrics metrics = new MarkerMetrics(MarkerMetrics.DEFAULT_WINDOW);
+        metrics.record(job(JobMetrics.STAGE_FETCH, 10), true);
+
+        assertEquals(1, metrics.getFailures());
+        assertEquals(0, metrics.getCount(JobMetrics.STAGE_FETCH));
+
+        metrics.clear();
+        assertEquals(0, metrics.getFailures());
+    }
+}
@@ -0,0 +1,218 @@
+package com.jimmydaddy.imagemarker;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit tests of the priority lanes of the worker pool
+ */
+public class MarkerQueueTest {
+    private static class Job extends MarkerExecutor.Task {
+        private final String priority;
+        private final Runnable body;
+
+        Job(String priority, Runnable body) {
+            this.priority = priority;
+            this.body = body;
+        }
+
+        Job(String priority) {
+            this(priority, null);
+        }
+
+        @Override
+        public void run() {
+            if (null != body) {
+                body.run();
+            }
+        }
+
+        @Override
+        public void onRejected(RejectedExecutionException e) {
+        }
+
+        @Override
+        public String getPriority() {
+            return priority;
+        }
+    }
+
+    @Test
+    public void poll_takesTheHighestLaneFirstAndFifoWithinALane() throws Exception {
+        MarkerQueue queue = new MarkerQueue(8, 60000);
+        Job low = new Job(MarkerExecutor.PRIORITY_LOW);
+        Job first = new Job(MarkerExecutor.PRIORITY_NORMAL);
+        Job second = new Job(MarkerExecutor.PRIORITY_NORMAL);
+        Job high = new Job(MarkerExecutor.PRIORITY_HIGH);
+        queue.insert(low);
+        queue.insert(first);
+        queue.insert(second);
+        queue.insert(high);
+
+        assertEquals(1, queue.size(MarkerExecutor.PRIORITY_HIGH));
+        assertSame(high, queue.poll());
+        assertSame(first, queue.poll());
+        assertSame(second, queue.poll());
+        assertSame(low, queue.poll());
+        assertEquals(null, queue.poll());
+    }
+
+    @Test
+    public void poll_promotesJobsThatWaitedLongEnough() throws Exception {
+        MarkerQueue queue = new MarkerQueue(8, 1);
+        Job low = new Job(MarkerExecutor.PRIORITY_LOW);
+        queue.insert(low);
+        Thread.sleep(10);
+        queue.insert(new Job(MarkerExecutor.PRIORITY_HIGH));
+
+        assertSame(low, queue.poll());
+    }
+
+    @Test
+    public void offer_refusesHighPriorityJobsWithoutAnIdleWorker() throws Exception {
+        MarkerQueue queue = new MarkerQueue(8);
+
+        assertFalse(queue.offer(new Job(MarkerExecutor.PRIORITY_HIGH)));
+        assertTrue(queue.offer(new Job(MarkerExecutor.PRIORITY_LOW)));
+        assertTrue(queue.insert(new Job(MarkerExecutor.PRIORITY_HIGH)));
+        assertEquals(2, queue.size());
+    }
+
+    @Test
+    public void insert_isBoundedOverAllLanes() throws Exception {
+        MarkerQueue queue = new MarkerQueue(2);
+
+        assertTrue(queue.insert(new Job(MarkerExecutor.PRIORITY_LOW)));
+        assertTrue(queue.insert(new Job(MarkerExecutor.PRIORITY_NORMAL)));
+        assertFalse(queue.insert(new Job(MarkerExecutor.PRIORITY_HIGH)));
+        assertEquals(0, queue.remainingCapacity());
+    }
+
+    @Test
+    public void execute_runsHighPriorityJobsWhileTheWorkersAreBusy() throws Exception {
+        MarkerExecutor executor = new MarkerExecutor(1, 8, MarkerExecutor.POLICY_ABORT);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch preview = new CountDownLatch(1);
+        try {
+            executor.execute(new Job(MarkerExecutor.PRIORITY_LOW, new Runnable() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+            }));
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            executor.execute(new Job(MarkerExecutor.PRIORITY_LOW));
+            executor.execute(new Job(MarkerExecutor.PRIORITY_HIGH, new Runnable() {
+                @Override
+                public void run() {
+                    preview.countDown();
+                }
+            }));
+
+            // the only worker is still blocked
+            assertTrue(preview.await(5, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void execute_keepsTheSpareWorkerForHighPriorityJobs() throws Exception {
+        MarkerExecutor executor = new MarkerExecutor(1, 2, MarkerExecutor.POLICY_ABORT);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch preview = new CountDownLatch(1);
+        final Thread[] ranOn = new Thread[1];
+        try {
+            executor.execute(new Job(MarkerExecutor.PRIORITY_LOW, new Runnable() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+            }));
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            // fills the queue, the last one is refused instead of taking the spare worker
+            for (int i = 0; i < 3; i++) {
+                executor.execute(new Job(MarkerExecutor.PRIORITY_LOW, new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            release.await();
+                        } catch (InterruptedException ignored) {
+                        }
+                    }
+                }));
+            }
+            executor.execute(new Job(MarkerExecutor.PRIORITY_HIGH, new Runnable() {
+                @Override
+                public void run() {
+                    ranOn[0] = Thread.currentThread();
+                    preview.countDown();
+                }
+            }));
+
+            assertTrue(preview.await(5, TimeUnit.SECONDS));
+            assertTrue(ranOn[0].getName().startsWith("ImageMarker-spare-"));
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void execute_runsRefusedJobsOnTheOverflowThread() throws Exception {
+        MarkerExecutor executor = new MarkerExecutor(1, 1, MarkerExecutor.POLICY_OVERFLOW);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch overflow = new CountDownLatch(1);
+        final Thread[] ranOn = new Thread[1];
+        try {
+            // the worker and the queue
+            executor.execute(new Job(MarkerExecutor.PRIORITY_NORMAL, new Runnable() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+            }));
+            executor.execute(new Job(MarkerExecutor.PRIORITY_NORMAL));
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            executor.execute(new Job(MarkerExecutor.PRIORITY_NORMAL, new Runnable() {
+                @Override
+                public void run() {
+                    ranOn[0] = Thread.currentThread();
+                    overflow.countDown();
+                }
+            }));
+
+            assertTrue(overflow.await(5, TimeUnit.SECONDS));
+            assertNotSame(Thread.currentThread(), ranOn[0]);
+            assertTrue(ranOn[0].getName().startsWith("ImageMarker-overflow-"));
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package com.jimmydaddy.imagemarker;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * End-to-end throughput and latency of the marking pipeline on a plain JVM, on synthetic images:
+ *
+ * single: a 12 MP JPEG marked with text through the JPEG fast path, one job at a time
+ * batch: 500 3 MP JPEGs marked like markBatch does, one job per core
+ * large: a 48 MP image composited and streamed band by band like the tiled path, and through the fast path
+ *
+ * Each job writes its result to a file like the module does. Reports ops/s, p50/p95/p99 of the jobs and
+ * their stages, the allocation rate and the peak heap. Run with ./gradlew benchmarkScenarios, or pass the
+ * names of the scenarios to run as arguments
+ */
+public class MarkerScenarios {
+    private static final int MP_12_WIDTH = 4032;
+    private static final int MP_12_HEIGHT = 3024;
+    private static final int MP_3_WIDTH = 2048;
+    private static final int MP_3_HEIGHT = 1536;
+    private static final int MP_48_WIDTH = 8000;
+    private static final int MP_48_HEIGHT = 6000;
+
+    private interface Job {
+        void run(int index, JobMetrics metrics) throws Exception;
+    }
+
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    /**
+     * bytes allocated by the current thread so far, -1 when the JVM can't tell
+     */
+    private static long allocatedBytes() {
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            pool.resetPeakUsage();
+        }
+    }
+
+    private static long peakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    /**
+     * run count jobs on the given number of threads, after warmup jobs that aren't measured
+     */
+    private static void measure(String name, int warmup, int count, int parallelism, final Job job) throws Exception {
+        for (int i = 0; i < warmup; i++) {
+            job.run(i, new JobMetrics());
+        }
+        System.gc();
+        resetPeakHeap();
+
+        final MarkerMetrics metrics = new MarkerMetrics(count);
+        final AtomicLong allocated = new AtomicLong();
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        List<Future<?>> futures = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            final int index = i;
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    JobMetrics jobMetrics = new JobMetrics();
+                    long before = allocatedBytes();
+                    boolean failed = true;
+                    try {
+                        job.run(index, jobMetrics);
+                        failed = false;
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    } finally {
+                        jobMetrics.finish();
+                        allocated.addAndGet(allocatedBytes() - before);
+                        metrics.record(jobMetrics, failed);
+                    }
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        executor.shutdown();
+
+        System.out.println(String.format(Locale.US, "%s: %d jobs on %d threads, %.2f ops/s, %d failed, alloc %.1f MB/s, peak heap %.1f MB",
+                name, count, parallelism, count / seconds, metrics.getFailures(),
+                allocated.get() / seconds / (1024 * 1024), peakHeap() / (1024.0 * 1024)));
+        System.out.println(String.format(Locale.US, "  %-10s p50 %8.2f ms  p95 %8.2f ms  p99 %8.2f ms", "total",
+                JobMetrics.toMillis(metrics.getTotalPercentile(50)),
+                JobMetrics.toMillis(metrics.getTotalPercentile(95)),
+                JobMetrics.toMillis(metrics.getTotalPercentile(99))));
+        for (String stage : JobMetrics.STAGES) {
+            if (metrics.getCount(stage) == 0) {
+                continue;
+            }
+            System.out.println(String.format(Locale.US, "  %-10s p50 %8.2f ms  p95 %8.2f ms  p99 %8.2f ms", stage,
+                    JobMetrics.toMillis(metrics.getPercentile(stage, 50)),
+                    JobMetrics.toMillis(metrics.getPercentile(stage, 95)),
+                    JobMetrics.toMillis(metrics.getPercentile(stage, 99))));
+        }
+    }
+
+    /**
+     * the JPEG fast path of markText: parse, re-encode the blocks under the label, write the file
+     */
+    private static void markJpeg(byte[] source, JpegTranscoder.Overlay label, File dir, JobMetrics metrics) throws Exception {
+        long start = JobMetrics.now();
+        JpegTranscoder transcoder = new JpegTranscoder(new ByteArrayInputStream(source));
+        metrics.record(JobMetrics.STAGE_DECODE, start, 0);
+        if (!transcoder.isSupported()) {
+            throw new IllegalStateException(transcoder.getUnsupportedReason());
+        }
+        OutputFile output = OutputFile.open(new File(dir, UUID.randomUUID() + "imagemarker.jpg").getPath());
+        try {
+            start = JobMetrics.now();
+            transcoder.transcode(output.getStream(), label);
+            metrics.record(JobMetrics.STAGE_ENCODE, start, 0);
+            start = JobMetrics.now();
+            new File((String) output.commit()).delete();
+            metrics.record(JobMetrics.STAGE_WRITE, start, 0);
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * the tiled path: every band is composited with the label (source over) and streamed to the encoder
+     */
+    private static void markTiles(int width, int height, JpegTranscoder.Overlay label, File dir, JobMetrics metrics) throws Exception {
+        OutputFile output = OutputFile.open(new File(dir, UUID.randomUUID() + "imagemarker.jpg").getPath());
+        try {
+            long start = JobMetrics.now();
+            int[] band = new int[width * BenchmarkImages.BAND_ROWS];
+            StripEncoder encoder = new JpegStripEncoder(output.getStream(), 90);
+            encoder.begin(width, height);
+            for (int top = 0; top < height; top += BenchmarkImages.BAND_ROWS) {
+                int rows = Math.min(BenchmarkImages.BAND_ROWS, height - top);
+                BenchmarkImages.fillRows(band, width, top, rows);
+                for (int y = Math.max(top, label.top); y < Math.min(top + rows, label.top + label.height); y++) {
+                    for (int x = Math.max(0, label.left); x < Math.min(width, label.left + label.width); x++) {
+                        int color = label.colorAt(x, y);
+                        int alpha = color >>> 24;
+                        int index = (y - top) * width + x;
+                        int dst = band[index];
+                        int r = (((color >> 16) & 0xFF) * alpha + ((dst >> 16) & 0xFF) * (255 - alpha)) / 255;
+                        int g = (((color >> 8) & 0xFF) * alpha + ((dst >> 8) & 0xFF) * (255 - alpha)) / 255;
+                        int b = ((color & 0xFF) * alpha + (dst & 0xFF) * (255 - alpha)) / 255;
+                        band[index] = 0xFF000000 | (r << 16) | (g << 8) | b;
+                    }
+                }
+                encoder.writeRows(band, rows);
+            }
+            encoder.finish();
+            metrics.record(JobMetrics.STAGE_ENCODE, start, 0);
+            start = JobMetrics.now();
+            new File((String) output.commit()).delete();
+            metrics.record(JobMetrics.STAGE_WRITE, start, 0);
+        } finally {
+            output.close();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> scenarios = Arrays.asList(args.length > 0 ? args : new String[]{"single", "batch", "large"});
+        final File dir = new File(System.getProperty("java.io.tmpdir"), "imagemarker-benchmark");
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IllegalStateException("Can't create " + dir);
+        }
+        int cores = Runtime.getRuntime().availableProcessors();
+
+        if (scenarios.contains("single")) {
+            final byte[] source = BenchmarkImages.jpeg(MP_12_WIDTH, MP_12_HEIGHT, 90);
+            final JpegTranscoder.Overlay label = BenchmarkImages.label("© react-native-image-marker", 96, 40, MP_12_HEIGHT - 200);
+            measure("single 12MP", 5, 30, 1, new Job() {
+                @Override
+                public void run(int index, JobMetrics metrics) throws Exception {
+                    markJpeg(source, label, dir, metrics);
+                }
+            });
+        }
+        if (scenarios.contains("batch")) {
+            final byte[] source = BenchmarkImages.jpeg(MP_3_WIDTH, MP_3_HEIGHT, 90);
+            final JpegTranscoder.Overlay[] labels = new JpegTranscoder.Overlay[16];
+            for (int i = 0; i < labels.length; i++) {
+                labels[i] = BenchmarkImages.label("IMG_" + (1000 + i), 64, 20 + i * 37, MP_3_HEIGHT - 120);
+            }
+            measure("batch 500x3MP", 20, 500, cores, new Job() {
+                @Override
+                public void run(int index, JobMetrics metrics) throws Exception {
+                    markJpeg(source, labels[index % labels.length], dir, metrics);
+                }
+            });
+        }
+        if (scenarios.contains("large")) {
+            final JpegTranscoder.Overlay label = BenchmarkImages.label("© react-native-image-marker", 192, 80, MP_48_HEIGHT - 400);
+            measure("large 48MP tiles", 1, 3, 1, new Job() {
+                @Override
+                public void run(int index, JobMetrics metrics) throws Exception {
+                    markTiles(MP_48_WIDTH, MP_48_HEIGHT, label, dir, metrics);
+                }
+            });
+            final byte[] source = BenchmarkImages.jpeg(MP_48_WIDTH, MP_48_HEIGHT, 90);
+            measure("large 48MP jpeg", 1, 3, 1, new Job() {
+                @Override
+                public void run(int index, JobMetrics metrics) throws Exception {
+                    markJpeg(source, label, dir, metrics);
+                }
+            });
+        }
+    }
+}
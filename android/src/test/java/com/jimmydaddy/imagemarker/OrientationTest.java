@@ -0,0 +1,54 @@
+package com.jimmydaddy.imagemarker;
+
+import android.graphics.BitmapFactory;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests of the EXIF orientation of local files, run with Robolectric on an SDK whose
+ * ExifInterface is plain Java. rotated_90.jpg is stored 40x30 with an orientation of 90 degrees
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 25, manifest = Config.NONE)
+public class OrientationTest {
+    private static File fixture(String name) throws Exception {
+        File file = File.createTempFile("imagemarker", ".jpg");
+        file.deleteOnExit();
+        InputStream in = OrientationTest.class.getClassLoader().getResourceAsStream(name);
+        OutputStream out = new FileOutputStream(file);
+        try {
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
+        return file;
+    }
+
+    @Test
+    public void decodeOrientedBounds_swapsTheSidesOfARotatedPhoto() throws Exception {
+        String path = fixture("rotated_90.jpg").getPath();
+
+        assertEquals(90, Utils.readDegree(path));
+        BitmapFactory.Options raw = Utils.decodeBounds(path);
+        assertEquals(40, raw.outWidth);
+        assertEquals(30, raw.outHeight);
+        BitmapFactory.Options oriented = Utils.decodeOrientedBounds(path);
+        assertEquals(30, oriented.outWidth);
+        assertEquals(40, oriented.outHeight);
+    }
+}
@@ -0,0 +1,81 @@
+package com.jimmydaddy.imagemarker;
+
+import org.junit.Test;
+
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Base64;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Local unit tests of the in-memory results
+ */
+public class OutputBufferTest {
+    private static byte[] data(int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (i * 37 + (i >> 8));
+        }
+        return data;
+    }
+
+    @Test
+    public void toByteArray_joinsTheChunks() throws Exception {
+        byte[] data = data(200 * 1024 + 5);
+        OutputBuffer output = new OutputBuffer();
+        try {
+            OutputStream out = output.getStream();
+            out.write(data, 0, 10);
+            for (int i = 10; i < 70 * 1024; i++) {
+                out.write(data[i]);
+            }
+            out.write(data, 70 * 1024, data.length - 70 * 1024);
+            assertEquals(data.length, output.size());
+            assertArrayEquals(data, output.toByteArray());
+        } finally {
+            output.close();
+        }
+    }
+
+    @Test
+    public void commit_encodesBase64AcrossChunks() throws Exception {
+        for (int size : new int[]{0, 1, 2, 3, 64 * 1024 - 1, 64 * 1024 + 1, 64 * 1024 * 3 + 2}) {
+            byte[] data = data(size);
+            OutputBuffer output = new OutputBuffer();
+            try {
+                output.getStream().write(data);
+                assertEquals(Base64.getEncoder().encodeToString(data), output.commit());
+            } finally {
+                output.close();
+            }
+        }
+    }
+
+    @Test
+    public void close_returnsTheChunksForTheNextOutput() throws Exception {
+        OutputBuffer first = new OutputBuffer();
+        first.getStream().write(data(1000));
+        first.close();
+        first.close();
+        assertEquals(0, first.size());
+
+        byte[] data = data(10);
+        OutputBuffer second = new OutputBuffer();
+        try {
+            second.getStream().write(data);
+            assertArrayEquals(data, Arrays.copyOf(second.toByteArray(), 10));
+            assertEquals(10, second.size());
+        } finally {
+            second.close();
+        }
+    }
+
+    @Test(expected = java.io.IOException.class)
+    public void write_afterCommitFails() throws Exception {
+        OutputBuffer output = new OutputBuffer();
+        output.commit();
+        output.getStream().write(1);
+    }
+}
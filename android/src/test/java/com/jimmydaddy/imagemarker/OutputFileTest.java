@@ -0,0 +1,84 @@
+package com.jimmydaddy.imagemarker;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit tests of the atomic result files
+ */
+public class OutputFileTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] data(int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (i * 31);
+        }
+        return data;
+    }
+
+    @Test
+    public void commit_movesTheDataInPlace() throws Exception {
+        File dest = new File(folder.getRoot(), "a.jpg");
+        byte[] data = data(600 * 1024);
+        OutputFile output = OutputFile.open(dest.getPath());
+        try {
+            OutputStream out = output.getStream();
+            out.write(data, 0, 10);
+            for (int i = 10; i < 1000; i++) {
+                out.write(data[i]);
+            }
+            // bigger than the buffer
+            out.write(data, 1000, data.length - 1000);
+            assertFalse(dest.exists());
+            assertEquals(dest.getPath(), output.commit());
+        } finally {
+            output.close();
+        }
+        assertArrayEquals(data, Files.readAllBytes(dest.toPath()));
+        assertEquals(Arrays.asList("a.jpg"), Arrays.asList(folder.getRoot().list()));
+    }
+
+    @Test
+    public void close_withoutCommitKeepsThePreviousFile() throws Exception {
+        File dest = new File(folder.getRoot(), "b.png");
+        Files.write(dest.toPath(), new byte[]{1, 2, 3});
+        OutputFile output = OutputFile.open(dest.getPath());
+        output.getStream().write(data(1024));
+        output.close();
+        output.close();
+        assertArrayEquals(new byte[]{1, 2, 3}, Files.readAllBytes(dest.toPath()));
+        assertEquals(1, folder.getRoot().list().length);
+    }
+
+    @Test
+    public void commit_replacesAnExistingFile() throws Exception {
+        File dest = new File(folder.getRoot(), "c.webp");
+        Files.write(dest.toPath(), new byte[]{1, 2, 3});
+        OutputFile.setSync(true);
+        OutputFile output = OutputFile.open(dest.getPath());
+        try {
+            output.getStream().write(new byte[]{4, 5});
+            // encoders may close the stream they were given
+            output.getStream().close();
+            output.commit();
+        } finally {
+            output.close();
+            OutputFile.setSync(false);
+        }
+        assertArrayEquals(new byte[]{4, 5}, Files.readAllBytes(dest.toPath()));
+        assertTrue(dest.exists());
+    }
+}
@@ -0,0 +1,44 @@
+package com.jimmydaddy.imagemarker;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Local unit tests of the preview size and the remapping of coordinates
+ */
+public class PreviewTest {
+    @Test
+    public void fit_bringsTheLongerSideWithinMaxSize() throws Exception {
+        assertEquals(0.5F, Preview.fit(4000, 3000, 2000), 0.0001F);
+        assertEquals(0.5F, Preview.fit(3000, 4000, 2000), 0.0001F);
+        assertEquals(1F, Preview.fit(1280, 960, 2000), 0.0001F);
+    }
+
+    @Test
+    public void fit_takesTheRequestedScaleIntoAccount() throws Exception {
+        Preview preview = new Preview(1000, false);
+
+        // the full result is 2000 wide, the preview half of it
+        assertEquals(0.25F, preview.fit(0.5F, 4000, 3000), 0.0001F);
+        assertEquals(0.5F, preview.getRatio(), 0.0001F);
+
+        assertEquals(1F, preview.fit(null, 800, 600), 0.0001F);
+        assertEquals(1F, preview.getRatio(), 0.0001F);
+    }
+
+    @Test
+    public void remap_scalesCoordinatesAndMarkerScale() throws Exception {
+        assertEquals(Integer.valueOf(50), Preview.remap(200, 0.25F));
+        assertNull(Preview.remap((Integer) null, 0.25F));
+        assertEquals(0.5F, Preview.remap(2F, 0.25F), 0.0001F);
+        assertEquals(0.25F, Preview.remap((Float) null, 0.25F), 0.0001F);
+        assertNull(Preview.remap((Float) null, 1F));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_rejectsAnEmptySize() throws Exception {
+        new Preview(0, false);
+    }
+}
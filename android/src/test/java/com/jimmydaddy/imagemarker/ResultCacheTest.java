@@ -0,0 +1,120 @@
+package com.jimmydaddy.imagemarker;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit tests of the on-disk result cache
+ */
+public class ResultCacheTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String result(String name, int size) throws Exception {
+        File file = new File(folder.getRoot(), name);
+        Files.write(file.toPath(), new byte[size]);
+        return file.getPath();
+    }
+
+    private ResultCache cache(int maxSize) {
+        ResultCache cache = new ResultCache(new File(folder.getRoot(), "index"));
+        cache.setMaxSize(maxSize);
+        return cache;
+    }
+
+    @Test
+    public void key_dependsOnEveryPart() throws Exception {
+        assertEquals(ResultCache.key("a", 1, null), ResultCache.key("a", 1, null));
+        assertNotEquals(ResultCache.key("a", 1, null), ResultCache.key("a", 2, null));
+        assertNotEquals(ResultCache.key("a|b", "c"), ResultCache.key("a", "b|c"));
+    }
+
+    @Test
+    public void get_returnsThePutResult() throws Exception {
+        ResultCache cache = cache(100);
+        assertNull(cache.get("k"));
+        String path = result("a.jpg", 1024);
+        cache.put("k", path);
+        assertEquals(path, cache.get("k"));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void put_evictsAndDeletesTheLeastRecentlyUsed() throws Exception {
+        ResultCache cache = cache(3);
+        String a = result("a.jpg", 1024);
+        String b = result("b.jpg", 1024);
+        String c = result("c.jpg", 1024);
+        cache.put("a", a);
+        cache.put("b", b);
+        cache.get("a");
+        cache.put("c", c);
+        cache.put("d", result("d.jpg", 1024));
+        assertFalse(new File(b).exists());
+        assertNull(cache.get("b"));
+        assertEquals(a, cache.get("a"));
+        assertEquals(c, cache.get("c"));
+    }
+
+    @Test
+    public void put_sameKeyKeepsTheFirstResultAndItsFile() throws Exception {
+        ResultCache cache = cache(100);
+        String first = result("a.jpg", 1024);
+        String second = result("b.jpg", 1024);
+        cache.put("k", first);
+        cache.put("k", second);
+        assertTrue(new File(first).exists());
+        assertTrue(new File(second).exists());
+        assertEquals(first, cache.get("k"));
+
+        // replaced once the first one is gone
+        assertTrue(new File(first).delete());
+        cache.put("k", second);
+        assertEquals(second, cache.get("k"));
+    }
+
+    @Test
+    public void get_dropsResultsChangedSince() throws Exception {
+        ResultCache cache = cache(100);
+        String path = result("a.png", 1024);
+        cache.put("k", path);
+        Files.write(new File(path).toPath(), new byte[10]);
+        assertNull(cache.get("k"));
+        assertTrue(new File(path).exists());
+    }
+
+    @Test
+    public void index_survivesARestart() throws Exception {
+        ResultCache cache = cache(2);
+        String a = result("a.jpg", 1024);
+        String b = result("b.jpg", 1024);
+        cache.put("a", a);
+        cache.put("b", b);
+        cache.flush();
+
+        ResultCache restarted = cache(2);
+        assertEquals(a, restarted.get("a"));
+        restarted.put("c", result("c.jpg", 1024));
+        // b was the least recently used
+        assertFalse(new File(b).exists());
+        assertEquals(a, restarted.get("a"));
+    }
+
+    @Test
+    public void disabledCache_missesEverything() throws Exception {
+        ResultCache cache = cache(0);
+        cache.put("k", result("a.jpg", 1024));
+        assertNull(cache.get("k"));
+    }
+}
@@ -0,0 +1,73 @@
+package com.jimmydaddy.imagemarker;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit tests of the output format and file name rules of {@link SaveOptions}
+ */
+public class SaveOptionsTest {
+    @Test
+    public void resolveFormat_followsTheAlphaChannelByDefault() throws Exception {
+        SaveOptions save = new SaveOptions(null, 80, -1, null);
+        assertEquals(SaveOptions.FORMAT_PNG, save.resolveFormat(true));
+        assertEquals(SaveOptions.FORMAT_JPEG, save.resolveFormat(false));
+    }
+
+    @Test
+    public void resolveFormat_prefersTheOptionThenTheFileName() throws Exception {
+        assertEquals(SaveOptions.FORMAT_WEBP, new SaveOptions("webp", 80, -1, "a.png").resolveFormat(true));
+        assertEquals(SaveOptions.FORMAT_PNG, new SaveOptions(null, 80, -1, "a.png").resolveFormat(false));
+        assertEquals(SaveOptions.FORMAT_JPEG, new SaveOptions("jpg", 80, -1, null).resolveFormat(true));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownFormat_isRejected() throws Exception {
+        new SaveOptions("gif", 80, -1, null);
+    }
+
+    @Test
+    public void getPath_matchesTheExtensionToTheFormat() throws Exception {
+        assertEquals("/cache/a.png", new SaveOptions(null, 80, -1, "a").getPath("/cache", SaveOptions.FORMAT_PNG));
+        assertEquals("/cache/a.jpeg", new SaveOptions(null, 80, -1, "a.jpeg").getPath("/cache", SaveOptions.FORMAT_JPEG));
+        assertEquals("/cache/a.webp", new SaveOptions(null, 80, -1, "a.jpg").getPath("/cache", SaveOptions.FORMAT_WEBP_LOSSLESS));
+        assertEquals("/cache/a.b.jpg", new SaveOptions(null, 80, -1, "a.b").getPath("/cache", SaveOptions.FORMAT_JPEG));
+        String random = new SaveOptions(null, 80, -1, null).getPath("/cache", SaveOptions.FORMAT_WEBP);
+        assertTrue(random, random.startsWith("/cache/") && random.endsWith("imagemarker.webp"));
+    }
+
+    @Test
+    public void stripFormat_replacesWebp() throws Exception {
+        assertEquals(SaveOptions.FORMAT_JPEG, SaveOptions.getStripFormat(SaveOptions.FORMAT_WEBP));
+        assertEquals(SaveOptions.FORMAT_PNG, SaveOptions.getStripFormat(SaveOptions.FORMAT_WEBP_LOSSLESS));
+        assertEquals(SaveOptions.FORMAT_JPEG, SaveOptions.getStripFormat(SaveOptions.FORMAT_JPEG));
+    }
+
+    @Test
+    public void webp_usesTheExplicitFormatsFromAndroid11() throws Exception {
+        assertEquals("WEBP_LOSSY", SaveOptions.getCompressFormatName(SaveOptions.FORMAT_WEBP, 30));
+        assertEquals(100, SaveOptions.getCompressQuality(SaveOptions.FORMAT_WEBP, 100, 30));
+        assertEquals("WEBP_LOSSLESS", SaveOptions.getCompressFormatName(SaveOptions.FORMAT_WEBP_LOSSLESS, 30));
+        assertEquals(100, SaveOptions.getCompressQuality(SaveOptions.FORMAT_WEBP_LOSSLESS, 80, 30));
+    }
+
+    @Test
+    public void webp_keepsLossyBelowQuality100OnAndroid10() throws Exception {
+        assertEquals("WEBP", SaveOptions.getCompressFormatName(SaveOptions.FORMAT_WEBP, 29));
+        assertEquals(99, SaveOptions.getCompressQuality(SaveOptions.FORMAT_WEBP, 100, 29));
+        assertEquals(80, SaveOptions.getCompressQuality(SaveOptions.FORMAT_WEBP, 80, 29));
+        assertEquals("WEBP", SaveOptions.getCompressFormatName(SaveOptions.FORMAT_WEBP_LOSSLESS, 29));
+        assertEquals(100, SaveOptions.getCompressQuality(SaveOptions.FORMAT_WEBP_LOSSLESS, 80, 29));
+    }
+
+    @Test
+    public void webpLossless_fallsBackToPngBeforeAndroid10() throws Exception {
+        assertEquals(SaveOptions.FORMAT_PNG, SaveOptions.getSupportedFormat(SaveOptions.FORMAT_WEBP_LOSSLESS, 28));
+        assertEquals(SaveOptions.FORMAT_WEBP_LOSSLESS, SaveOptions.getSupportedFormat(SaveOptions.FORMAT_WEBP_LOSSLESS, 29));
+        assertEquals("PNG", SaveOptions.getCompressFormatName(SaveOptions.FORMAT_WEBP_LOSSLESS, 28));
+        assertEquals("WEBP", SaveOptions.getCompressFormatName(SaveOptions.FORMAT_WEBP, 28));
+        assertEquals(100, SaveOptions.getCompressQuality(SaveOptions.FORMAT_WEBP, 100, 28));
+    }
+}
@@ -0,0 +1,119 @@
+package com.jimmydaddy.imagemarker;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit tests of the streaming encoders, their output is read back with ImageIO
+ */
+public class StripEncoderTest {
+    // odd sizes so the last MCU row and column are partial
+    private static final int WIDTH = 77;
+    private static final int HEIGHT = 53;
+
+    private static int[] gradient(boolean alpha) {
+        int[] pixels = new int[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int a = alpha ? (x * 255 / WIDTH) : 255;
+                int r = x * 255 / WIDTH;
+                int g = y * 255 / HEIGHT;
+                int b = (x + y) * 255 / (WIDTH + HEIGHT);
+                pixels[y * WIDTH + x] = (a << 24) | (r << 16) | (g << 8) | b;
+            }
+        }
+        return pixels;
+    }
+
+    /**
+     * feed the pixels in bands of various heights
+     */
+    private static byte[] encode(StripEncoder encoder, ByteArrayOutputStream out, int[] pixels) throws Exception {
+        encoder.begin(WIDTH, HEIGHT);
+        int y = 0;
+        int band = 5;
+        while (y < HEIGHT) {
+            int rows = Math.min(band, HEIGHT - y);
+            int[] strip = new int[rows * WIDTH];
+            System.arraycopy(pixels, y * WIDTH, strip, 0, strip.length);
+            encoder.writeRows(strip, rows);
+            y += rows;
+            band += 7;
+        }
+        encoder.finish();
+        return out.toByteArray();
+    }
+
+    @Test
+    public void png_roundTripsExactly() throws Exception {
+        int[] pixels = gradient(true);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] png = encode(new PngStripEncoder(out, true), out, pixels);
+
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(png));
+        assertNotNull(image);
+        assertEquals(WIDTH, image.getWidth());
+        assertEquals(HEIGHT, image.getHeight());
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                assertEquals(pixels[y * WIDTH + x], image.getRGB(x, y));
+            }
+        }
+    }
+
+    @Test
+    public void png_withoutAlphaWritesOpaqueRgb() throws Exception {
+        int[] pixels = gradient(false);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] png = encode(new PngStripEncoder(out, false), out, pixels);
+
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(png));
+        assertNotNull(image);
+        assertEquals(pixels[WIDTH * HEIGHT - 1], image.getRGB(WIDTH - 1, HEIGHT - 1));
+        assertEquals(pixels[WIDTH / 2], image.getRGB(WIDTH / 2, 0));
+    }
+
+    @Test
+    public void jpeg_decodesCloseToTheSource() throws Exception {
+        int[] pixels = gradient(false);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] jpeg = encode(new JpegStripEncoder(out, 90), out, pixels);
+
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(jpeg));
+        assertNotNull(image);
+        assertEquals(WIDTH, image.getWidth());
+        assertEquals(HEIGHT, image.getHeight());
+        double error = 0;
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int expected = pixels[y * WIDTH + x];
+                int actual = image.getRGB(x, y);
+                for (int shift = 0; shift <= 16; shift += 8) {
+                    int diff = ((expected >> shift) & 0xFF) - ((actual >> shift) & 0xFF);
+                    error += diff * diff;
+                }
+            }
+        }
+        double psnr = 10 * Math.log10(255.0 * 255.0 / (error / (WIDTH * HEIGHT * 3)));
+        assertTrue("psnr " + psnr, psnr > 35);
+    }
+
+    @Test
+    public void jpeg_lowerQualityIsSmaller() throws Exception {
+        int[] pixels = gradient(false);
+        ByteArrayOutputStream high = new ByteArrayOutputStream();
+        ByteArrayOutputStream low = new ByteArrayOutputStream();
+        int highSize = encode(new JpegStripEncoder(high, 95), high, pixels).length;
+        int lowSize = encode(new JpegStripEncoder(low, 30), low, pixels).length;
+        assertTrue(lowSize < highSize);
+    }
+}
@@ -0,0 +1,56 @@
+package com.jimmydaddy.imagemarker;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Typeface;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Tests of the shared paints and text runs of markWithObjects, run with Robolectric for android.graphics
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 23, manifest = Config.NONE)
+public class TextRunCacheTest {
+    @Test
+    public void getPaint_isSharedPerStyle() throws Exception {
+        TextRunCache cache = new TextRunCache();
+        Paint paint = cache.getPaint(null, 36, "#ff0000", Typeface.BOLD, RuntimeEnvironment.application.getAssets());
+        assertSame(paint, cache.getPaint(null, 36, "#ff0000", Typeface.BOLD, RuntimeEnvironment.application.getAssets()));
+        assertNotSame(paint, cache.getPaint(null, 36, "#00ff00", Typeface.BOLD, RuntimeEnvironment.application.getAssets()));
+        assertNotSame(paint, cache.getPaint(null, 36, "#ff0000", Typeface.NORMAL, RuntimeEnvironment.application.getAssets()));
+    }
+
+    @Test
+    public void drawText_reusesTheRecordedRun() throws Exception {
+        TextRunCache cache = new TextRunCache();
+        Paint paint = cache.getPaint(null, 36, "#000000", Typeface.BOLD, RuntimeEnvironment.application.getAssets());
+        String key = TextRunCache.paintKey(null, 36, "#000000", Typeface.BOLD);
+        Canvas canvas = new Canvas(Bitmap.createBitmap(200, 100, Bitmap.Config.ARGB_8888));
+        cache.drawText(canvas, "Total", 10, 50, paint, key);
+        cache.drawText(canvas, "Total", 10, 80, paint, key);
+        cache.drawText(canvas, "Tax", 10, 80, paint, key);
+        assertEquals(1, cache.getRunHits());
+    }
+
+    @Test
+    public void maxRuns_evictsTheOldest() throws Exception {
+        TextRunCache cache = new TextRunCache(1, 1);
+        Paint paint = cache.getPaint(null, 20, "#000000", Typeface.NORMAL, RuntimeEnvironment.application.getAssets());
+        String key = TextRunCache.paintKey(null, 20, "#000000", Typeface.NORMAL);
+        Canvas canvas = new Canvas(Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888));
+        cache.drawText(canvas, "a", 0, 20, paint, key);
+        cache.drawText(canvas, "b", 0, 20, paint, key);
+        cache.drawText(canvas, "a", 0, 20, paint, key);
+        assertEquals(0, cache.getRunHits());
+    }
+}
@@ -0,0 +1,36 @@
+package com.jimmydaddy.imagemarker;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Local unit tests of the pure helpers in {@link Utils}
+ */
+public class UtilsTest {
+    @Test
+    public void calculateInSampleSize_neverDecodesBelowTheTargetScale() throws Exception {
+        assertEquals(1, Utils.calculateInSampleSize(1F));
+        assertEquals(1, Utils.calculateInSampleSize(2F));
+        assertEquals(1, Utils.calculateInSampleSize(0.75F));
+        assertEquals(2, Utils.calculateInSampleSize(0.5F));
+        assertEquals(2, Utils.calculateInSampleSize(0.3F));
+        assertEquals(4, Utils.calculateInSampleSize(0.25F));
+        assertEquals(8, Utils.calculateInSampleSize(0.1F));
+    }
+
+    @Test
+    public void calculateInSampleSize_ignoresInvalidScales() throws Exception {
+        assertEquals(1, Utils.calculateInSampleSize(0F));
+        assertEquals(1, Utils.calculateInSampleSize(-1F));
+    }
+
+    @Test
+    public void orientSize_swapsTheSidesOfQuarterTurns() throws Exception {
+        assertArrayEquals(new int[] { 4000, 3000 }, Utils.orientSize(4000, 3000, 0));
+        assertArrayEquals(new int[] { 3000, 4000 }, Utils.orientSize(4000, 3000, 90));
+        assertArrayEquals(new int[] { 4000, 3000 }, Utils.orientSize(4000, 3000, 180));
+        assertArrayEquals(new int[] { 3000, 4000 }, Utils.orientSize(4000, 3000, 270));
+    }
+}
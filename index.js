@@ -6,7 +6,7 @@
  * @Description
  * @flow
  */
-import { NativeModules, Image } from 'react-native'
+import { NativeModules, Image, DeviceEventEmitter } from 'react-native'
 
 const { ImageMarker } = NativeModules
 const { resolveAssetSource } = Image
@@ -21,6 +21,14 @@ export type Position = $Enum<{
   'center': string
 }>;
 
+export type SaveFormat = 'jpeg' | 'png' | 'webp' | 'webpLossless';
+
+// file resolves with a path, base64 with the encoded image, blob with a Blob (Android only)
+export type ReturnMode = 'file' | 'base64' | 'blob';
+
+// the lane of the job on the worker pool and the priority of its downloads, Android only
+export type Priority = 'high' | 'normal' | 'low';
+
 export type ShadowLayerStyle = {
   'dx': float,
   'dy': float,
@@ -28,6 +36,14 @@ export type ShadowLayerStyle = {
   'color': string
 }
 
+// render at display size first, Android only
+export type PreviewOption = {
+  // px of the longer side, defaults to the screen
+  maxSize?: number,
+  // then render at full resolution in the background, see addFullResolutionListener
+  full?: boolean
+}
+
 type TextMarkOption = {
   // image src, local image
   src: string,
@@ -45,7 +61,121 @@ type TextMarkOption = {
   quality: number,
   position?: Position,
   filename?: string,
-  shadowStyle: ShadowLayerStyle
+  shadowStyle: ShadowLayerStyle,
+  // output format, defaults to the extension of filename, else png for images with alpha and jpeg for the others
+  // webp and webpLossless are Android only, webpLossless is written as png before Android 10
+  saveFormat?: SaveFormat,
+  // 0-9, lower is faster, png only, Android only
+  pngCompressionLevel?: number,
+  // how the result is handed back, defaults to file
+  returnMode?: ReturnMode,
+  // resolve with { result, stats } and the time spent per stage, Android only
+  stats?: boolean,
+  // id to cancel the job with, generated when missing, the promise carries it as jobId, Android only
+  jobId?: string,
+  // groups jobs for cancelAll, Android only
+  tag?: string,
+  // ms the job has to finish in, rejects with E_TIMEOUT after, Android only
+  timeout?: number,
+  // high for previews the user waits on, defaults to normal, high with preview
+  priority?: Priority,
+  // true for a preview at screen size, X, Y, fontSize and shadowStyle are remapped to it
+  preview?: boolean | PreviewOption
+}
+
+type BatchMarker = {
+  type: 'text' | 'image',
+  // text marker
+  text?: string,
+  color?: string,
+  fontName?: string,
+  fontSize?: number,
+  shadowStyle?: ShadowLayerStyle,
+  // image marker
+  src?: string,
+  markerScale?: number,
+  position?: Position,
+  X?: number,
+  Y?: number
+}
+
+type BatchMarkOption = {
+  srcs: Array<string>,
+  marker: BatchMarker,
+  scale?: number,
+  quality?: number,
+  saveFormat?: SaveFormat,
+  pngCompressionLevel?: number,
+  // max number of images processed at the same time, defaults to the pool size
+  concurrency?: number,
+  // passed back in the progress events
+  batchId?: string,
+  // cancelling the batch skips the images not marked yet, Android only
+  jobId?: string,
+  tag?: string,
+  timeout?: number,
+  // defaults to low so it doesn't hold back the other calls
+  priority?: Priority
+}
+
+type MarkerLayer = {
+  type: 'text' | 'image',
+  // text layer
+  text?: string,
+  color?: string,
+  fontName?: string,
+  fontSize?: number,
+  shadowStyle?: ShadowLayerStyle,
+  // image layer
+  src?: string,
+  markerScale?: number,
+  // if you set position you don't need to set X and Y
+  position?: Position,
+  X?: number,
+  Y?: number
+}
+
+type MarkOption = {
+  src: string,
+  // drawn in this order
+  layers: Array<MarkerLayer>,
+  scale?: number,
+  quality?: number,
+  filename?: string,
+  saveFormat?: SaveFormat,
+  pngCompressionLevel?: number,
+  returnMode?: ReturnMode,
+  stats?: boolean,
+  jobId?: string,
+  tag?: string,
+  timeout?: number,
+  priority?: Priority
+}
+
+type ConfigureOption = {
+  // number of worker threads, defaults to the number of cpu cores
+  poolSize?: number,
+  // max number of jobs waiting for a worker
+  queueSize?: number,
+  // what to do with a job when the queue is full: reject it, or run it on an overflow thread (never the calling one), Android only
+  rejectPolicy?: 'abort' | 'overflow',
+  // memory budget of the decoded marker cache in KB, defaults to 1/8 of the heap
+  markerCacheSize?: number,
+  // memory budget of the rendered text cache in KB, defaults to 1/16 of the heap
+  textCacheSize?: number,
+  // memory budget of the pool of bitmaps reused between jobs in KB, defaults to 1/8 of the heap
+  bitmapPoolSize?: number,
+  // wait for every result to reach the storage before resolving, slower, Android only
+  syncWrites?: boolean,
+  // reuse the result of an identical earlier job, budget in KB, 0 (default) turns it off, Android only
+  resultCacheSize?: number,
+  // limits of the results kept in the cache dir, oldest are deleted first, 0 for no limit, Android only
+  // size in KB, no limit by default
+  cacheDirMaxSize?: number,
+  // no limit by default
+  cacheDirMaxFiles?: number,
+  // in seconds, defaults to 7 days
+  cacheDirMaxAge?: number,
 }
 
 type ImageMarkOption = {
@@ -60,7 +190,65 @@ type ImageMarkOption = {
   scale: number,
   quality: number,
   position?: Position,
-  filename?: string
+  filename?: string,
+  saveFormat?: SaveFormat,
+  pngCompressionLevel?: number,
+  returnMode?: ReturnMode,
+  stats?: boolean,
+  jobId?: string,
+  tag?: string,
+  timeout?: number,
+  priority?: Priority,
+  // as in TextMarkOption, X, Y and markerScale are remapped
+  preview?: boolean | PreviewOption
+}
+
+// blob results come back as the data of a Blob stored natively,
+// with the stats option the result comes with the metrics of the job
+function toResult(result) {
+  if (result && typeof result === 'object' && result.stats) {
+    return { result: toResult(result.result), stats: result.stats }
+  }
+  if (result && typeof result === 'object' && result.blobId) {
+    try {
+      const BlobManager = require('react-native/Libraries/Blob/BlobManager')
+      return BlobManager.createFromOptions(result)
+    } catch (e) {
+      return result
+    }
+  }
+  return result
+}
+
+let lastJobId = 0
+
+// ids are made here so they are known before the native call returns
+function newJobId() {
+  lastJobId += 1
+  return `imagemarker-${Date.now()}-${lastJobId}`
+}
+
+function withJobId(promise, jobId) {
+  promise.jobId = jobId
+  return promise
+}
+
+function toPreview(preview) {
+  if (!preview) {
+    return undefined
+  }
+  return preview === true ? {} : preview
+}
+
+function resolveSrc(src) {
+  let srcObj = resolveAssetSource(src)
+  if (!srcObj) {
+    srcObj = {
+      uri: src,
+      __packager_asset: false
+    }
+  }
+  return srcObj
 }
 
 export default class Marker {
@@ -77,7 +265,16 @@ export default class Marker {
       scale,
       quality,
       position,
-      filename
+      filename,
+      saveFormat,
+      pngCompressionLevel,
+      returnMode,
+      stats,
+      jobId,
+      tag,
+      timeout,
+      priority,
+      preview
      } = option
 
     if (!src) {
@@ -93,9 +290,10 @@ export default class Marker {
     }
 
     let mShadowStyle = shadowStyle || {}
+    const id = jobId || newJobId()
 
     if (!position) {
-      return ImageMarker.addText(
+      return withJobId(ImageMarker.addText(
         srcObj,
         text,
         X,
@@ -106,10 +304,11 @@ export default class Marker {
         mShadowStyle,
         scale,
         quality,
-        filename
-      )
+        filename,
+        { saveFormat, pngCompressionLevel, returnMode, stats, jobId: id, tag, timeout, priority, preview: toPreview(preview) }
+      ).then(toResult), id)
     } else {
-      return ImageMarker.addTextByPostion(
+      return withJobId(ImageMarker.addTextByPostion(
         srcObj,
         text,
         position,
@@ -119,8 +318,9 @@ export default class Marker {
         mShadowStyle,
         scale,
         quality,
-        filename
-      )
+        filename,
+        { saveFormat, pngCompressionLevel, returnMode, stats, jobId: id, tag, timeout, priority, preview: toPreview(preview) }
+      ).then(toResult), id)
     }
   }
 
@@ -134,7 +334,16 @@ export default class Marker {
       scale,
       quality,
       position,
-      filename
+      filename,
+      saveFormat,
+      pngCompressionLevel,
+      returnMode,
+      stats,
+      jobId,
+      tag,
+      timeout,
+      priority,
+      preview
     } = option
 
     if (!src) {
@@ -159,9 +368,10 @@ export default class Marker {
         __packager_asset: false
       }
     }
-    
+
+    const id = jobId || newJobId()
     if (!position) {
-      return ImageMarker.markWithImage(
+      return withJobId(ImageMarker.markWithImage(
         srcObj,
         markerObj,
         X,
@@ -169,18 +379,20 @@ export default class Marker {
         scale,
         markerScale,
         quality,
-        filename
-      )
+        filename,
+        { saveFormat, pngCompressionLevel, returnMode, stats, jobId: id, tag, timeout, priority, preview: toPreview(preview) }
+      ).then(toResult), id)
     } else {
-      return ImageMarker.markWithImageByPosition(
+      return withJobId(ImageMarker.markWithImageByPosition(
         srcObj,
         markerObj,
         position,
         scale,
         markerScale,
         quality,
-        filename
-      )
+        filename,
+        { saveFormat, pngCompressionLevel, returnMode, stats, jobId: id, tag, timeout, priority, preview: toPreview(preview) }
+      ).then(toResult), id)
     }
   }
 
@@ -189,7 +401,15 @@ export default class Marker {
       src,
       makers,
       quality,
-      filename
+      filename,
+      saveFormat,
+      pngCompressionLevel,
+      returnMode,
+      stats,
+      jobId,
+      tag,
+      timeout,
+      priority
     } = option
 
     if (!src) {
@@ -203,12 +423,157 @@ export default class Marker {
         __packager_asset: false
       }
     }
-    return ImageMarker.markWithObjects(
+    const id = jobId || newJobId()
+    return withJobId(ImageMarker.markWithObjects(
       srcObj,
       makers,
       quality,
-      filename
-    )
+      filename,
+      { saveFormat, pngCompressionLevel, returnMode, stats, jobId: id, tag, timeout, priority }
+    ).then(toResult), id)
+  }
+
+  static configure(option: ConfigureOption) {
+    if (!ImageMarker.configure) {
+      return Promise.resolve(option)
+    }
+    return ImageMarker.configure(option || {})
+  }
+
+  // text and image layers drawn with a single decode and a single encode
+  static mark(option: MarkOption) {
+    const {
+      src,
+      layers,
+      scale,
+      quality,
+      filename,
+      saveFormat,
+      pngCompressionLevel,
+      returnMode,
+      stats,
+      jobId,
+      tag,
+      timeout,
+      priority
+    } = option
+
+    if (!src) {
+      throw new Error('please set image!')
+    }
+    if (!layers || !layers.length) {
+      throw new Error('please set layers!')
+    }
+    if (!ImageMarker.mark) {
+      return Promise.reject(new Error('mark is not supported on this platform'))
+    }
+
+    const layerSpecs = layers.map((layer) => {
+      if (layer.type !== 'image') {
+        return layer
+      }
+      if (!layer.src) {
+        throw new Error('please set mark image!')
+      }
+      return { ...layer, src: resolveSrc(layer.src) }
+    })
+
+    const id = jobId || newJobId()
+    return withJobId(ImageMarker.mark(
+      resolveSrc(src),
+      layerSpecs,
+      { scale, quality, filename, saveFormat, pngCompressionLevel, returnMode, stats, jobId: id, tag, timeout, priority }
+    ).then(toResult), id)
+  }
+
+  static markBatch(option: BatchMarkOption) {
+    const {
+      srcs,
+      marker,
+      scale,
+      quality,
+      saveFormat,
+      pngCompressionLevel,
+      concurrency,
+      batchId,
+      jobId,
+      tag,
+      timeout,
+      priority
+    } = option
+
+    if (!srcs || !srcs.length) {
+      throw new Error('please set images!')
+    }
+    if (!marker) {
+      throw new Error('please set marker!')
+    }
+    if (!ImageMarker.markBatch) {
+      return Promise.reject(new Error('markBatch is not supported on this platform'))
+    }
+
+    const markerSpec = { ...marker }
+    if (markerSpec.type === 'image') {
+      if (!markerSpec.src) {
+        throw new Error('please set mark image!')
+      }
+      markerSpec.src = resolveSrc(markerSpec.src)
+    }
+
+    const id = jobId || newJobId()
+    return withJobId(ImageMarker.markBatch(
+      srcs.map(resolveSrc),
+      markerSpec,
+      { scale, quality, saveFormat, pngCompressionLevel, concurrency, batchId, jobId: id, tag, timeout, priority }
+    ), id)
+  }
+
+  // rejects the job with E_CANCELLED and stops it at its next stage,
+  // resolves with false when no job with this id is running, Android only
+  static cancel(jobId: string) {
+    if (!ImageMarker.cancel) {
+      return Promise.resolve(false)
+    }
+    return ImageMarker.cancel(jobId)
+  }
+
+  // cancels every job with this tag, or every job without one, resolves with their number, Android only
+  static cancelAll(tag?: string) {
+    if (!ImageMarker.cancelAll) {
+      return Promise.resolve(0)
+    }
+    return ImageMarker.cancelAll(tag || null)
+  }
+
+  // listener receives { batchId, index, uri, path | error, completed, failed, total }
+  static addBatchProgressListener(listener: Function) {
+    return DeviceEventEmitter.addListener('ImageMarkerBatchProgress', listener)
+  }
+
+  static addMemoryFallbackListener(listener: Function) {
+    return DeviceEventEmitter.addListener('ImageMarkerMemoryFallback', listener)
+  }
+
+  // listener receives { jobId, result | code, error } of the full resolution render of a preview,
+  // jobId being the one of the preview followed by ':full'
+  static addFullResolutionListener(listener: Function) {
+    return DeviceEventEmitter.addListener('ImageMarkerFullResolution', (event) => {
+      listener(event.result ? { ...event, result: toResult(event.result) } : event)
+    })
+  }
+
+  // p50/p95/p99 in ms of the jobs and of their stages, with counts and failures, Android only
+  static getMetrics(reset?: boolean) {
+    if (!ImageMarker.getMetrics) {
+      return Promise.resolve({})
+    }
+    return ImageMarker.getMetrics(!!reset)
+  }
+
+  static getCacheStats() {
+    if (!ImageMarker.getCacheStats) {
+      return Promise.resolve({})
+    }
+    return ImageMarker.getCacheStats()
   }
-  
 }
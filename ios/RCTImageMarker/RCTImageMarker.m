@@ -49,11 +49,37 @@ RCT_ENUM_CONVERTER(MarkerPosition,
 
 RCT_EXPORT_MODULE();
 
-void saveImageForMarker(NSString * fullPath, UIImage * image, float quality)
+BOOL isPngForMarker(NSDictionary * options, NSString * filename)
 {
-    NSData* data = UIImageJPEGRepresentation(image, quality / 100.0);
+    NSString* saveFormat = options[@"saveFormat"];
+    if ([saveFormat isKindOfClass:[NSString class]]) {
+        return [saveFormat isEqualToString:@"png"];
+    }
+    return filename != nil && [[filename lowercaseString] hasSuffix:@".png"];
+}
+
+BOOL isBase64ForMarker(NSDictionary * options)
+{
+    NSString* returnMode = options[@"returnMode"];
+    return [returnMode isKindOfClass:[NSString class]] && [returnMode isEqualToString:@"base64"];
+}
+
+BOOL isBlobForMarker(NSDictionary * options)
+{
+    NSString* returnMode = options[@"returnMode"];
+    return [returnMode isKindOfClass:[NSString class]] && [returnMode isEqualToString:@"blob"];
+}
+
+// the path of the saved file, or the encoded image when returnMode is base64
+id saveImageForMarker(NSString * fullPath, UIImage * image, float quality, BOOL png, BOOL base64)
+{
+    NSData* data = png ? UIImagePNGRepresentation(image) : UIImageJPEGRepresentation(image, quality / 100.0);
+    if (base64) {
+        return [data base64EncodedStringWithOptions:0];
+    }
     NSFileManager* fileManager = [NSFileManager defaultManager];
     [fileManager createFileAtPath:fullPath contents:data attributes:nil];
+    return fullPath;
 }
 
 
@@ -324,10 +350,16 @@ RCT_EXPORT_METHOD(addText: (nonnull NSDictionary *)src
                   scale:(CGFloat)scale
                   quality:(NSInteger) quality
                   filename: (NSString *)filename
+                  options:(nullable NSDictionary *)options
                   resolver:(RCTPromiseResolveBlock)resolve
                   rejecter:(RCTPromiseRejectBlock)reject)
 {
-    NSString* fullPath = generateCacheFilePathForMarker(@".jpg", filename);
+    if (isBlobForMarker(options)) {
+        reject(@"error", @"returnMode blob is not supported on iOS", nil);
+        return;
+    }
+    BOOL png = isPngForMarker(options, filename);
+    NSString* fullPath = generateCacheFilePathForMarker(png ? @".png" : @".jpg", filename);
     //这里之前是loadImageOrDataWithTag
     [_bridge.imageLoader loadImageWithURLRequest:[RCTConvert NSURLRequest:src] callback:^(NSError *error, UIImage *image) {
         if (error || image == nil) {
@@ -354,8 +386,7 @@ RCT_EXPORT_METHOD(addText: (nonnull NSDictionary *)src
         }
         NSLog(@" file from the path");
         
-        saveImageForMarker(fullPath, scaledImage, quality);
-        resolve(fullPath);
+        resolve(saveImageForMarker(fullPath, scaledImage, quality, png, isBase64ForMarker(options)));
     }];
 }
 
@@ -369,10 +400,16 @@ RCT_EXPORT_METHOD(addTextByPostion: (nonnull NSDictionary *)src
                   scale:(CGFloat)scale
                   quality:(NSInteger) quality
                   filename: (NSString *)filename
+                  options:(nullable NSDictionary *)options
                   resolver:(RCTPromiseResolveBlock)resolve
                   rejecter:(RCTPromiseRejectBlock)reject)
 {
-    NSString* fullPath = generateCacheFilePathForMarker(@".jpg", filename);
+    if (isBlobForMarker(options)) {
+        reject(@"error", @"returnMode blob is not supported on iOS", nil);
+        return;
+    }
+    BOOL png = isPngForMarker(options, filename);
+    NSString* fullPath = generateCacheFilePathForMarker(png ? @".png" : @".jpg", filename);
     //这里之前是loadImageOrDataWithTag
     [_bridge.imageLoader loadImageWithURLRequest:[RCTConvert NSURLRequest:src] callback:^(NSError *error, UIImage *image) {
         if (error || image == nil) {
@@ -401,8 +438,7 @@ RCT_EXPORT_METHOD(addTextByPostion: (nonnull NSDictionary *)src
         }
         NSLog(@" file from the path");
         
-        saveImageForMarker(fullPath, scaledImage, quality);
-        resolve(fullPath);
+        resolve(saveImageForMarker(fullPath, scaledImage, quality, png, isBase64ForMarker(options)));
     }];
 }
 
@@ -415,10 +451,16 @@ RCT_EXPORT_METHOD(markWithImage: (nonnull NSDictionary *)src
                   markerScale: (CGFloat) markerScale
                   quality:(NSInteger) quality
                   filename: (NSString *)filename
+                  options:(nullable NSDictionary *)options
                   resolver:(RCTPromiseResolveBlock)resolve
                   rejecter:(RCTPromiseRejectBlock)reject)
 {
-    NSString* fullPath = generateCacheFilePathForMarker(@".jpg", filename);
+    if (isBlobForMarker(options)) {
+        reject(@"error", @"returnMode blob is not supported on iOS", nil);
+        return;
+    }
+    BOOL png = isPngForMarker(options, filename);
+    NSString* fullPath = generateCacheFilePathForMarker(png ? @".png" : @".jpg", filename);
     //这里之前是loadImageOrDataWithTag
     [_bridge.imageLoader loadImageWithURLRequest:[RCTConvert NSURLRequest:src] callback:^(NSError *error, UIImage *image) {
         if (error || image == nil) {
@@ -452,8 +494,7 @@ RCT_EXPORT_METHOD(markWithImage: (nonnull NSDictionary *)src
             }
             NSLog(@" file from the path");
             
-            saveImageForMarker(fullPath, scaledImage, quality);
-            resolve(fullPath);
+            resolve(saveImageForMarker(fullPath, scaledImage, quality, png, isBase64ForMarker(options)));
         }];
     }];
 }
@@ -465,10 +506,16 @@ RCT_EXPORT_METHOD(markWithImageByPosition: (nonnull NSDictionary *)src
                   markerScale:(CGFloat)markerScale
                   quality: (NSInteger) quality
                   filename: (NSString *)filename
+                  options:(nullable NSDictionary *)options
                   resolver:(RCTPromiseResolveBlock)resolve
                   rejecter:(RCTPromiseRejectBlock)reject)
 {
-    NSString* fullPath = generateCacheFilePathForMarker(@".jpg", filename);
+    if (isBlobForMarker(options)) {
+        reject(@"error", @"returnMode blob is not supported on iOS", nil);
+        return;
+    }
+    BOOL png = isPngForMarker(options, filename);
+    NSString* fullPath = generateCacheFilePathForMarker(png ? @".png" : @".jpg", filename);
     //这里之前是loadImageOrDataWithTag
     [_bridge.imageLoader loadImageWithURLRequest:[RCTConvert NSURLRequest:src] callback:^(NSError *error, UIImage *image) {
         if (error || image == nil) {
@@ -504,8 +551,7 @@ RCT_EXPORT_METHOD(markWithImageByPosition: (nonnull NSDictionary *)src
             }
             NSLog(@" file from the path");
             
-            saveImageForMarker(fullPath, scaledImage, quality);
-            resolve(fullPath);
+            resolve(saveImageForMarker(fullPath, scaledImage, quality, png, isBase64ForMarker(options)));
         }];
     }];
 }